@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.metrics.BusMetrics;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.protocol.Packet;
+
+/**
+ * Sets values on a device, e.g. date and time, or sends commands like CLEAR_ENERGY_COUNTERS.
+ * All writes for one device are packed into as few PORT_COMMAND packets as the maximum frame
+ * length allows. The device acknowledges a write by echoing the key with the new value; every
+ * key which is missing from the reply or echoed with a different value counts as rejected.
+ */
+public class DeviceWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeviceWriter.class);
+
+    public static final int MAX_FRAME_LENGTH = Packet.MAX_LENGTH;
+
+    /**
+     * The outcome of writing to one device.
+     */
+    public static final class Result {
+        public final int device;
+        public final int packets;
+        public final Set<Keys.Key> acknowledged;
+        /** the rejected keys with the value echoed by the device, or null if it did not echo it */
+        public final Map<Keys.Key, String> rejected;
+
+        Result(int device, int packets, Set<Keys.Key> acknowledged, Map<Keys.Key, String> rejected) {
+            this.device = device;
+            this.packets = packets;
+            this.acknowledged = Collections.unmodifiableSet(acknowledged);
+            this.rejected = Collections.unmodifiableMap(rejected);
+        }
+
+        public boolean isComplete() {
+            return rejected.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "device " + device + ": " + acknowledged.size() + " acknowledged, " + rejected.size()
+                    + " rejected " + rejected.keySet() + " in " + packets + " packets";
+        }
+    }
+
+    private final Transport transport;
+
+    public DeviceWriter(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Returns the encoded values of DATE and TIME for setting the clock of a device.
+     */
+    public static Map<Keys.Key, String> clock(LocalDateTime time) {
+        LinkedHashMap<Keys.Key, String> values = new LinkedHashMap<>();
+        values.put(Keys.DATE, Keys.DATE.encode(time.toLocalDate()));
+        values.put(Keys.TIME, Keys.TIME.encode(time.toLocalTime().withNano(0)));
+        return values;
+    }
+
+    /**
+     * Splits the writes into PORT_COMMAND packets which do not exceed MAX_FRAME_LENGTH. Each
+     * write goes into the first packet with enough room left.
+     *
+     * @param values encoded values by key; null for commands without a value
+     * @throws IllegalArgumentException if a single write does not fit into a frame
+     */
+    public static List<Packet> pack(int address, Map<Keys.Key, String> values) {
+        ArrayList<Packet> packets = new ArrayList<>();
+        for (Map.Entry<Keys.Key, String> e : values.entrySet()) {
+            boolean added = false;
+            for (Packet packet : packets) {
+                packet.payload.put(e.getKey(), e.getValue());
+                if (fits(packet)) {
+                    added = true;
+                    break;
+                }
+                packet.payload.remove(e.getKey());
+            }
+            if (!added) {
+                Packet packet = new Packet();
+                packet.destination = address;
+                packet.port = Packet.PORT_COMMAND;
+                packet.payload.put(e.getKey(), e.getValue());
+                if (!fits(packet)) {
+                    throw new IllegalArgumentException("Writing " + e.getKey() + " does not fit into a frame");
+                }
+                packets.add(packet);
+            }
+        }
+        return packets;
+    }
+
+    private static boolean fits(Packet packet) {
+        try {
+            return packet.build().length() <= MAX_FRAME_LENGTH;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the values to the device with the given address and checks the acknowledgements.
+     *
+     * @param values encoded values by key; null for commands without a value
+     */
+    public Result write(int address, Map<Keys.Key, String> values) {
+        List<Packet> packets = pack(address, values);
+        LinkedHashSet<Keys.Key> acknowledged = new LinkedHashSet<>();
+        LinkedHashMap<Keys.Key, String> rejected = new LinkedHashMap<>();
+
+        for (Packet request : packets) {
+            String message = request.build();
+            logger.debug("Sending write request: '" + message + "'");
+            long start = System.nanoTime();
+            String replyMessage = transport.makeRequest(message);
+            BusMetrics.INSTANCE.roundTrip(address).recordSince(start);
+
+            Map<Keys.Key, String> echo = Collections.emptyMap();
+            if (replyMessage.isEmpty()) {
+                logger.warn("No acknowledgement from device " + address);
+            } else {
+                logger.debug("Got acknowledgement: '" + replyMessage + "'");
+                try {
+                    Packet reply = Packet.parse(replyMessage);
+                    if (address == Packet.ADR_BROADCAST || reply.source == address) {
+                        echo = reply.payload;
+                    } else {
+                        logger.warn("Unexpected reply to write request: '" + replyMessage + "'");
+                    }
+                } catch (Packet.ParseException e) {
+                    BusMetrics.INSTANCE.parseError(e.kind);
+                    logger.warn("Could not parse acknowledgement: " + e);
+                }
+            }
+
+            for (Map.Entry<Keys.Key, String> e : request.payload.entrySet()) {
+                Keys.Key key = e.getKey();
+                String echoed = echo.get(key);
+                if (echo.containsKey(key) && (e.getValue() == null || e.getValue().equalsIgnoreCase(echoed))) {
+                    acknowledged.add(key);
+                } else {
+                    rejected.put(key, echoed);
+                }
+            }
+        }
+
+        Result result = new Result(address, packets.size(), acknowledged, rejected);
+        if (result.isComplete()) {
+            logger.info("Wrote " + result);
+        } else {
+            logger.warn("Writing incomplete, " + result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import ch.qos.logback.classic.Level;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import solarmaxcom.cache.LatestValueCache;
+import solarmaxcom.events.StateEvent;
+import solarmaxcom.events.TransitionDetector;
+import solarmaxcom.fleet.Endpoint;
+import solarmaxcom.fleet.FleetPoller;
+import solarmaxcom.http.HttpEndpoint;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.sink.Batch;
+import solarmaxcom.sink.SinkRunner;
+import solarmaxcom.tuning.ProfileStore;
+import solarmaxcom.tuning.Tuning;
+
+/**
+ * Subcommand which polls many devices connected via Ethernet at a fixed rate.
+ */
+@Command(name = "fleet", mixinStandardHelpOptions = true,
+        description = "poll many devices connected via Ethernet at a fixed rate")
+public final class FleetCommand implements Callable<Integer> {
+
+    private static final Logger logger = LoggerFactory.getLogger(FleetCommand.class);
+
+    @CommandLine.Parameters(paramLabel = "<host[:port]=devices>", arity = "1..*",
+            description = "TCP endpoint and the comma-separated addresses of the devices behind it, "
+                    + "e.g. 192.168.1.20=1,2,3 (default port: " + TcpComm.DEFAULT_PORT + "); devices are "
+                    + "identified by their address, or by an id given as <address>/<id>, e.g. 192.168.1.21=1/4")
+    private List<String> endpointList;
+
+    @CommandLine.Option(names = {"-k", "--keys"}, defaultValue = "PAC,PDC,UDC,IDC,KDY,KT0,SYS",
+            description = "comma-separated list of keys to request (default: ${DEFAULT-VALUE})")
+    private String keyList;
+
+    @CommandLine.Option(names = {"-r", "--period"}, paramLabel = "<ms>", defaultValue = "1000",
+            description = "poll every device every <ms> milliseconds (default: ${DEFAULT-VALUE})")
+    private long period;
+
+    @CommandLine.Option(names = {"-c", "--concurrency"}, defaultValue = "1",
+            description = "maximum number of concurrent connections per endpoint (default: ${DEFAULT-VALUE})")
+    private int concurrency;
+
+    @CommandLine.Option(names = {"--pipeline"}, paramLabel = "<n>", defaultValue = "1",
+            description = "keep up to <n> requests in flight on each connection; falls back to one at a time "
+                    + "if a device does not cope (default: ${DEFAULT-VALUE})")
+    private int pipelineDepth;
+
+    @CommandLine.Option(names = {"-t", "--timeout"}, paramLabel = "<ms>", defaultValue = "3000",
+            description = "timeout for connecting and for replies (default: ${DEFAULT-VALUE})")
+    private int timeout;
+
+    @CommandLine.Option(names = {"-m", "--mqtt"}, description = "MQTT server to send data to (same as --sink mqtt:<server>)")
+    private String mqttServer;
+
+    @CommandLine.Option(names = {"--sink"}, paramLabel = "<name[:arg]>",
+            description = "output for the readings, e.g. stdout, jsonl:<file>, mqtt:<server> or null; "
+                    + "may be given more than once (default: none)")
+    private List<String> sinkSpecs = new ArrayList<>();
+
+    @CommandLine.Option(names = {"--sink-buffer"}, paramLabel = "<cycles>", defaultValue = "1000",
+            description = "number of poll cycles buffered for each sink before the oldest are dropped "
+                    + "(default: ${DEFAULT-VALUE})")
+    private int sinkBuffer;
+
+    @CommandLine.Option(names = {"--events"}, paramLabel = "<cycles>", arity = "0..1", fallbackValue = "2",
+            description = "output changes of SYS, SAL and EC01..EC08 as events once the new value has been "
+                    + "received in <cycles> consecutive poll cycles (default: ${FALLBACK-VALUE})")
+    private Integer eventDebounce;
+
+    @CommandLine.Option(names = {"--http"}, paramLabel = "<[host:]port>",
+            description = "serve the latest values for Prometheus (/metrics) and as JSON (/values)")
+    private String httpAddress;
+
+    @CommandLine.Option(names = {"--profiles"}, paramLabel = "<file>",
+            description = "tune the number of keys per request for each device type and keep the results in <file>")
+    private Path profileFile;
+
+    @CommandLine.Option(names = {"-v", "--verbose"}, description = "more verbose output")
+    private boolean verbose;
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    private final List<SinkRunner> sinks = new ArrayList<>();
+    private TransitionDetector transitions;
+
+    @Override
+    public Integer call() {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME))
+                .setLevel(verbose ? Level.DEBUG : Level.INFO);
+
+        ArrayList<Keys.Key> keys = new ArrayList<>();
+        for (String key : keyList.split(",")) {
+            Keys.Key k = Keys.getKeyById(key);
+            if (k == null) {
+                throw new CommandLine.ParameterException(spec.commandLine(), "Unknown key " + key);
+            }
+            keys.add(k);
+        }
+
+        if (eventDebounce != null) {
+            try {
+                transitions = new TransitionDetector(eventDebounce);
+            } catch (IllegalArgumentException e) {
+                throw new CommandLine.ParameterException(spec.commandLine(), "Invalid --events: " + e.getMessage());
+            }
+        }
+
+        LatestValueCache cache = new LatestValueCache();
+        FleetPoller fleet = new FleetPoller(cache, keys, period, this::output);
+        if (profileFile != null) {
+            try {
+                fleet.setTuning(new Tuning(new ProfileStore(profileFile)));
+            } catch (IOException e) {
+                throw new CommandLine.ParameterException(spec.commandLine(),
+                        "Cannot read device profiles from " + profileFile + ": " + e.getMessage());
+            }
+        }
+        ArrayList<Endpoint> endpoints = new ArrayList<>();
+        for (String e : endpointList) {
+            int equals = e.indexOf('=');
+            if (equals == -1) {
+                throw new CommandLine.ParameterException(spec.commandLine(), "Missing device addresses in " + e);
+            }
+            try {
+                String host = e.substring(0, equals);
+                InetSocketAddress address = (host.indexOf(':') == -1)
+                        ? new InetSocketAddress(host, TcpComm.DEFAULT_PORT)
+                        : SolarMaxCom.parseAddress(host);
+                Endpoint endpoint = new Endpoint(address, concurrency, timeout, pipelineDepth);
+                endpoints.add(endpoint);
+                for (String device : e.substring(equals + 1).split(",")) {
+                    int slash = device.indexOf('/');
+                    if (slash == -1) {
+                        fleet.addDevice(endpoint, Integer.parseInt(device));
+                    } else {
+                        fleet.addDevice(endpoint, Integer.parseInt(device.substring(0, slash)),
+                                Integer.parseInt(device.substring(slash + 1)));
+                    }
+                }
+            } catch (IllegalArgumentException ex) {
+                throw new CommandLine.ParameterException(spec.commandLine(),
+                        "Invalid endpoint " + e + ": " + ex.getMessage());
+            }
+        }
+
+        HttpEndpoint http = null;
+        if (httpAddress != null) {
+            try {
+                http = new HttpEndpoint(SolarMaxCom.parseAddress(httpAddress), cache);
+                http.start();
+            } catch (IOException | IllegalArgumentException e) {
+                throw new CommandLine.ParameterException(spec.commandLine(),
+                        "Cannot start HTTP endpoint on " + httpAddress + ": " + e.getMessage());
+            }
+        }
+        if (mqttServer != null) {
+            sinkSpecs.add("mqtt:" + mqttServer);
+        }
+        for (String sinkSpec : sinkSpecs) {
+            try {
+                sinks.add(SinkRunner.create(sinkSpec, sinkBuffer));
+            } catch (IOException | IllegalArgumentException e) {
+                throw new CommandLine.ParameterException(spec.commandLine(),
+                        "Cannot create sink " + sinkSpec + ": " + e.getMessage());
+            }
+        }
+
+        fleet.start();
+        logger.info("Press Enter to stop.");
+        try {
+            System.in.read();
+        } catch (IOException e) {
+            logger.warn("Could not read from standard input: " + e);
+        }
+        fleet.stop();
+        logger.info(fleet.getCycles() + " poll cycles, " + fleet.getMissedCycles() + " missed");
+
+        for (Endpoint endpoint : endpoints) {
+            endpoint.close();
+        }
+        if (http != null) {
+            http.stop();
+        }
+        for (SinkRunner sink : sinks) {
+            sink.close();
+        }
+        return 0;
+    }
+
+    private void output(int device, long cycle, long timestamp, Map<Keys.Key, String> reply,
+            Map<Keys.Key, Long> sampleTimes) {
+        logger.debug("Device " + device + ": " + reply.size() + " values");
+        if (sinks.isEmpty()) {
+            return;
+        }
+        List<StateEvent> events = (transitions == null)
+                ? Collections.emptyList() : transitions.add(device, timestamp, reply);
+        Batch batch = new Batch(device, cycle, timestamp, reply, sampleTimes, Collections.emptyList(), events);
+        for (SinkRunner sink : sinks) {
+            sink.offer(batch);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * Locale-independent formatting of raw values for machine-readable outputs.
+ */
+public final class Format {
+
+    private Format() {
+    }
+
+    /**
+     * Formats a numeric value with the resolution of its key, or returns null if the key is not
+     * numeric or the value cannot be decoded.
+     */
+    public static String number(Keys.DataKey<?> key, String encoded) {
+        try {
+            Double value = key.decodeNumber(encoded);
+            if (value == null) {
+                return null;
+            } else if (key instanceof Keys.DoubleKey) {
+                return BigDecimal.valueOf(value).setScale(((Keys.DoubleKey) key).decimals, RoundingMode.HALF_UP)
+                        .toPlainString();
+            } else {
+                return Long.toString(Math.round(value));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Formats a value with the standard format of its key, or returns null if it cannot be decoded.
+     */
+    @SuppressWarnings("unchecked")
+    public static String text(Keys.DataKey<?> key, String encoded) {
+        try {
+            Keys.DataKey<Object> k = (Keys.DataKey<Object>) key;
+            Object value = k.decode(encoded);
+            return (value == null) ? null : k.standardFormat(value);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.util.HashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calibrates for each device the minimum gap between the end of the previous frame on the bus
+ * and a request to the device. A device whose transceiver has not yet switched back to receiving
+ * misses the request, so after a failed request the gap of its device is doubled (up to
+ * MAX_GAP_NANOS); after SUCCESS_STREAK successful requests in a row it is reduced by a quarter to
+ * find out whether a shorter gap works, too. Requests are therefore sent back to back unless a
+ * device has shown that it needs a pause.
+ */
+final class InterFrameGap {
+
+    private static final Logger logger = LoggerFactory.getLogger(InterFrameGap.class);
+
+    static final long MIN_STEP_NANOS = 1_000_000;
+    static final long MAX_GAP_NANOS = 50_000_000;
+    static final int SUCCESS_STREAK = 50;
+
+    private static final class Device {
+        long gap = 0;
+        int successes = 0;
+    }
+
+    private final HashMap<Integer, Device> devices = new HashMap<>();
+
+    /**
+     * Returns the destination address of a request frame, or -1 if the frame is malformed.
+     */
+    static int destinationOf(String frame) {
+        // {SS;DD;...
+        if (frame.length() < 6 || frame.charAt(0) != '{' || frame.charAt(3) != ';') {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(frame.substring(4, 6), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the gap in nanoseconds to keep before sending a request to the device.
+     */
+    synchronized long get(int device) {
+        Device d = devices.get(device);
+        return (d == null) ? 0 : d.gap;
+    }
+
+    /**
+     * Records the outcome of a request to the device.
+     */
+    synchronized void record(int device, boolean success) {
+        Device d = devices.computeIfAbsent(device, a -> new Device());
+        if (success) {
+            d.successes++;
+            if (d.successes >= SUCCESS_STREAK && d.gap > 0) {
+                d.gap = (d.gap < MIN_STEP_NANOS) ? 0 : d.gap - d.gap / 4;
+                d.successes = 0;
+            }
+        } else {
+            d.successes = 0;
+            if (d.gap < MAX_GAP_NANOS) {
+                d.gap = Math.min(MAX_GAP_NANOS, Math.max(MIN_STEP_NANOS, 2 * d.gap));
+                logger.debug("Inter-frame gap for device " + device + " raised to " + d.gap / 1000 + " µs");
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+/**
+ * Minimal helpers for writing JSON without an additional library.
+ */
+public final class Json {
+
+    private Json() {
+    }
+
+    /**
+     * Appends a String as a quoted and escaped JSON string, or null.
+     */
+    public static StringBuilder appendString(StringBuilder s, String value) {
+        if (value == null) {
+            return s.append("null");
+        }
+        s.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    s.append("\\\"");
+                    break;
+                case '\\':
+                    s.append("\\\\");
+                    break;
+                case '\n':
+                    s.append("\\n");
+                    break;
+                case '\r':
+                    s.append("\\r");
+                    break;
+                case '\t':
+                    s.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        s.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        s.append(c);
+                    }
+            }
+        }
+        return s.append('"');
+    }
+
+    /**
+     * Appends a number, or null for NaN and infinite values which JSON cannot represent.
+     */
+    public static StringBuilder appendNumber(StringBuilder s, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return s.append("null");
+        } else {
+            return s.append(value);
+        }
+    }
+}
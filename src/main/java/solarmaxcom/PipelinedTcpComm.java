@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.metrics.BusMetrics;
+import solarmaxcom.protocol.FrameReader;
+import solarmaxcom.protocol.Packet;
+
+/**
+ * Like TcpComm, but keeps up to <code>depth</code> requests in flight on one connection, so that
+ * the round trip time of the network does not limit the number of requests per second. This
+ * class is thread-safe; callers block until their reply has been received. A separate thread reads
+ * the replies and matches each one to the oldest pending request with the same addresses whose
+ * keys contain all keys of the reply.
+ * <p>
+ * Some devices drop requests which arrive while they are still busy. If a request times out
+ * while others were in flight, or a reply matches no pending request, the transport falls back
+ * to strict ordering (one request at a time) for the rest of its life.
+ */
+public class PipelinedTcpComm implements Transport {
+
+    private static final Logger logger = LoggerFactory.getLogger(PipelinedTcpComm.class);
+
+    private final InetSocketAddress address;
+    private final int timeout;
+    private int depth;
+
+    private Socket socket = null;
+    private OutputStream out = null;
+    private final ArrayList<Pending> pending = new ArrayList<>();
+
+    /**
+     * A request waiting for its reply.
+     */
+    private static final class Pending {
+        /** the parsed request, or null if it could not be parsed */
+        final Packet request;
+        final CompletableFuture<String> reply = new CompletableFuture<>();
+
+        Pending(Packet request) {
+            this.request = request;
+        }
+
+        boolean matches(Packet reply) {
+            return request == null || (reply.source == request.destination
+                    && reply.destination == request.source
+                    && request.payload.keySet().containsAll(reply.payload.keySet()));
+        }
+    }
+
+    /**
+     * @param depth maximum number of requests in flight
+     * @param timeout connect and read timeout in milliseconds
+     */
+    public PipelinedTcpComm(InetSocketAddress address, int depth, int timeout) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be at least 1");
+        }
+        this.address = address;
+        this.depth = depth;
+        this.timeout = timeout;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the current maximum number of requests in flight; 1 after falling back to strict
+     * ordering.
+     */
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    private void connect() throws IOException {
+        logger.debug("Connecting to " + address);
+        Socket s = new Socket();
+        s.setTcpNoDelay(true);
+        s.connect(address, timeout);
+        socket = s;
+        out = s.getOutputStream();
+        InputStream in = new BufferedInputStream(s.getInputStream());
+        Thread reader = new Thread(() -> read(s, in), "tcp-reader-" + address.getHostString());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public int getPipelineDepth() {
+        return getDepth();
+    }
+
+    @Override
+    public String makeRequest(String message) {
+        try {
+            return sendRequest(message).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "";
+        } catch (ExecutionException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Sends a request as soon as fewer than <code>depth</code> requests are in flight and returns
+     * a future for its reply; if none arrives within the timeout, the future completes with an
+     * empty String.
+     */
+    @Override
+    public CompletableFuture<String> sendRequest(String message) {
+        Packet request;
+        try {
+            request = Packet.parse(message);
+        } catch (Packet.ParseException e) {
+            request = null;
+        }
+        Pending p = new Pending(request);
+        synchronized (this) {
+            // a request which cannot be matched is only sent on its own
+            try {
+                while (pending.size() >= depth || (request == null && !pending.isEmpty())) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return CompletableFuture.completedFuture("");
+            }
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                byte[] bytes = message.getBytes(StandardCharsets.ISO_8859_1);
+                out.write(bytes);
+                BusMetrics.INSTANCE.requestSent(bytes.length);
+                pending.add(p);
+            } catch (IOException e) {
+                logger.warn("Communication with " + address + " failed: " + e);
+                disconnect();
+                BusMetrics.INSTANCE.replyReceived(0);
+                return CompletableFuture.completedFuture("");
+            }
+        }
+
+        return p.reply.orTimeout(timeout, TimeUnit.MILLISECONDS).handle((reply, e) -> {
+            if (e != null) {
+                reply = "";
+                if (e instanceof TimeoutException) {
+                    timedOut(p);
+                }
+            }
+            BusMetrics.INSTANCE.replyReceived(reply.length());
+            return reply;
+        });
+    }
+
+    private synchronized void timedOut(Pending p) {
+        logger.debug("Timeout reached while reading from " + address);
+        BusMetrics.INSTANCE.timeout();
+        if (pending.contains(p)) {
+            if (pending.size() > 1 && depth > 1) {
+                fallBack("a request timed out while " + pending.size() + " were in flight");
+            }
+            // a late reply would be taken as the reply to a later request
+            disconnect();
+        }
+    }
+
+    private void fallBack(String reason) {
+        logger.info("Falling back to one request at a time for " + address + ": " + reason);
+        depth = 1;
+    }
+
+    /**
+     * Reads reply frames from the socket until it is closed.
+     */
+    private void read(Socket s, InputStream in) {
+        FrameReader frames = new FrameReader();
+        try {
+            int c;
+            while ((c = in.read()) != -1) {
+                String frame = frames.accept((byte) c);
+                if (frame != null) {
+                    received(frame);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Connection to " + address + " closed: " + e);
+        }
+        BusMetrics.INSTANCE.noise(frames.getNoiseBytes());
+        synchronized (this) {
+            if (socket == s) {
+                disconnect();
+            }
+        }
+    }
+
+    private synchronized void received(String frame) {
+        Packet reply;
+        try {
+            reply = Packet.parse(frame);
+        } catch (Packet.ParseException e) {
+            // cannot be matched; with a single request in flight, it can only be its reply
+            if (pending.size() == 1) {
+                complete(pending.get(0), frame);
+            } else {
+                logger.debug("Dropping unparsable reply from " + address + ": " + e);
+            }
+            return;
+        }
+        for (Pending p : pending) {
+            if (p.matches(reply)) {
+                complete(p, frame);
+                return;
+            }
+        }
+        if (depth > 1) {
+            fallBack("a reply matched none of the " + pending.size() + " pending requests");
+        }
+        logger.debug("Dropping unexpected reply from " + address + ": " + frame);
+    }
+
+    private void complete(Pending p, String frame) {
+        pending.remove(p);
+        p.reply.complete(frame);
+        notifyAll();
+    }
+
+    /**
+     * Closes the connection and completes all pending requests without a reply.
+     */
+    private synchronized void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug("Could not close connection to " + address + ": " + e);
+            }
+            socket = null;
+            out = null;
+        }
+        for (Pending p : pending) {
+            p.reply.complete("");
+        }
+        pending.clear();
+        notifyAll();
+    }
+
+    @Override
+    public void close() {
+        disconnect();
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.metrics.BusMetrics;
+import solarmaxcom.cache.LatestValueCache;
+import solarmaxcom.capture.CaptureWriter;
+import solarmaxcom.flow.ReadingPublisher;
+import solarmaxcom.history.DependentKeys;
+import solarmaxcom.jfr.ParseFailureEvent;
+import solarmaxcom.jfr.PollCycleEvent;
+import solarmaxcom.jfr.TransactionEvent;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.protocol.Packet;
+import solarmaxcom.tuning.BatchSizeTuner;
+import solarmaxcom.tuning.Tuning;
+
+/**
+ * Requests a set of keys from a device, split into packets of at most MAX_KEYS_PER_REQUEST keys,
+ * or as many keys as the BatchSizeTuner for the device type finds best if tuning is enabled;
+ * packets are limited so that even the longest possible reply fits into a frame. Each call of
+ * poll() is one poll cycle; its result is also published to the LatestValueCache. Every value
+ * is timestamped with the midpoint of the round trip of its packet, which is when the device most
+ * likely sampled it. If the reply contains TIME, the skew of the device clock is derived from it.
+ * If the transport keeps several requests in flight, the packets of a cycle are sent without
+ * waiting for the replies to the previous ones.
+ * <p>
+ * Requested keys which belong to a DependentKeys group (by default the error history) are only
+ * requested, in a second step of the cycle, when the value of one of the triggers of the group
+ * has changed; the triggers are requested in every cycle, but only returned if they were requested.
+ */
+public class Poller {
+
+    private static final Logger logger = LoggerFactory.getLogger(Poller.class);
+    public static final int MAX_KEYS_PER_REQUEST = 3;
+
+    /** length of a reply frame without the values and their separators */
+    private static final int REPLY_OVERHEAD = 18;
+
+    private final Transport transport;
+    private final LatestValueCache cache;
+    private final BusMetrics metrics = BusMetrics.INSTANCE;
+    private CaptureWriter capture = null;
+    private ReadingPublisher publisher = null;
+    private Tuning tuning = null;
+    private final HashMap<Integer, BatchSizeTuner> tuners = new HashMap<>();
+    private List<DependentKeys> dependentKeys = DependentKeys.ERROR_HISTORY;
+    /** the trigger values for which the dependent keys have been received, by device id */
+    private final HashMap<Integer, HashMap<Keys.Key, String>> triggerValues = new HashMap<>();
+    private long cycle = 0;
+    private long cycleTimestamp = 0;
+    private Map<Keys.Key, Long> sampleTimes = Collections.emptyMap();
+    private Long clockSkew = null;
+
+    public Poller(Transport transport, LatestValueCache cache) {
+        this.transport = transport;
+        this.cache = cache;
+    }
+
+    public LatestValueCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Records all frames sent and received from now on with the given CaptureWriter.
+     */
+    public void setCapture(CaptureWriter capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Publishes the readings of every poll cycle from now on with the given ReadingPublisher.
+     */
+    public void setPublisher(ReadingPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+    /**
+     * Tunes the number of keys per request for each device type from now on. The type of a
+     * device is requested along with the first poll cycle, but only returned if it was requested.
+     */
+    public void setTuning(Tuning tuning) {
+        this.tuning = tuning;
+    }
+
+    /**
+     * Sets the groups of keys which are only requested when their trigger has changed; an empty
+     * list requests all keys in every cycle.
+     */
+    public void setDependentKeys(List<DependentKeys> dependentKeys) {
+        this.dependentKeys = dependentKeys;
+    }
+
+    /**
+     * Returns the id of the last poll cycle.
+     */
+    public long getCycle() {
+        return cycle;
+    }
+
+    /**
+     * Returns the time in milliseconds at which the last poll cycle finished.
+     */
+    public long getCycleTimestamp() {
+        return cycleTimestamp;
+    }
+
+    /**
+     * Returns the time in milliseconds at which each value of the last poll cycle was sampled.
+     */
+    public Map<Keys.Key, Long> getSampleTimes() {
+        return sampleTimes;
+    }
+
+    /**
+     * Returns by how many milliseconds the device clock was ahead of the local clock when TIME was
+     * last received, or null if it has not been received yet. The device clock has a resolution of
+     * one second, so a single value is only accurate to about ±500 ms.
+     */
+    public Long getClockSkew() {
+        return clockSkew;
+    }
+
+    public Map<Keys.Key, String> poll(final int device, final Collection<Keys.Key> keys) {
+        return poll(device, device, keys);
+    }
+
+    /**
+     * Polls the device with the given bus address, but publishes the results, metrics and events
+     * under the given id. This allows devices with the same address on different buses.
+     */
+    public Map<Keys.Key, String> poll(final int address, final int id, final Collection<Keys.Key> keys) {
+        PollCycleEvent event = new PollCycleEvent();
+        event.begin();
+        cycle++;
+        if (capture != null) {
+            try {
+                capture.cycle(address);
+            } catch (IOException e) {
+                captureFailed(e);
+            }
+        }
+        BatchSizeTuner tuner = tuners.get(id);
+        Collection<Keys.Key> cycleKeys = keys;
+        if (tuning != null && tuner == null && !keys.contains(Keys.TYPE)) {
+            cycleKeys = new ArrayList<>(keys);
+            cycleKeys.add(Keys.TYPE);
+        }
+        ArrayList<DependentKeys> groups = new ArrayList<>(0);
+        for (DependentKeys group : dependentKeys) {
+            if (!Collections.disjoint(group.keys, keys)) {
+                groups.add(group);
+            }
+        }
+        if (!groups.isEmpty()) {
+            cycleKeys = new ArrayList<>(cycleKeys);
+            for (DependentKeys group : groups) {
+                cycleKeys.removeAll(group.keys);
+                for (Keys.Key trigger : group.triggers) {
+                    if (!cycleKeys.contains(trigger)) {
+                        cycleKeys.add(trigger);
+                    }
+                }
+            }
+        }
+        HashMap<Keys.Key, Long> times = new HashMap<>();
+        Map<Keys.Key, String> reply = requestKeys(address, id, cycleKeys, times, tuner);
+        if (!groups.isEmpty()) {
+            requestDependentKeys(address, id, keys, groups, reply, times, tuner);
+        }
+        if (tuning != null && tuner == null && reply.get(Keys.TYPE) != null) {
+            String type = reply.get(Keys.TYPE);
+            String name = Format.text(Keys.TYPE, type);
+            tuners.put(id, tuning.forType(type, (name == null) ? type : name));
+        }
+        if (!keys.contains(Keys.TYPE)) {
+            // only requested for the tuning
+            reply.remove(Keys.TYPE);
+            times.remove(Keys.TYPE);
+        }
+        for (DependentKeys group : groups) {
+            for (Keys.Key trigger : group.triggers) {
+                if (!keys.contains(trigger)) {
+                    reply.remove(trigger);
+                    times.remove(trigger);
+                }
+            }
+        }
+        cycleTimestamp = SampleClock.now();
+        sampleTimes = Collections.unmodifiableMap(times);
+        Long time = times.get(Keys.TIME);
+        if (time != null) {
+            Long skew = clockSkew(reply, time, ZoneId.systemDefault());
+            if (skew != null) {
+                clockSkew = skew;
+                metrics.clockSkew(id, skew);
+            }
+        }
+        cache.update(id, cycle, cycleTimestamp, reply, sampleTimes);
+        if (publisher != null) {
+            publisher.publish(id, cycle, cycleTimestamp, reply, sampleTimes);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.device = id;
+            event.cycle = cycle;
+            event.keysRequested = keys.size();
+            event.keysReceived = reply.size();
+            event.commit();
+        }
+        return reply;
+    }
+
+    /**
+     * Requests the keys of all groups with a trigger which has a different value in the reply than
+     * when they were last received, and adds them to the reply.
+     */
+    private void requestDependentKeys(final int address, final int id, final Collection<Keys.Key> keys,
+            final List<DependentKeys> groups, final Map<Keys.Key, String> reply, final Map<Keys.Key, Long> times,
+            final BatchSizeTuner tuner) {
+        HashMap<Keys.Key, String> received = triggerValues.computeIfAbsent(id, i -> new HashMap<>());
+        ArrayList<Keys.Key> fetch = new ArrayList<>();
+        for (DependentKeys group : groups) {
+            boolean changed = false;
+            for (Keys.Key trigger : group.triggers) {
+                String value = reply.get(trigger);
+                if (value != null && !value.equals(received.get(trigger))) {
+                    changed = true;
+                }
+            }
+            if (changed) {
+                for (Keys.Key key : group.keys) {
+                    if (keys.contains(key) && !fetch.contains(key)) {
+                        fetch.add(key);
+                    }
+                }
+            }
+        }
+        if (fetch.isEmpty()) {
+            return;
+        }
+        logger.debug("Trigger changed, requesting " + fetch.size() + " dependent keys");
+        Map<Keys.Key, String> dependent = requestKeys(address, id, fetch, times, tuner);
+        reply.putAll(dependent);
+        for (DependentKeys group : groups) {
+            boolean complete = true;
+            for (Keys.Key key : group.keys) {
+                if (keys.contains(key) && !reply.containsKey(key)) {
+                    complete = false;
+                }
+            }
+            // if a dependent key is missing, it is requested again in the next cycle
+            if (complete) {
+                for (Keys.Key trigger : group.triggers) {
+                    if (reply.get(trigger) != null) {
+                        received.put(trigger, reply.get(trigger));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the skew of the device clock in milliseconds from TIME (and DATE, if present) in a
+     * reply sampled at the given time, or null if the values are missing or invalid. Without DATE,
+     * the skew is assumed to be less than twelve hours.
+     */
+    static Long clockSkew(Map<Keys.Key, String> reply, long sampleTime, ZoneId zone) {
+        try {
+            LocalTime time = Keys.TIME.decode(reply.get(Keys.TIME));
+            if (time == null) {
+                return null;
+            }
+            LocalDateTime local = LocalDateTime.ofInstant(Instant.ofEpochMilli(sampleTime), zone);
+            LocalDate date = Keys.DATE.decode(reply.get(Keys.DATE));
+            boolean withDate = (date != null);
+            if (!withDate) {
+                date = local.toLocalDate();
+            }
+            // the device truncates to whole seconds, so its clock was half a second ahead on average
+            long device = LocalDateTime.of(date, time).atZone(zone).toInstant().toEpochMilli() + 500;
+            long skew = device - sampleTime;
+            if (!withDate) {
+                long day = 24 * 60 * 60 * 1000L;
+                skew = Math.floorMod(skew + day / 2, day) - day / 2;
+            }
+            return skew;
+        } catch (RuntimeException e) {
+            logger.debug("Invalid date or time in reply: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the maximum length of a key and its value in a reply, including the separator.
+     */
+    static int replyLength(Keys.Key key) {
+        int valueLength = (key instanceof Keys.DataKey) ? ((Keys.DataKey<?>) key).length : 0;
+        return key.key.length() + 1 + valueLength + 1;
+    }
+
+    /**
+     * A request of a poll cycle and its reply.
+     */
+    private static final class Exchange {
+        final Packet request;
+        final String message;
+        final TransactionEvent transaction = new TransactionEvent();
+        long start;
+        long end;
+        CompletableFuture<String> reply;
+        boolean requestCaptured = false;
+
+        Exchange(Packet request) {
+            this.request = request;
+            this.message = request.build();
+        }
+    }
+
+    /**
+     * Requests the keys in packets. If the transport has a pipeline depth of more than one, up to
+     * that many packets are sent before the reply to the first one is processed.
+     */
+    private Map<Keys.Key, String> requestKeys(final int address, final int id, final Collection<Keys.Key> keys,
+            final Map<Keys.Key, Long> sampleTimes, final BatchSizeTuner tuner) {
+        Keys.Key[] keyArray = keys.toArray(new Keys.Key[0]);
+        HashMap<Keys.Key, String> returnedKeys = new HashMap<>();
+        int depth = transport.getPipelineDepth();
+        ArrayDeque<Exchange> inFlight = new ArrayDeque<>();
+
+        int i = 0;
+        while (i < keyArray.length || !inFlight.isEmpty()) {
+            if (i < keyArray.length && inFlight.size() < depth) {
+                int size = (tuner == null) ? MAX_KEYS_PER_REQUEST : tuner.nextSize();
+                Packet request = new Packet();
+                request.destination = address;
+                int length = REPLY_OVERHEAD;
+                while (i < keyArray.length && request.payload.size() < size
+                        && (request.payload.isEmpty() || length + replyLength(keyArray[i]) <= Packet.MAX_LENGTH)) {
+                    length += replyLength(keyArray[i]);
+                    request.payload.put(keyArray[i++], null);
+                }
+                inFlight.add(send(request, depth == 1));
+            } else {
+                receive(inFlight.remove(), id, returnedKeys, sampleTimes, tuner);
+            }
+        }
+
+        return returnedKeys;
+    }
+
+    /**
+     * Sends a request; it is captured right away if no other request can be in flight, and
+     * otherwise together with its reply, so that a replay finds every reply after its request.
+     */
+    private Exchange send(Packet request, boolean capture) {
+        Exchange exchange = new Exchange(request);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending request: '" + exchange.message + "'");
+        }
+        metrics.keysPerRequest.record(request.payload.size());
+        exchange.transaction.begin();
+        if (capture) {
+            capture(exchange.message, true);
+            exchange.requestCaptured = true;
+        }
+        exchange.start = System.nanoTime();
+        exchange.reply = transport.sendRequest(exchange.message)
+                .whenComplete((reply, e) -> exchange.end = System.nanoTime());
+        return exchange;
+    }
+
+    private void receive(Exchange exchange, int id, Map<Keys.Key, String> returnedKeys,
+            Map<Keys.Key, Long> sampleTimes, BatchSizeTuner tuner) {
+        String replyMessage = exchange.reply.join();
+        Packet request = exchange.request;
+        long start = exchange.start;
+        long end = exchange.end;
+        metrics.roundTrip(id).record(end - start);
+        if (!exchange.requestCaptured) {
+            capture(exchange.message, true);
+        }
+        capture(replyMessage, false);
+        TransactionEvent transaction = exchange.transaction;
+        transaction.end();
+        transaction.device = id;
+        transaction.keys = request.payload.size();
+        transaction.bytesSent = exchange.message.length();
+        transaction.bytesReceived = replyMessage.length();
+        transaction.outcome = TransactionEvent.OK;
+        if (replyMessage.length() > 0) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Got reply: '" + replyMessage + "'");
+            }
+            try {
+                long parseStart = System.nanoTime();
+                Packet reply = Packet.parse(replyMessage);
+                metrics.parseTime.recordSince(parseStart);
+                returnedKeys.putAll(reply.payload);
+                if (tuner != null) {
+                    tuner.record(request.payload.size(), reply.payload.size(), end - start);
+                }
+                long sampleTime = SampleClock.midpoint(start, end);
+                for (Keys.Key key : reply.payload.keySet()) {
+                    sampleTimes.put(key, sampleTime);
+                }
+                if (logger.isDebugEnabled()) {
+                    logger.debug(reply.format());
+                }
+            } catch (Packet.ParseException e) {
+                metrics.parseError(e.kind);
+                transaction.outcome = TransactionEvent.PARSE_ERROR;
+                ParseFailureEvent failure = new ParseFailureEvent();
+                if (failure.shouldCommit()) {
+                    failure.device = id;
+                    failure.kind = e.kind.name();
+                    failure.message = e.getMessage();
+                    failure.commit();
+                }
+                logger.warn("Could not parse packet: " + e);
+                if (tuner != null) {
+                    tuner.record(request.payload.size(), 0, end - start);
+                }
+            }
+        } else {
+            transaction.outcome = TransactionEvent.TIMEOUT;
+            if (tuner != null) {
+                tuner.record(request.payload.size(), 0, end - start);
+            }
+            logger.info("No reply received.");
+        }
+        transaction.commit();
+    }
+
+    private void capture(String frame, boolean request) {
+        if (capture != null) {
+            try {
+                if (request) {
+                    capture.request(frame);
+                } else {
+                    capture.reply(frame);
+                }
+            } catch (IOException e) {
+                captureFailed(e);
+            }
+        }
+    }
+
+    private void captureFailed(IOException e) {
+        logger.warn("Could not write capture file, capturing stopped: " + e);
+        capture = null;
+    }
+}
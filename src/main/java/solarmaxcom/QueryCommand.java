@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.store.ExportWriter;
+import solarmaxcom.store.Query;
+
+/**
+ * Subcommand which exports stored readings of one device as CSV or JSON Lines.
+ */
+@Command(name = "query", mixinStandardHelpOptions = true,
+        description = "export readings from the local time-series store")
+public final class QueryCommand implements Callable<Integer> {
+
+    @CommandLine.Option(names = {"-s", "--store"}, paramLabel = "<dir>", required = true,
+            description = "directory of the time-series store")
+    private Path storeDirectory;
+
+    @CommandLine.Option(names = {"-d", "--device"}, description = "device address (default: 0)")
+    private int device;
+
+    @CommandLine.Option(names = {"--from"}, required = true,
+            description = "start of the time range (inclusive), e.g. 2021-12-04 or 2021-12-04T06:00:00Z")
+    private String from;
+
+    @CommandLine.Option(names = {"--to"},
+            description = "end of the time range (exclusive); default: now")
+    private String to;
+
+    @CommandLine.Option(names = {"--step"},
+            description = "downsample to the mean over intervals of this length, e.g. 10s, 15m, 1h")
+    private String step;
+
+    @CommandLine.Option(names = {"-f", "--format"}, defaultValue = "CSV",
+            description = "output format: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})")
+    private ExportWriter.Format format;
+
+    @CommandLine.Option(names = {"-o", "--output"}, description = "output file (default: standard output)")
+    private Path output;
+
+    @CommandLine.Parameters(paramLabel = "<keys>", defaultValue = "",
+            description = "comma-separated list of keys; leave empty to export all numeric keys")
+    private String keyList;
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    @Override
+    public Integer call() throws IOException {
+        ArrayList<Keys.Key> keys = new ArrayList<>();
+        if (!keyList.equals("")) {
+            for (String key : keyList.split(",")) {
+                Keys.Key k = Keys.getKeyById(key);
+                if (k == null) {
+                    throw new CommandLine.ParameterException(spec.commandLine(), "Unknown key " + key);
+                }
+                keys.add(k);
+            }
+        }
+
+        long fromMillis = parseTime(from);
+        long toMillis = (to == null) ? System.currentTimeMillis() : parseTime(to);
+        long stepMillis = (step == null) ? 0 : parseDuration(step);
+        Query query = new Query(device, keys, fromMillis, toMillis, stepMillis);
+
+        Writer writer = (output == null)
+                ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+                : Files.newBufferedWriter(output, StandardCharsets.UTF_8);
+        try (Writer out = new BufferedWriter(writer, 1 << 16)) {
+            ExportWriter export = new ExportWriter(out, format, device, (stepMillis > 0) ? 2 : 0);
+            export.writeHeader();
+            query.run(storeDirectory, export);
+        }
+        return 0;
+    }
+
+    private long parseTime(String s) {
+        try {
+            if (s.length() == 10) {
+                return LocalDate.parse(s).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            } else {
+                return Instant.parse(s).toEpochMilli();
+            }
+        } catch (DateTimeParseException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Invalid time " + s);
+        }
+    }
+
+    private long parseDuration(String s) {
+        try {
+            if (s.startsWith("P") || s.startsWith("p")) {
+                return Duration.parse(s).toMillis();
+            }
+            String unit = s.replaceAll("^[0-9]+", "");
+            long amount = Long.parseLong(s.substring(0, s.length() - unit.length()));
+            switch (unit) {
+                case "ms":
+                    return amount;
+                case "s":
+                    return amount * 1000;
+                case "m":
+                    return amount * 60 * 1000;
+                case "h":
+                    return amount * 60 * 60 * 1000;
+                case "d":
+                    return amount * 24 * 60 * 60 * 1000;
+                default:
+                    throw new NumberFormatException();
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Invalid step " + s);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wall-clock timestamps derived from the monotonic System.nanoTime(), anchored to the system
+ * clock. Unlike System.currentTimeMillis(), these timestamps do not follow every small correction
+ * of the system clock, so samples taken by different threads or from different devices keep
+ * their exact spacing.
+ * <p>
+ * At most every CHECK_INTERVAL nanoseconds, the clock is compared with the system clock and
+ * anchored again if they differ by more than MAX_DEVIATION milliseconds. This follows the clock
+ * being set after the start, e.g. by NTP on a Raspberry Pi without a real-time clock, and long
+ * term drift of the monotonic clock.
+ */
+public final class SampleClock {
+
+    private static final Logger logger = LoggerFactory.getLogger(SampleClock.class);
+
+    /** the interval in nanoseconds at which the clock is compared with the system clock */
+    public static final long CHECK_INTERVAL = 1_000_000_000L;
+    /** the deviation from the system clock in milliseconds above which the clock is anchored again */
+    public static final long MAX_DEVIATION = 50;
+
+    private static final SampleClock SYSTEM = new SampleClock(System::currentTimeMillis, System::nanoTime);
+
+    /**
+     * A value of the monotonic clock together with the wall-clock time it corresponds to.
+     */
+    private static final class Anchor {
+        final long nanoTime;
+        final long epochMillis;
+
+        Anchor(long nanoTime, long epochMillis) {
+            this.nanoTime = nanoTime;
+            this.epochMillis = epochMillis;
+        }
+    }
+
+    private final LongSupplier wallClock;
+    private final LongSupplier nanoClock;
+    private volatile Anchor anchor;
+    private volatile long lastCheck;
+
+    /**
+     * @param wallClock returns the current time in milliseconds since the epoch
+     * @param nanoClock returns the value of a monotonic clock in nanoseconds
+     */
+    SampleClock(LongSupplier wallClock, LongSupplier nanoClock) {
+        this.wallClock = wallClock;
+        this.nanoClock = nanoClock;
+        long nanoTime = nanoClock.getAsLong();
+        anchor = new Anchor(nanoTime, wallClock.getAsLong());
+        lastCheck = nanoTime;
+    }
+
+    /**
+     * Converts a value of the monotonic clock into milliseconds since the epoch.
+     */
+    long millis(long nanoTime) {
+        if (nanoTime - lastCheck >= CHECK_INTERVAL) {
+            check();
+        }
+        Anchor a = anchor;
+        return a.epochMillis + Math.floorDiv(nanoTime - a.nanoTime, 1_000_000L);
+    }
+
+    long currentMillis() {
+        return millis(nanoClock.getAsLong());
+    }
+
+    private synchronized void check() {
+        long nanoTime = nanoClock.getAsLong();
+        if (nanoTime - lastCheck < CHECK_INTERVAL) {
+            return;
+        }
+        lastCheck = nanoTime;
+        long wall = wallClock.getAsLong();
+        Anchor a = anchor;
+        long deviation = wall - (a.epochMillis + Math.floorDiv(nanoTime - a.nanoTime, 1_000_000L));
+        if (Math.abs(deviation) > MAX_DEVIATION) {
+            logger.info("System clock deviates by " + deviation + " ms, anchoring sample clock again");
+            anchor = new Anchor(nanoTime, wall);
+        }
+    }
+
+    /**
+     * Converts a value of System.nanoTime() into milliseconds since the epoch.
+     */
+    public static long toMillis(long nanoTime) {
+        return SYSTEM.millis(nanoTime);
+    }
+
+    /**
+     * Returns the current time in milliseconds since the epoch.
+     */
+    public static long now() {
+        return SYSTEM.currentMillis();
+    }
+
+    /**
+     * Returns the time in milliseconds since the epoch halfway between two values of
+     * System.nanoTime(), e.g. the best estimate of when a device sampled the values of its reply.
+     */
+    public static long midpoint(long startNanos, long endNanos) {
+        return toMillis(startNanos + (endNanos - startNanos) / 2);
+    }
+}
@@ -18,55 +18,413 @@
 package solarmaxcom;
 
 import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortInvalidPortException;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import solarmaxcom.metrics.BusMetrics;
+import solarmaxcom.protocol.FrameReader;
+import solarmaxcom.protocol.Packet;
 
 /**
- * This class helps communicating with a SolarMax device connected via a serial port.
+ * This class helps communicating with a SolarMax device connected via a serial port. A reply is
+ * returned as soon as its terminating byte has been received, so the next request can follow
+ * immediately; only the calibrated InterFrameGap of the addressed device is kept. Replies are
+ * assembled by a FrameReader, so line noise is skipped and an overlong frame fails the request
+ * at once instead of after the read timeout. A reply must be complete within REPLY_TIMEOUT after
+ * the request, and a request also fails once MAX_NOISE bytes of noise have been dropped.
+ * <p>
+ * USB adapters may disappear and come back under a different name. The port is therefore
+ * reopened when it reports an error, or when requests time out and the port is no longer listed
+ * by jSerialComm or its stable link now points to a different device; the request is then sent
+ * again. While the port is closed, it is reopened with exponential backoff; requests wait up to
+ * MAX_REOPEN_WAIT milliseconds for the next attempt and are then sent in the order in which they
+ * arrived, so the requests waiting in the gateway are not lost. A port given by its kernel name
+ * (e.g. /dev/ttyUSB0) is reopened via its stable link in /dev/serial/by-id, if there is one.
  */
-public class SerialComm {
+public class SerialComm implements Transport {
     
     private static final Logger logger = LoggerFactory.getLogger(SerialComm.class);
     
-    private static final byte END_BYTE = "}".getBytes(StandardCharsets.ISO_8859_1)[0];
+    static final Path BY_ID = Paths.get("/dev/serial/by-id");
+    
+    public static final long INITIAL_BACKOFF = 1000;
+    public static final long MAX_BACKOFF = 30000;
+    /** the time in milliseconds after sending a request within which the reply must be complete */
+    public static final long REPLY_TIMEOUT = 3000;
+    /** the maximum number of bytes dropped as noise while waiting for a reply */
+    public static final int MAX_NOISE = 4 * Packet.MAX_LENGTH;
+    /** the timeout of a single read; reads are repeated until REPLY_TIMEOUT has passed */
+    private static final int READ_TIMEOUT = 100;
+    /** the longest time in milliseconds a request waits for the port to be reopened */
+    public static final long MAX_REOPEN_WAIT = 3000;
+    /** number of timeouts in a row after which the health of the port is checked */
+    private static final int TIMEOUTS_BEFORE_CHECK = 3;
 
+    private String descriptor = null;
+    /** the link in /dev/serial/by-id for the port, or null */
+    private String stablePath = null;
+    /** the path which was opened */
+    private String openedPath = null;
+    
+    /**
+     * The reading side of the port.
+     */
+    interface Input {
+        /**
+         * Reads up to buffer.length bytes into the buffer, waiting at most a short time for the
+         * first one; returns the number of bytes read, or -1 if the port has failed.
+         */
+        int read(byte[] buffer);
+    }
+    
+    /** the result of reading a reply */
+    enum Outcome {
+        REPLY,
+        /** nothing was received before the deadline */
+        SILENCE,
+        /** only noise or an incomplete frame was received before the deadline or MAX_NOISE */
+        NOISE,
+        /** the frame was longer than Packet.MAX_LENGTH */
+        OVERLONG,
+        ERROR
+    }
+    
+    private final FrameReader frames = new FrameReader();
+    private final byte[] chunk = new byte[64];
+    /** the frame received by the last call of readReply() */
+    private String reply = null;
+    /** the number of dropped bytes which have already been added to the metrics */
+    private long reportedNoise = 0;
     private SerialPort port = null;
+    private boolean healthy = false;
+    /** whether jSerialComm listed the port when it was opened; e.g. pseudo terminals are not */
+    private boolean listed = false;
+    private long backoff = INITIAL_BACKOFF;
+    /** System.nanoTime() before which the port is not reopened */
+    private long nextAttempt = 0;
+    private int timeoutsInARow = 0;
+    private long reconnects = 0;
+    
+    private final InterFrameGap gaps = new InterFrameGap();
+    /** System.nanoTime() at which the last frame on the bus ended */
+    private long lastFrameEnd = 0;
     
     public void init(String portDescriptor) {
-        logger.debug("Opening serial port " + portDescriptor);
-        port = SerialPort.getCommPort(portDescriptor);
-        port.openPort();
+        descriptor = portDescriptor;
+        stablePath = findStablePath(portDescriptor, BY_ID);
+        if (stablePath != null && !stablePath.equals(portDescriptor)) {
+            logger.debug("Using stable path " + stablePath + " for " + portDescriptor);
+        }
+        if (!open()) {
+            logger.warn("Could not open serial port " + portDescriptor + "; retrying with the next requests.");
+        }
+    }
+    
+    /**
+     * Returns the link in the by-id directory which points to the given port, the port itself if
+     * it is such a link, or null if there is none.
+     */
+    static String findStablePath(String portDescriptor, Path byId) {
+        Path path = Paths.get(portDescriptor);
+        if (byId.equals(path.toAbsolutePath().getParent())) {
+            return portDescriptor;
+        }
+        try {
+            Path target = path.toRealPath();
+            try (DirectoryStream<Path> links = Files.newDirectoryStream(byId)) {
+                for (Path link : links) {
+                    if (link.toRealPath().equals(target)) {
+                        return link.toString();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("No stable path for " + portDescriptor + ": " + e);
+        }
+        return null;
+    }
+    
+    private String resolve() {
+        if (stablePath != null) {
+            try {
+                return Paths.get(stablePath).toRealPath().toString();
+            } catch (IOException e) {
+                logger.debug("Cannot resolve " + stablePath + ": " + e);
+            }
+        }
+        return descriptor;
+    }
+    
+    private boolean open() {
+        openedPath = resolve();
+        logger.debug("Opening serial port " + openedPath);
+        try {
+            port = SerialPort.getCommPort(openedPath);
+        } catch (SerialPortInvalidPortException e) {
+            // the device file does not exist (yet)
+            logger.debug("Invalid serial port " + openedPath + ": " + e.getMessage());
+            port = null;
+        }
+        if (port == null || !port.openPort()) {
+            healthy = false;
+            nextAttempt = System.nanoTime() + backoff * 1_000_000;
+            backoff = Math.min(2 * backoff, MAX_BACKOFF);
+            return false;
+        }
         port.setBaudRate(19200);
         port.setNumDataBits(8);
         port.setNumStopBits(SerialPort.ONE_STOP_BIT);
         port.setParity(SerialPort.NO_PARITY);
-        port.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING | SerialPort.TIMEOUT_WRITE_BLOCKING, 3000, 3000);
+        port.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING | SerialPort.TIMEOUT_WRITE_BLOCKING,
+                READ_TIMEOUT, (int) REPLY_TIMEOUT);
+        healthy = true;
+        listed = isListed(port.getSystemPortName());
+        backoff = INITIAL_BACKOFF;
+        timeoutsInARow = 0;
+        return true;
+    }
+    
+    /**
+     * Returns whether the port is open, reopening it if it has failed and the backoff has passed.
+     */
+    private boolean ensureOpen() {
+        if (healthy) {
+            return true;
+        }
+        if (descriptor == null || System.nanoTime() - nextAttempt < 0) {
+            return false;
+        }
+        if (port != null) {
+            port.closePort();
+        }
+        if (open()) {
+            reconnects++;
+            logger.info("Reopened serial port " + openedPath);
+            return true;
+        }
+        logger.debug("Could not reopen serial port " + openedPath + ", next attempt in "
+                + (nextAttempt - System.nanoTime()) / 1_000_000 + " ms");
+        return false;
     }
     
+    /**
+     * Waits for the port to be reopened, or returns false if that does not happen within
+     * MAX_REOPEN_WAIT milliseconds.
+     */
+    private boolean awaitOpen() {
+        long deadline = System.nanoTime() + MAX_REOPEN_WAIT * 1_000_000;
+        while (!ensureOpen()) {
+            if (descriptor == null || nextAttempt - deadline > 0) {
+                return false;
+            }
+            long wait = nextAttempt - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    private void failed(String reason) {
+        logger.warn("Serial port " + openedPath + " failed (" + reason + "), reopening it.");
+        healthy = false;
+        nextAttempt = System.nanoTime();
+        port.closePort();
+    }
+    
+    /**
+     * Returns whether the opened port is gone or has been replaced by another device. The port is
+     * looked up by its system name (e.g. ttyUSB0 or COM3), which also works for descriptors which
+     * are not paths.
+     */
+    private boolean isGone() {
+        if (!port.isOpen()) {
+            return true;
+        }
+        if (listed && !isListed(port.getSystemPortName())) {
+            return true;
+        }
+        return stablePath != null && !resolve().equals(openedPath);
+    }
+    
+    private static boolean isListed(String systemPortName) {
+        for (SerialPort p : SerialPort.getCommPorts()) {
+            if (p.getSystemPortName().equals(systemPortName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Returns the number of times the port has been reopened after a failure.
+     */
+    public long getReconnects() {
+        return reconnects;
+    }
+    
+    @Override
     public void close() {
         if (port != null) {
             port.closePort();
         }
+        healthy = false;
+        descriptor = null;
+    }
+    
+    /**
+     * Returns the current minimum gap in nanoseconds before a request to the device.
+     */
+    public long getInterFrameGap(int device) {
+        return gaps.get(device);
+    }
+    
+    private void awaitGap(int device) {
+        long wait = lastFrameEnd + gaps.get(device) - System.nanoTime();
+        if (device >= 0 && wait > 0) {
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
     
+    @Override
     public String makeRequest(String message) {
+        // a request interrupted by a failure of the port is sent again once it has been reopened
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (!awaitOpen()) {
+                BusMetrics.INSTANCE.timeout();
+                return "";
+            }
+            String reply = exchange(message);
+            if (reply != null) {
+                return reply;
+            }
+        }
+        return "";
+    }
+    
+    /**
+     * Sends a request and reads the reply, or returns null if the port has failed.
+     */
+    private String exchange(String message) {
+        int device = InterFrameGap.destinationOf(message);
+        awaitGap(device);
+        discardInput();
         byte[] request = message.getBytes(StandardCharsets.ISO_8859_1);
-        port.writeBytes(request, request.length);
+        long deadline = System.nanoTime() + REPLY_TIMEOUT * 1_000_000;
+        if (port.writeBytes(request, request.length) < 0) {
+            failed("write error");
+            return null;
+        }
+        BusMetrics.INSTANCE.requestSent(request.length);
         
-        byte[] responseByte = new byte[1];
-        int bytesRead = 0;
-        StringBuilder response = new StringBuilder();
-        do {
-            bytesRead = port.readBytes(responseByte, 1);
-            if (bytesRead > 0) {
-                response.append(new String(responseByte, StandardCharsets.ISO_8859_1));
-            } else {
-                logger.debug("Timeout reached while reading from serial port.");
-            }
-        } while (bytesRead > 0 && responseByte[0] != END_BYTE);
+        Outcome outcome = readReply(buffer -> port.readBytes(buffer, buffer.length), deadline);
+        if (outcome == Outcome.ERROR) {
+            failed("read error");
+            return null;
+        }
         
-        return response.toString();
+        lastFrameEnd = System.nanoTime();
+        countNoise(0);
+        boolean success = outcome == Outcome.REPLY;
+        if (success) {
+            BusMetrics.INSTANCE.replyReceived(reply.length());
+        }
+        if (device >= 0) {
+            gaps.record(device, success);
+        }
+        if (outcome == Outcome.SILENCE && ++timeoutsInARow >= TIMEOUTS_BEFORE_CHECK) {
+            timeoutsInARow = 0;
+            if (isGone()) {
+                failed("device file gone");
+                return null;
+            }
+        } else if (outcome != Outcome.SILENCE) {
+            timeoutsInARow = 0;
+        }
+        return success ? reply : "";
+    }
+    
+    /**
+     * Reads from the input until a reply frame is complete, and stores it in reply. The read gives
+     * up at the deadline, or when more than MAX_NOISE bytes were dropped as noise, so a noisy line
+     * does not keep the caller waiting; both count as a timeout.
+     */
+    Outcome readReply(Input input, long deadline) {
+        reply = null;
+        long rejected = frames.getRejectedFrames();
+        long noise = frames.getNoiseBytes();
+        boolean received = false;
+        while (true) {
+            int bytesRead = input.read(chunk);
+            if (bytesRead < 0) {
+                return Outcome.ERROR;
+            }
+            int i = 0;
+            while (reply == null && i < bytesRead) {
+                reply = frames.accept(chunk[i++]);
+            }
+            if (reply != null) {
+                // whatever follows the end of the reply cannot belong to it
+                countNoise(bytesRead - i);
+                return Outcome.REPLY;
+            }
+            received |= bytesRead > 0;
+            if (frames.getRejectedFrames() != rejected) {
+                logger.debug("Overlong frame received from serial port.");
+                BusMetrics.INSTANCE.parseError(Packet.ParseException.Kind.LENGTH);
+                return Outcome.OVERLONG;
+            }
+            boolean noisy = frames.getNoiseBytes() - noise > MAX_NOISE;
+            if (noisy || System.nanoTime() - deadline >= 0) {
+                logger.debug(noisy ? "Too much noise while reading from serial port."
+                        : "Timeout reached while reading from serial port.");
+                BusMetrics.INSTANCE.timeout();
+                frames.reset();
+                return received ? Outcome.NOISE : Outcome.SILENCE;
+            }
+        }
+    }
+    
+    /**
+     * Drops bytes which were received since the last reply, e.g. line noise or a late reply to a
+     * request which already timed out.
+     */
+    private void discardInput() {
+        int available;
+        int discarded = 0;
+        while (discarded <= MAX_NOISE && (available = port.bytesAvailable()) > 0) {
+            int bytesRead = port.readBytes(chunk, Math.min(available, chunk.length));
+            if (bytesRead <= 0) {
+                break;
+            }
+            countNoise(bytesRead);
+            discarded += bytesRead;
+        }
+        frames.reset();
+    }
+    
+    /**
+     * Adds dropped bytes, both the given ones and those dropped by the FrameReader, to the metrics.
+     */
+    private void countNoise(int bytes) {
+        long noise = frames.getNoiseBytes();
+        BusMetrics.INSTANCE.noise(noise - reportedNoise + bytes);
+        reportedNoise = noise;
     }
     
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import solarmaxcom.sim.SimulatedDevice;
+import solarmaxcom.sim.Simulator;
+
+/**
+ * Subcommand which simulates SolarMax devices with an Ethernet interface, for testing without
+ * hardware.
+ */
+@Command(name = "simulate", mixinStandardHelpOptions = true,
+        description = "simulate SolarMax devices connected via Ethernet")
+public final class SimulateCommand implements Callable<Integer> {
+
+    private static final Logger logger = LoggerFactory.getLogger(SimulateCommand.class);
+
+    @CommandLine.Option(names = {"-p", "--port"}, defaultValue = "" + TcpComm.DEFAULT_PORT,
+            description = "TCP port (default: ${DEFAULT-VALUE})")
+    private int port;
+
+    @CommandLine.Option(names = {"-d", "--devices"}, defaultValue = "1",
+            description = "comma-separated addresses of the simulated devices (default: ${DEFAULT-VALUE})")
+    private String deviceList;
+
+    @CommandLine.Option(names = {"--delay"}, paramLabel = "<ms>", defaultValue = "30",
+            description = "time needed to answer a request (default: ${DEFAULT-VALUE})")
+    private long delay;
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    @Override
+    public Integer call() throws IOException {
+        ArrayList<SimulatedDevice> devices = new ArrayList<>();
+        for (String device : deviceList.split(",")) {
+            try {
+                devices.add(new SimulatedDevice(Integer.parseInt(device)));
+            } catch (NumberFormatException e) {
+                throw new CommandLine.ParameterException(spec.commandLine(), "Invalid device address " + device);
+            }
+        }
+
+        Simulator simulator = new Simulator(new InetSocketAddress(port), devices, delay);
+        simulator.start();
+        logger.info("Press Enter to stop.");
+        System.in.read();
+        simulator.close();
+        return 0;
+    }
+}
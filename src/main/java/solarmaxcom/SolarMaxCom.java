@@ -17,32 +17,49 @@
 
 package solarmaxcom;
 
-import solarmaxcom.protocol.Packet;
 import solarmaxcom.protocol.Keys;
 import ch.qos.logback.classic.Level;
-import com.hivemq.client.mqtt.mqtt3.Mqtt3BlockingClient;
-import com.hivemq.client.mqtt.mqtt3.Mqtt3Client;
 import java.io.IOException;
-import java.util.HashMap;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import solarmaxcom.cache.LatestValueCache;
+import solarmaxcom.capture.CaptureWriter;
+import solarmaxcom.capture.Replayer;
+import solarmaxcom.events.StateEvent;
+import solarmaxcom.events.TransitionDetector;
+import solarmaxcom.flow.ReadingPublisher;
+import solarmaxcom.gateway.Gateway;
+import solarmaxcom.http.HttpEndpoint;
+import solarmaxcom.metrics.BusMetrics;
+import solarmaxcom.rollup.Rollup;
+import solarmaxcom.rollup.RollupAggregator;
+import solarmaxcom.sink.Batch;
+import solarmaxcom.sink.SinkRunner;
+import solarmaxcom.store.TimeSeriesStore;
+import solarmaxcom.tuning.ProfileStore;
+import solarmaxcom.tuning.Tuning;
 
 /**
- * Main class which parses the command line, reads values from a SolarMax device and optionally
- * sends the received data via MQTT.
+ * Main class which parses the command line, reads values from a SolarMax device and hands the
+ * received data to the configured sinks.
  */
-@Command(name = "SolarMaxCom", version = "SolarMaxCom version 0.1.0", mixinStandardHelpOptions = true)
+@Command(name = "SolarMaxCom", version = "SolarMaxCom version 0.1.0", mixinStandardHelpOptions = true,
+        subcommands = {QueryCommand.class, FleetCommand.class, SimulateCommand.class, WriteCommand.class})
 public final class SolarMaxCom implements Runnable {
     
     private static final Logger logger = LoggerFactory.getLogger(SolarMaxCom.class);
-    private static final int MAX_KEYS_PER_REQUEST = 3;
 
-    @CommandLine.Parameters(paramLabel = "<port>", description = "serial port, e.g. /dev/ttyUSB0")
+    @CommandLine.Parameters(paramLabel = "<port>", arity = "0..1", description = "serial port, e.g. /dev/ttyUSB0")
     private String portDescriptor;
     
     @CommandLine.Parameters(paramLabel = "<keys>",
@@ -56,31 +73,227 @@ public final class SolarMaxCom implements Runnable {
     @CommandLine.Option(names = {"-d", "--device"}, description = "device address (default: 0 for broadcast)")
     private int device;
     
-    @CommandLine.Option(names = {"-m", "--mqtt"}, description = "MQTT server to send data to")
+    @CommandLine.Option(names = {"-m", "--mqtt"}, description = "MQTT server to send data to (same as --sink mqtt:<server>)")
     private String mqttServer;
     
+    @CommandLine.Option(names = {"--sink"}, paramLabel = "<name[:arg]>",
+            description = "output for the readings, e.g. stdout, jsonl:<file>, mqtt:<server> or null; "
+                    + "may be given more than once (default: stdout)")
+    private List<String> sinkSpecs = new ArrayList<>();
+    
+    @CommandLine.Option(names = {"--sink-buffer"}, paramLabel = "<cycles>", defaultValue = "1000",
+            description = "number of poll cycles buffered for each sink before the oldest are dropped "
+                    + "(default: ${DEFAULT-VALUE})")
+    private int sinkBuffer;
+    
     @CommandLine.Option(names = {"-r", "--reptime"}, defaultValue = "0",
             description = "repeatedly request data after <reptime> milliseconds until a key is pressed")
     private int reptime;
+    
+    @CommandLine.Option(names = {"-s", "--store"}, paramLabel = "<dir>",
+            description = "store numeric readings in a local time-series database in <dir>")
+    private Path storeDirectory;
+    
+    @CommandLine.Option(names = {"--rollups"},
+            description = "aggregate numeric readings over 1m, 15m, 1h and 1d windows and output the finished windows")
+    private boolean rollups;
+    
+    @CommandLine.Option(names = {"--events"}, paramLabel = "<cycles>", arity = "0..1", fallbackValue = "2",
+            description = "output changes of SYS, SAL and EC01..EC08 as events once the new value has been "
+                    + "received in <cycles> consecutive poll cycles (default: ${FALLBACK-VALUE})")
+    private Integer eventDebounce;
+    
+    @CommandLine.Option(names = {"--http"}, paramLabel = "<[host:]port>",
+            description = "serve the latest values for Prometheus (/metrics) and as JSON (/values)")
+    private String httpAddress;
+
+    @CommandLine.Option(names = {"--gateway"}, paramLabel = "<[host:]port>",
+            description = "share the serial port with MaxComm clients (e.g. MaxTalk) connecting to this TCP port")
+    private String gatewayAddress;
+    
+    @CommandLine.Option(names = {"--gateway-max-age"}, paramLabel = "<ms>", defaultValue = "1000",
+            description = "answer client requests from values read within the last <ms> milliseconds "
+                    + "(default: ${DEFAULT-VALUE}; 0 to send all requests to the device)")
+    private long gatewayMaxAge;
+    
+    @CommandLine.Option(names = {"--profiles"}, paramLabel = "<file>",
+            description = "tune the number of keys per request for the device type and keep the results in <file>")
+    private Path profileFile;
+    
+    @CommandLine.Option(names = {"--capture"}, paramLabel = "<file>",
+            description = "record all frames sent and received to a binary capture file")
+    private Path captureFile;
+    
+    @CommandLine.Option(names = {"--replay"}, paramLabel = "<file>",
+            description = "instead of polling a device, replay the replies from a capture file")
+    private Path replayFile;
+    
+    @CommandLine.Option(names = {"--replay-speed"}, paramLabel = "<factor>", defaultValue = "1",
+            description = "replay speed relative to the captured timing; 0 to replay as fast as possible")
+    private double replaySpeed;
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
 
     private SerialComm smc;
-    private Mqtt3BlockingClient mqtt;
+    private Poller poller;
+    private final LatestValueCache cache = new LatestValueCache();
+    private final ReadingPublisher readings = new ReadingPublisher();
+    private final List<SinkRunner> sinks = new ArrayList<>();
+    private List<Rollup> finishedRollups = new ArrayList<>();
+    private TimeSeriesStore store;
+    private RollupAggregator aggregator;
+    private TransitionDetector transitions;
+    private HttpEndpoint http;
+    private CaptureWriter capture;
+    private Gateway gateway;
     
     @Override
     public void run() {
+        if (portDescriptor == null && replayFile == null) {
+            // optional only so that subcommands can be used without a port
+            throw new CommandLine.ParameterException(spec.commandLine(), "Missing required parameter: '<port>'");
+        }
+        
         ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME))
                 .setLevel(Level.INFO);
         if (verbose) {
             ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger("solarmaxcomm")).setLevel(Level.DEBUG);
         }
         
+        // a one-shot run is over before anyone could attach a JMX client, so skip the MBean setup
+        if (reptime > 0 || gatewayAddress != null || httpAddress != null) {
+            BusMetrics.INSTANCE.registerMBeans();
+        }
+        
+        if (httpAddress != null) {
+            try {
+                http = new HttpEndpoint(parseAddress(httpAddress), cache);
+                http.start();
+            } catch (IOException | IllegalArgumentException e) {
+                throw new CommandLine.ParameterException(spec.commandLine(),
+                        "Cannot start HTTP endpoint on " + httpAddress + ": " + e.getMessage());
+            }
+        }
+        
         if (mqttServer != null) {
-            mqtt = Mqtt3Client.builder().serverHost(mqttServer).buildBlocking();
-            mqtt.connect();
+            sinkSpecs.add("mqtt:" + mqttServer);
+        }
+        if (sinkSpecs.isEmpty()) {
+            sinkSpecs.add("stdout");
+        }
+        for (String sinkSpec : sinkSpecs) {
+            try {
+                sinks.add(SinkRunner.create(sinkSpec, sinkBuffer));
+            } catch (IOException | IllegalArgumentException e) {
+                throw new CommandLine.ParameterException(spec.commandLine(),
+                        "Cannot create sink " + sinkSpec + ": " + e.getMessage());
+            }
+        }
+        
+        if (storeDirectory != null) {
+            store = new TimeSeriesStore(storeDirectory);
+            // write the samples still in memory when the process is terminated, e.g. by SIGTERM
+            Runtime.getRuntime().addShutdownHook(new Thread(this::closeStore, "store-shutdown"));
+        }
+        
+        if (rollups) {
+            aggregator = new RollupAggregator(this::publishRollup);
+        }
+        
+        if (eventDebounce != null) {
+            try {
+                transitions = new TransitionDetector(eventDebounce);
+            } catch (IllegalArgumentException e) {
+                throw new CommandLine.ParameterException(spec.commandLine(), "Invalid --events: " + e.getMessage());
+            }
+        }
+        
+        if (replayFile != null) {
+            replay();
+        } else {
+            poll();
+        }
+        flushRollups();
+
+        readings.close();
+        if (gateway != null) {
+            gateway.close();
+        }
+        if (smc != null) {
+            logger.info("Closing serial interface...");
+            smc.close();
+        }
+        if (capture != null) {
+            try {
+                capture.close();
+            } catch (IOException e) {
+                logger.warn("Could not close capture file: " + e);
+            }
+        }
+        if (http != null) {
+            http.stop();
+        }
+        for (SinkRunner sink : sinks) {
+            sink.close();
+        }
+        closeStore();
+    }
+    
+    private void closeStore() {
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                logger.warn("Could not close time-series store: " + e);
+            }
+        }
+    }
+    
+    private void poll() {
+        if (captureFile != null) {
+            try {
+                capture = new CaptureWriter(captureFile);
+            } catch (IOException e) {
+                throw new CommandLine.ParameterException(spec.commandLine(),
+                        "Cannot create capture file " + captureFile + ": " + e.getMessage());
+            }
         }
         
         smc = new SerialComm();
         smc.init(portDescriptor);
+        Transport transport = smc;
+        if (gatewayAddress != null) {
+            try {
+                gateway = new Gateway(parseAddress(gatewayAddress), smc, gatewayMaxAge);
+                gateway.start();
+                transport = gateway;
+            } catch (IOException | IllegalArgumentException e) {
+                throw new CommandLine.ParameterException(spec.commandLine(),
+                        "Cannot start gateway on " + gatewayAddress + ": " + e.getMessage());
+            }
+            if (reptime == 0) {
+                // the gateway only serves its clients
+                logger.info("Gateway running; press Enter to stop.");
+                try {
+                    System.in.read();
+                } catch (IOException e) {
+                    logger.warn("Could not read from standard input: " + e);
+                }
+                return;
+            }
+        }
+        poller = new Poller(transport, cache);
+        poller.setCapture(capture);
+        poller.setPublisher(readings);
+        if (profileFile != null) {
+            try {
+                poller.setTuning(new Tuning(new ProfileStore(profileFile)));
+            } catch (IOException e) {
+                throw new CommandLine.ParameterException(spec.commandLine(),
+                        "Cannot read device profiles from " + profileFile + ": " + e.getMessage());
+            }
+        }
         
         HashSet<Keys.Key> keys = new HashSet<>();
         if (keyList.equals("")) {
@@ -109,36 +322,8 @@ public final class SolarMaxCom implements Runnable {
                     logger.info("Requesting keys...");
                 }
 
-                Map<Keys.Key, String> reply = requestKeys(device, keys);
-                if (mqtt != null) {
-                    String online = (reply.isEmpty()) ? "0" : "1";
-                    mqtt.publishWith().topic("solarmax/" + device + "/online")
-                                    .payload(online.getBytes())
-                                    .send();
-                }
-                for (Keys.Key k : reply.keySet()) {
-                    String value = reply.get(k);
-                    if (value != null && (k instanceof Keys.DataKey)) {
-                        Keys.DataKey dataKey = (Keys.DataKey) k;
-                        String unit = "";
-                        if (dataKey instanceof Keys.IntegerKey) {
-                            unit = ((Keys.IntegerKey) dataKey).unit;
-                        }
-                        if (dataKey instanceof Keys.DoubleKey) {
-                            unit = ((Keys.DoubleKey) dataKey).unit;
-                        }
-
-                        logger.info(k.key + " " + k.name + ": " + 
-                                dataKey.standardFormat(dataKey.decode(value)) + " " + unit);
-                        if (mqtt != null) {
-                            mqtt.publishWith().topic("solarmax/" + device + "/" + k.key)
-                                    .payload(dataKey.standardFormat(dataKey.decode(value)).getBytes())
-                                    .send();
-                        }
-                    } else {
-                        logger.info(k.key + " " + k.name + ": " + value);
-                    }
-                }
+                Map<Keys.Key, String> reply = poller.poll(device, keys);
+                output(device, poller.getCycle(), poller.getCycleTimestamp(), reply, poller.getSampleTimes());
 
                 try {
                     if (reptime > 0) {
@@ -155,45 +340,89 @@ public final class SolarMaxCom implements Runnable {
         } else {
             logger.warn("No valid keys.");
         }
-
-        logger.info("Closing serial interface...");
-        smc.close();
-        if (mqtt != null) {
-            mqtt.disconnect();
+    }
+    
+    private void replay() {
+        logger.info("Replaying " + replayFile + "...");
+        long[] cycle = {0};
+        try {
+            Replayer.Result result = new Replayer(replayFile, replaySpeed).run((device, timestamp, reply) -> {
+                cache.update(device, ++cycle[0], timestamp, reply);
+                readings.publish(device, cycle[0], timestamp, reply);
+                output(device, cycle[0], timestamp, reply, Collections.emptyMap());
+            });
+            logger.info("Replayed " + result);
+        } catch (IOException e) {
+            logger.error("Could not replay " + replayFile + ": " + e);
+        } catch (InterruptedException e) {
+            logger.info("Replay interrupted.");
         }
     }
     
-    private Map<Keys.Key, String> requestKeys(final int device, final Set<Keys.Key> keys) {
-        Keys.Key[] keyArray = keys.toArray(new Keys.Key[0]);
-        HashMap<Keys.Key, String> returnedKeys = new HashMap<>();
-        
-        for (int i=0; i < keyArray.length; i += MAX_KEYS_PER_REQUEST) {
-            Packet request = new Packet();
-            request.destination = device;
-            for (int k=0; k < MAX_KEYS_PER_REQUEST && k+i < keyArray.length; k++) {
-                request.payload.put(keyArray[k+i], null);
+    /**
+     * Parses an address of the form [host:]port.
+     */
+    static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        return (colon == -1)
+                ? new InetSocketAddress(Integer.parseInt(address))
+                : new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+    
+    /**
+     * Stores and aggregates the results of one poll cycle, detects state transitions and hands
+     * everything to all sinks.
+     */
+    private void output(int device, long cycle, long timestamp, Map<Keys.Key, String> reply,
+            Map<Keys.Key, Long> sampleTimes) {
+        long publishStart = System.nanoTime();
+        if (store != null) {
+            try {
+                store.append(device, timestamp, reply, sampleTimes);
+            } catch (IOException e) {
+                logger.warn("Could not store readings: " + e);
             }
-            
-            String message = request.build();
-            logger.debug("Sending request: '" + message + "'");
-            String replyMessage = smc.makeRequest(message);
-            if (replyMessage.length() > 0) {
-                logger.debug("Got reply: '" + replyMessage + "'");
-                try {
-                    Packet reply = Packet.parse(replyMessage);
-                    returnedKeys.putAll(reply.payload);
-                    if (logger.isDebugEnabled()) {
-                        logger.debug(reply.format());
-                    }
-                } catch (Packet.ParseException e) {
-                    logger.warn("Could not parse packet: " + e);
-                }
-            } else {
-                logger.info("No reply received.");
+        }
+        List<Rollup> rollupList = finishedRollups;
+        if (aggregator != null) {
+            aggregator.add(device, timestamp, reply, sampleTimes);
+            finishedRollups = new ArrayList<>();
+        }
+        List<StateEvent> events = (transitions == null)
+                ? Collections.emptyList() : transitions.add(device, timestamp, reply);
+        Batch batch = new Batch(device, cycle, timestamp, reply, sampleTimes, rollupList, events);
+        for (SinkRunner sink : sinks) {
+            sink.offer(batch);
+        }
+        BusMetrics.INSTANCE.publishTime.recordSince(publishStart);
+    }
+    
+    /**
+     * Hands the rollup windows which are still open to all sinks, so that even a short run
+     * produces rollups.
+     */
+    private void flushRollups() {
+        if (aggregator == null) {
+            return;
+        }
+        aggregator.flush();
+        LinkedHashMap<Integer, List<Rollup>> byDevice = new LinkedHashMap<>();
+        for (Rollup rollup : finishedRollups) {
+            byDevice.computeIfAbsent(rollup.device, d -> new ArrayList<>()).add(rollup);
+        }
+        finishedRollups = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, List<Rollup>> e : byDevice.entrySet()) {
+            Batch batch = Batch.ofRollups(e.getKey(), now, e.getValue());
+            for (SinkRunner sink : sinks) {
+                sink.offer(batch);
             }
         }
-        
-        return returnedKeys;
+    }
+    
+    private void publishRollup(Rollup rollup) {
+        logger.debug("Rollup " + rollup);
+        finishedRollups.add(rollup);
     }
     
     public static void main(String[] args) {
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.metrics.BusMetrics;
+import solarmaxcom.protocol.FrameReader;
+import solarmaxcom.protocol.Packet;
+
+/**
+ * This class helps communicating with a SolarMax device connected via Ethernet. The connection
+ * is opened on the first request and reopened after errors.
+ */
+public class TcpComm implements Transport {
+
+    private static final Logger logger = LoggerFactory.getLogger(TcpComm.class);
+
+    /** The default TCP port of SolarMax devices. */
+    public static final int DEFAULT_PORT = 12345;
+
+    private final InetSocketAddress address;
+    private final int timeout;
+    private Socket socket = null;
+    private InputStream in = null;
+    private final FrameReader frames = new FrameReader();
+    /** the number of dropped bytes which have already been added to the metrics */
+    private long reportedNoise = 0;
+
+    /**
+     * @param timeout connect and read timeout in milliseconds
+     */
+    public TcpComm(InetSocketAddress address, int timeout) {
+        this.address = address;
+        this.timeout = timeout;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    private void connect() throws IOException {
+        logger.debug("Connecting to " + address);
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(timeout);
+        socket.connect(address, timeout);
+        in = new BufferedInputStream(socket.getInputStream());
+    }
+
+    @Override
+    public String makeRequest(String message) {
+        String response = null;
+        try {
+            if (socket == null) {
+                connect();
+            }
+            byte[] request = message.getBytes(StandardCharsets.ISO_8859_1);
+            socket.getOutputStream().write(request);
+            BusMetrics.INSTANCE.requestSent(request.length);
+
+            long rejected = frames.getRejectedFrames();
+            while (response == null) {
+                int b = in.read();
+                if (b == -1) {
+                    throw new IOException("Connection closed by device.");
+                }
+                response = frames.accept((byte) b);
+                if (frames.getRejectedFrames() != rejected) {
+                    logger.debug("Overlong frame received from " + address);
+                    BusMetrics.INSTANCE.parseError(Packet.ParseException.Kind.LENGTH);
+                    // the rest of the frame would be taken as noise before the next reply
+                    close();
+                    break;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            logger.debug("Timeout reached while reading from " + address);
+            BusMetrics.INSTANCE.timeout();
+            // a late reply would be taken as the reply to the next request
+            close();
+        } catch (IOException e) {
+            logger.warn("Communication with " + address + " failed: " + e);
+            close();
+        }
+        frames.reset();
+        long noise = frames.getNoiseBytes();
+        BusMetrics.INSTANCE.noise(noise - reportedNoise);
+        reportedNoise = noise;
+        if (response == null) {
+            return "";
+        }
+        BusMetrics.INSTANCE.replyReceived(response.length());
+        return response;
+    }
+
+    @Override
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.debug("Could not close connection to " + address + ": " + e);
+            }
+            socket = null;
+            in = null;
+        }
+    }
+}
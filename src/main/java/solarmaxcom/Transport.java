@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A connection to the bus over which requests can be sent to SolarMax devices.
+ */
+public interface Transport {
+
+    /**
+     * Sends a request frame and waits for the reply.
+     *
+     * @return the reply frame, or an empty String if no reply was received in time
+     */
+    String makeRequest(String message);
+
+    /**
+     * Returns how many requests may be in flight at the same time; 1 if every request has to be
+     * answered before the next one is sent.
+     */
+    default int getPipelineDepth() {
+        return 1;
+    }
+
+    /**
+     * Sends a request frame and returns a future for the reply. Unless the pipeline depth is more
+     * than one, this waits for the reply like makeRequest.
+     *
+     * @return the reply frame, or an empty String if no reply was received in time
+     */
+    default CompletableFuture<String> sendRequest(String message) {
+        return CompletableFuture.completedFuture(makeRequest(message));
+    }
+
+    void close();
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import ch.qos.logback.classic.Level;
+import java.net.InetSocketAddress;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * Subcommand which sets values on devices, e.g. their clocks, and sends commands.
+ */
+@Command(name = "write", mixinStandardHelpOptions = true,
+        description = "set values on devices, e.g. date and time, or send commands")
+public final class WriteCommand implements Callable<Integer> {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteCommand.class);
+
+    @CommandLine.Parameters(index = "0", paramLabel = "<port>",
+            description = "serial port, e.g. /dev/ttyUSB0, or tcp://host[:port] for a device connected via Ethernet")
+    private String portDescriptor;
+
+    @CommandLine.Parameters(index = "1..*", paramLabel = "<key[=value]>",
+            description = "values to set in their standard format, e.g. DATE=2021-12-04 or TIME=13:55:00, "
+                    + "or commands without a value, e.g. CLR")
+    private List<String> writes = new ArrayList<>();
+
+    @CommandLine.Option(names = {"-d", "--devices"}, defaultValue = "1",
+            description = "comma-separated device addresses (default: ${DEFAULT-VALUE})")
+    private String deviceList;
+
+    @CommandLine.Option(names = {"--clock"}, description = "set DATE and TIME to the local time of this computer")
+    private boolean clock;
+
+    @CommandLine.Option(names = {"-t", "--timeout"}, paramLabel = "<ms>", defaultValue = "3000",
+            description = "timeout for connecting and for replies via TCP (default: ${DEFAULT-VALUE})")
+    private int timeout;
+
+    @CommandLine.Option(names = {"-v", "--verbose"}, description = "more verbose output")
+    private boolean verbose;
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    @Override
+    public Integer call() {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME))
+                .setLevel(verbose ? Level.DEBUG : Level.INFO);
+
+        LinkedHashMap<Keys.Key, String> values = new LinkedHashMap<>();
+        for (String write : writes) {
+            int equals = write.indexOf('=');
+            String id = (equals == -1) ? write : write.substring(0, equals);
+            Keys.Key key = Keys.getKeyById(id);
+            if (key == null) {
+                throw new CommandLine.ParameterException(spec.commandLine(), "Unknown key " + id);
+            }
+            if (equals == -1) {
+                values.put(key, null);
+            } else if (!(key instanceof Keys.DataKey)) {
+                throw new CommandLine.ParameterException(spec.commandLine(), "Key " + id + " takes no value");
+            } else {
+                try {
+                    values.put(key, encode((Keys.DataKey<?>) key, write.substring(equals + 1)));
+                } catch (IllegalArgumentException e) {
+                    throw new CommandLine.ParameterException(spec.commandLine(),
+                            "Invalid value for " + id + ": " + e.getMessage());
+                }
+            }
+        }
+
+        ArrayList<Integer> devices = new ArrayList<>();
+        for (String device : deviceList.split(",")) {
+            try {
+                devices.add(Integer.parseInt(device));
+            } catch (NumberFormatException e) {
+                throw new CommandLine.ParameterException(spec.commandLine(), "Invalid device address " + device);
+            }
+        }
+        if (values.isEmpty() && !clock) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Nothing to write");
+        }
+
+        Transport transport;
+        if (portDescriptor.startsWith("tcp://")) {
+            String host = portDescriptor.substring("tcp://".length());
+            try {
+                transport = new TcpComm((host.indexOf(':') == -1)
+                        ? new InetSocketAddress(host, TcpComm.DEFAULT_PORT)
+                        : SolarMaxCom.parseAddress(host), timeout);
+            } catch (IllegalArgumentException e) {
+                throw new CommandLine.ParameterException(spec.commandLine(),
+                        "Invalid address " + portDescriptor + ": " + e.getMessage());
+            }
+        } else {
+            SerialComm smc = new SerialComm();
+            smc.init(portDescriptor);
+            transport = smc;
+        }
+
+        int incomplete = 0;
+        try {
+            DeviceWriter writer = new DeviceWriter(transport);
+            for (int device : devices) {
+                LinkedHashMap<Keys.Key, String> deviceValues = new LinkedHashMap<>(values);
+                if (clock) {
+                    // taken for each device so that a slow bus does not shift the clocks
+                    deviceValues.putAll(DeviceWriter.clock(LocalDateTime.now()));
+                }
+                if (!writer.write(device, deviceValues).isComplete()) {
+                    incomplete++;
+                }
+            }
+        } finally {
+            transport.close();
+        }
+        if (incomplete > 0) {
+            logger.warn("Writing failed for " + incomplete + " of " + devices.size() + " devices");
+            return 1;
+        }
+        return 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String encode(Keys.DataKey<?> key, String text) {
+        Keys.DataKey<Object> k = (Keys.DataKey<Object>) key;
+        return k.encode(k.parse(text));
+    }
+}
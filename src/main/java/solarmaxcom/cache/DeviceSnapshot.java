@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * Immutable state of one device after a poll cycle: the latest raw value of every key that has
+ * ever been received, the time at which it was received and the id of the cycle. Keys that were
+ * not returned in the last cycle keep their previous value and timestamp.
+ */
+public final class DeviceSnapshot {
+    public final int device;
+    public final long cycle;
+    public final long timestamp;
+    /** Whether the device answered in the last cycle. */
+    public final boolean online;
+    private final String[] values;
+    private final long[] timestamps;
+
+    private DeviceSnapshot(int device, long cycle, long timestamp, boolean online, String[] values,
+            long[] timestamps) {
+        this.device = device;
+        this.cycle = cycle;
+        this.timestamp = timestamp;
+        this.online = online;
+        this.values = values;
+        this.timestamps = timestamps;
+    }
+
+    static DeviceSnapshot empty(int device) {
+        int n = Keys.getKeyCount();
+        return new DeviceSnapshot(device, -1, 0, false, new String[n], new long[n]);
+    }
+
+    /**
+     * Returns a new snapshot with the given values merged into this one.
+     */
+    DeviceSnapshot with(long cycle, long timestamp, Map<Keys.Key, String> reply, Map<Keys.Key, Long> sampleTimes) {
+        String[] newValues = Arrays.copyOf(values, values.length);
+        long[] newTimestamps = Arrays.copyOf(timestamps, timestamps.length);
+        for (Map.Entry<Keys.Key, String> e : reply.entrySet()) {
+            if (e.getValue() != null) {
+                newValues[e.getKey().ordinal] = e.getValue();
+                Long time = sampleTimes.get(e.getKey());
+                newTimestamps[e.getKey().ordinal] = (time == null) ? timestamp : time;
+            }
+        }
+        return new DeviceSnapshot(device, cycle, timestamp, !reply.isEmpty(), newValues, newTimestamps);
+    }
+
+    /**
+     * Returns the raw (encoded) value of a key, or null if it has never been received.
+     */
+    public String getValue(Keys.Key key) {
+        return values[key.ordinal];
+    }
+
+    /**
+     * Returns the time in milliseconds at which the value of a key was sampled, or 0.
+     */
+    public long getTimestamp(Keys.Key key) {
+        return timestamps[key.ordinal];
+    }
+
+    /**
+     * Returns all keys which have a value, ordered by their ordinal.
+     */
+    public List<Keys.Key> getKeys() {
+        ArrayList<Keys.Key> keys = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                keys.add(Keys.getKeyByOrdinal(i));
+            }
+        }
+        return keys;
+    }
+}
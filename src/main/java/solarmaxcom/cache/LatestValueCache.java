@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * Holds the latest DeviceSnapshot of every device. The poller publishes a new immutable snapshot
+ * after each cycle by swapping a reference; readers never block and always see the values of a
+ * single cycle together.
+ */
+public final class LatestValueCache {
+
+    private final ConcurrentHashMap<Integer, AtomicReference<DeviceSnapshot>> devices = new ConcurrentHashMap<>();
+
+    /**
+     * Merges the reply of a poll cycle into the snapshot of the device.
+     */
+    public DeviceSnapshot update(int device, long cycle, long timestamp, Map<Keys.Key, String> reply) {
+        return update(device, cycle, timestamp, reply, Collections.emptyMap());
+    }
+
+    /**
+     * Merges the reply of a poll cycle with the sample time of each value into the snapshot of
+     * the device; values without a sample time get the timestamp of the cycle.
+     */
+    public DeviceSnapshot update(int device, long cycle, long timestamp, Map<Keys.Key, String> reply,
+            Map<Keys.Key, Long> sampleTimes) {
+        AtomicReference<DeviceSnapshot> ref = devices.get(device);
+        if (ref == null) {
+            // publish the first snapshot together with the reference, so get() never sees an empty one
+            DeviceSnapshot first = DeviceSnapshot.empty(device).with(cycle, timestamp, reply, sampleTimes);
+            ref = devices.putIfAbsent(device, new AtomicReference<>(first));
+            if (ref == null) {
+                return first;
+            }
+        }
+        while (true) {
+            DeviceSnapshot current = ref.get();
+            DeviceSnapshot next = current.with(cycle, timestamp, reply, sampleTimes);
+            if (ref.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Returns the latest snapshot of a device, or null if it has not been polled yet.
+     */
+    public DeviceSnapshot get(int device) {
+        AtomicReference<DeviceSnapshot> ref = devices.get(device);
+        return (ref == null) ? null : ref.get();
+    }
+
+    /**
+     * Returns the latest snapshots of all devices, ordered by device address.
+     */
+    public List<DeviceSnapshot> getAll() {
+        ArrayList<DeviceSnapshot> snapshots = new ArrayList<>();
+        for (AtomicReference<DeviceSnapshot> ref : devices.values()) {
+            snapshots.add(ref.get());
+        }
+        snapshots.sort((a, b) -> Integer.compare(a.device, b.device));
+        return snapshots;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.capture;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the frames of a capture file written by a CaptureWriter.
+ */
+public class CaptureReader implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CaptureReader.class);
+
+    private static final int MAX_FRAME_LENGTH = 1 << 16;
+
+    private final DataInputStream in;
+    private long timestamp;
+
+    public CaptureReader(Path path) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+        if (in.readInt() != CaptureWriter.MAGIC) {
+            in.close();
+            throw new IOException(path + " is not a capture file.");
+        }
+        int version = in.readUnsignedByte();
+        if (version != CaptureWriter.VERSION) {
+            in.close();
+            throw new IOException("Unsupported version " + version + " of capture file " + path);
+        }
+        timestamp = in.readLong();
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint in capture file.");
+    }
+
+    /**
+     * Returns the next frame, or null at the end of the file. A truncated last record, as left
+     * behind when the capturing process was killed, is treated as the end of the file.
+     */
+    public Frame next() throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        try {
+            if (type >= Frame.Type.values().length) {
+                throw new IOException("Invalid record type " + type + " in capture file.");
+            }
+            timestamp += readVarint();
+            if (type == Frame.Type.CYCLE.ordinal()) {
+                return new Frame(Frame.Type.CYCLE, timestamp, (int) readVarint(), null);
+            }
+            long length = readVarint();
+            if (length > MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length " + length + " in capture file.");
+            }
+            byte[] bytes = new byte[(int) length];
+            in.readFully(bytes);
+            return new Frame(Frame.Type.values()[type], timestamp, -1,
+                    new String(bytes, StandardCharsets.ISO_8859_1));
+        } catch (EOFException e) {
+            logger.warn("Capture file ends with a truncated record.");
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
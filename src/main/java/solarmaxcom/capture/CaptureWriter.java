@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * Writes raw frames to a capture file. The file starts with a header of the magic number, a
+ * version byte and the wall-clock time of the capture start in nanoseconds since the epoch.
+ * Each record consists of the type byte and the time since the previous record in nanoseconds
+ * as a varint, followed by the device (CYCLE) or the length and ISO-8859-1 bytes of the frame
+ * (REQUEST, REPLY), both as varints. Times are taken from System.nanoTime(), so they are
+ * monotonic and immune to clock adjustments; a typical record needs only a few bytes more than
+ * the frame itself.
+ */
+public class CaptureWriter implements Closeable {
+
+    static final int MAGIC = 0x534D5843;
+    static final int VERSION = 1;
+
+    private final DataOutputStream out;
+    private long lastNanos;
+
+    public CaptureWriter(Path path) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+        Instant now = Instant.now();
+        lastNanos = System.nanoTime();
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(now.getEpochSecond() * 1_000_000_000L + now.getNano());
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private void writeHeader(Frame.Type type) throws IOException {
+        long now = System.nanoTime();
+        out.writeByte(type.ordinal());
+        writeVarint(Math.max(0, now - lastNanos));
+        lastNanos = now;
+    }
+
+    /**
+     * Marks the start of a poll cycle; the captured data is flushed to the file at this point.
+     */
+    public synchronized void cycle(int device) throws IOException {
+        out.flush();
+        writeHeader(Frame.Type.CYCLE);
+        writeVarint(device);
+    }
+
+    public synchronized void request(String frame) throws IOException {
+        writeFrame(Frame.Type.REQUEST, frame);
+    }
+
+    public synchronized void reply(String frame) throws IOException {
+        writeFrame(Frame.Type.REPLY, frame);
+    }
+
+    private void writeFrame(Frame.Type type, String frame) throws IOException {
+        byte[] bytes = frame.getBytes(StandardCharsets.ISO_8859_1);
+        writeHeader(type);
+        writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
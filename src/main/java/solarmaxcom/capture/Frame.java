@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.capture;
+
+/**
+ * A record of a capture file: a raw frame sent to or received from the bus, or the start of a
+ * poll cycle.
+ */
+public final class Frame {
+
+    public enum Type {
+        /** start of a poll cycle; {@link #device} is the polled device */
+        CYCLE,
+        /** a request sent to the bus */
+        REQUEST,
+        /** a reply received from the bus; empty if the request timed out */
+        REPLY
+    }
+
+    public final Type type;
+
+    /** nanoseconds since the epoch */
+    public final long timestamp;
+
+    /** the polled device for CYCLE records, otherwise -1 */
+    public final int device;
+
+    /** the raw frame for REQUEST and REPLY records, otherwise null */
+    public final String data;
+
+    public Frame(Type type, long timestamp, int device, String data) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.device = device;
+        this.data = data;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + timestamp + " " + ((data == null) ? device : "'" + data + "'");
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.capture;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.metrics.BusMetrics;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.protocol.Packet;
+
+/**
+ * Feeds the replies of a capture file through Packet.parse() and hands the results of each
+ * captured poll cycle to a consumer, as if they had just been received from the bus. Replay
+ * runs either with the captured timing, optionally sped up, or as fast as possible.
+ */
+public class Replayer {
+
+    private static final Logger logger = LoggerFactory.getLogger(Replayer.class);
+
+    /**
+     * Receives the results of a replayed poll cycle.
+     */
+    public interface CycleConsumer {
+        /**
+         * @param timestamp the captured time in milliseconds at which the poll cycle finished
+         */
+        void accept(int device, long timestamp, Map<Keys.Key, String> reply);
+    }
+
+    /**
+     * Statistics of a replay run.
+     */
+    public static final class Result {
+        public final long cycles;
+        public final long frames;
+        public final long bytes;
+        public final long parseErrors;
+        public final long elapsedNanos;
+
+        Result(long cycles, long frames, long bytes, long parseErrors, long elapsedNanos) {
+            this.cycles = cycles;
+            this.frames = frames;
+            this.bytes = bytes;
+            this.parseErrors = parseErrors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1e9;
+            return String.format("%d cycles, %d frames, %d bytes, %d parse errors in %.3f s (%.0f frames/s)",
+                    cycles, frames, bytes, parseErrors, seconds, (seconds > 0) ? frames / seconds : 0.0);
+        }
+    }
+
+    private final Path path;
+    private final double speed;
+
+    /**
+     * @param speed 1 to replay in real time, 2 for twice as fast, etc.; 0 replays as fast as
+     * possible
+     */
+    public Replayer(Path path, double speed) {
+        this.path = path;
+        this.speed = speed;
+    }
+
+    public Result run(CycleConsumer consumer) throws IOException, InterruptedException {
+        BusMetrics metrics = BusMetrics.INSTANCE;
+        long cycles = 0, frames = 0, bytes = 0, parseErrors = 0;
+        long start = System.nanoTime();
+        long firstTimestamp = -1;
+
+        int device = -1;
+        long lastTimestamp = 0;
+        HashMap<Keys.Key, String> reply = new HashMap<>();
+
+        try (CaptureReader reader = new CaptureReader(path)) {
+            Frame frame;
+            while ((frame = reader.next()) != null) {
+                if (firstTimestamp == -1) {
+                    firstTimestamp = frame.timestamp;
+                }
+                if (speed > 0) {
+                    long due = start + (long) ((frame.timestamp - firstTimestamp) / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+
+                switch (frame.type) {
+                    case CYCLE:
+                        if (device != -1) {
+                            consumer.accept(device, lastTimestamp / 1_000_000, reply);
+                            cycles++;
+                            reply = new HashMap<>();
+                        }
+                        device = frame.device;
+                        break;
+                    case REQUEST:
+                        frames++;
+                        bytes += frame.data.length();
+                        break;
+                    case REPLY:
+                        frames++;
+                        bytes += frame.data.length();
+                        if (!frame.data.isEmpty()) {
+                            try {
+                                long parseStart = System.nanoTime();
+                                Packet packet = Packet.parse(frame.data);
+                                metrics.parseTime.recordSince(parseStart);
+                                reply.putAll(packet.payload);
+                            } catch (Packet.ParseException e) {
+                                metrics.parseError(e.kind);
+                                parseErrors++;
+                                logger.warn("Could not parse packet: " + e);
+                            }
+                        }
+                        break;
+                }
+                lastTimestamp = frame.timestamp;
+            }
+        }
+
+        if (device != -1) {
+            consumer.accept(device, lastTimestamp / 1_000_000, reply);
+            cycles++;
+        }
+        return new Result(cycles, frames, bytes, parseErrors, System.nanoTime() - start);
+    }
+}
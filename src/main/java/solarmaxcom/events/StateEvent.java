@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.events;
+
+import java.time.Instant;
+import solarmaxcom.Format;
+import solarmaxcom.Json;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * A confirmed change of the status, the alarms or the error history of a device. The old and new
+ * values are the raw (encoded) values of the key; oldValue is null for the first value seen.
+ */
+public final class StateEvent {
+
+    public enum Kind {
+        STATUS_CHANGED("status changed"),
+        ALARM_RAISED("alarm raised"),
+        ALARM_CLEARED("alarm cleared"),
+        NEW_ERROR("new error");
+
+        public final String label;
+
+        Kind(String label) {
+            this.label = label;
+        }
+    }
+
+    public final int device;
+    /** time in milliseconds of the poll cycle which confirmed the change */
+    public final long timestamp;
+    public final Kind kind;
+    public final Keys.DataKey<?> key;
+    public final String oldValue;
+    public final String newValue;
+    /** what happened: the new status, the alarm raised or cleared, or the new error code */
+    public final String text;
+
+    public StateEvent(int device, long timestamp, Kind kind, Keys.DataKey<?> key, String oldValue,
+            String newValue, String text) {
+        this.device = device;
+        this.timestamp = timestamp;
+        this.kind = kind;
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+        this.text = text;
+    }
+
+    private String decode(String value) {
+        if (value == null) {
+            return null;
+        }
+        String decoded = Format.text(key, value);
+        return (decoded == null) ? value : decoded;
+    }
+
+    public String toJson() {
+        StringBuilder s = new StringBuilder();
+        s.append("{\"device\":").append(device);
+        s.append(",\"time\":");
+        Json.appendString(s, Instant.ofEpochMilli(timestamp).toString());
+        s.append(",\"event\":");
+        Json.appendString(s, kind.label);
+        s.append(",\"key\":");
+        Json.appendString(s, key.key);
+        s.append(",\"old\":");
+        Json.appendString(s, decode(oldValue));
+        s.append(",\"new\":");
+        Json.appendString(s, decode(newValue));
+        s.append(",\"text\":");
+        Json.appendString(s, text);
+        s.append('}');
+        return s.toString();
+    }
+
+    @Override
+    public String toString() {
+        return key.key + " " + kind.label + ": " + text + " (" + decode(oldValue) + " -> " + decode(newValue) + ")";
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.events;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.Format;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * Turns the status (SYS), alarm (SAL) and error history (EC01..EC08) values of each poll cycle
+ * into StateEvents. The last confirmed raw code is kept per device and key; a different code only
+ * replaces it after it has been received in <code>debounce</code> consecutive cycles, so a single
+ * odd reply does not raise and clear an alarm. Cycles in which a key is missing do not count.
+ * <p>
+ * The first confirmed status and the alarms active at that time are reported with an old value of
+ * null; the error history already present is not. EC01 holds the most recent error: when the
+ * confirmed history equals the previous one moved down by one entry, only the newest entry is
+ * reported, even if it repeats the error before it or EC01 is not requested.
+ */
+public class TransitionDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransitionDetector.class);
+
+    public static final int DEFAULT_DEBOUNCE = 2;
+
+    private static final List<Keys.IntegerKey> ERROR_KEYS = Arrays.asList(
+            Keys.ERROR_CODE_1, Keys.ERROR_CODE_2, Keys.ERROR_CODE_3, Keys.ERROR_CODE_4,
+            Keys.ERROR_CODE_5, Keys.ERROR_CODE_6, Keys.ERROR_CODE_7, Keys.ERROR_CODE_8);
+
+    /** the confirmed and the pending code of one key */
+    private static final class Tracked {
+        String confirmed = null;
+        int confirmedCode;
+        String pending = null;
+        int pendingCode;
+        int pendingCount;
+    }
+
+    private final int debounce;
+    private final HashMap<Integer, HashMap<Keys.Key, Tracked>> devices = new HashMap<>();
+
+    /**
+     * @param debounce number of consecutive cycles in which a new code must be received
+     */
+    public TransitionDetector(int debounce) {
+        if (debounce < 1) {
+            throw new IllegalArgumentException("debounce must be at least 1");
+        }
+        this.debounce = debounce;
+    }
+
+    /**
+     * Processes the reply of a poll cycle and returns the events it confirmed.
+     */
+    public synchronized List<StateEvent> add(int device, long timestamp, Map<Keys.Key, String> reply) {
+        if (reply.isEmpty()) {
+            return Collections.emptyList();
+        }
+        HashMap<Keys.Key, Tracked> state = devices.computeIfAbsent(device, d -> new HashMap<>());
+        ArrayList<StateEvent> events = new ArrayList<>(0);
+
+        Tracked status = update(state, Keys.SYSTEM_STATUS, reply);
+        if (status != null) {
+            String old = status.confirmed;
+            confirm(status);
+            events.add(new StateEvent(device, timestamp, StateEvent.Kind.STATUS_CHANGED, Keys.SYSTEM_STATUS,
+                    old, status.confirmed, text(Keys.SYSTEM_STATUS, status.confirmed)));
+        }
+
+        Tracked alarms = update(state, Keys.SYSTEM_ALARMS, reply);
+        if (alarms != null) {
+            String old = alarms.confirmed;
+            int oldCode = (old == null) ? 0 : alarms.confirmedCode;
+            confirm(alarms);
+            int raised = alarms.confirmedCode & ~oldCode;
+            int cleared = oldCode & ~alarms.confirmedCode;
+            for (int bit = 0; bit < 32; bit++) {
+                int mask = 1 << bit;
+                if ((raised & mask) != 0 || (cleared & mask) != 0) {
+                    String text = text(Keys.SYSTEM_ALARMS, Integer.toHexString(mask).toUpperCase());
+                    events.add(new StateEvent(device, timestamp,
+                            ((raised & mask) != 0) ? StateEvent.Kind.ALARM_RAISED : StateEvent.Kind.ALARM_CLEARED,
+                            Keys.SYSTEM_ALARMS, old, alarms.confirmed, text.isEmpty() ? "Alarm bit " + bit : text));
+                }
+            }
+        }
+
+        Integer[] before = errorCodes(state);
+        String[] oldValues = new String[ERROR_KEYS.size()];
+        ArrayList<Integer> changed = new ArrayList<>(0);
+        for (int i = 0; i < ERROR_KEYS.size(); i++) {
+            Tracked error = update(state, ERROR_KEYS.get(i), reply);
+            Tracked known = state.get(ERROR_KEYS.get(i));
+            oldValues[i] = (known == null) ? null : known.confirmed;
+            if (error != null) {
+                confirm(error);
+                changed.add(i);
+            }
+        }
+        if (!changed.isEmpty()) {
+            Integer[] after = errorCodes(state);
+            if (isShift(before, after)) {
+                // a single new error, possibly a repetition of the previous one, pushed the older
+                // entries down; only the newest entry is reported
+                for (int i = 0; i < ERROR_KEYS.size(); i++) {
+                    if (after[i] != null) {
+                        addError(events, device, timestamp, state, i, oldValues[i]);
+                        break;
+                    }
+                }
+            } else {
+                for (int i : changed) {
+                    addError(events, device, timestamp, state, i, oldValues[i]);
+                }
+            }
+        }
+
+        for (StateEvent event : events) {
+            logger.debug("Device " + device + ": " + event);
+        }
+        return events;
+    }
+
+    /** returns the confirmed codes of EC01..EC08, null where none is confirmed yet */
+    private static Integer[] errorCodes(HashMap<Keys.Key, Tracked> state) {
+        Integer[] codes = new Integer[ERROR_KEYS.size()];
+        for (int i = 0; i < codes.length; i++) {
+            Tracked tracked = state.get(ERROR_KEYS.get(i));
+            codes[i] = (tracked == null || tracked.confirmed == null) ? null : tracked.confirmedCode;
+        }
+        return codes;
+    }
+
+    /**
+     * Checks whether the error history has moved down by one entry, i.e. whether every entry known
+     * in both lists equals the entry above it in the old list.
+     */
+    private static boolean isShift(Integer[] before, Integer[] after) {
+        boolean compared = false;
+        for (int i = 0; i + 1 < after.length; i++) {
+            if (before[i] != null && after[i + 1] != null) {
+                if (!before[i].equals(after[i + 1])) {
+                    return false;
+                }
+                compared = true;
+            }
+        }
+        return compared;
+    }
+
+    private void addError(List<StateEvent> events, int device, long timestamp, HashMap<Keys.Key, Tracked> state,
+            int index, String old) {
+        Keys.IntegerKey key = ERROR_KEYS.get(index);
+        Tracked error = state.get(key);
+        if (old != null && error.confirmedCode != 0) {
+            events.add(new StateEvent(device, timestamp, StateEvent.Kind.NEW_ERROR, key,
+                    old, error.confirmed, text(key, error.confirmed)));
+        }
+    }
+
+    /**
+     * Records the value of a key in the reply and returns its Tracked state if a new code is
+     * confirmed by it, or null otherwise.
+     */
+    private Tracked update(HashMap<Keys.Key, Tracked> state, Keys.DataKey<?> key, Map<Keys.Key, String> reply) {
+        String value = reply.get(key);
+        if (value == null) {
+            return null;
+        }
+        int code;
+        try {
+            code = Integer.parseInt(value, 16);
+        } catch (NumberFormatException e) {
+            logger.debug("Ignoring invalid value of " + key + ": " + value);
+            return null;
+        }
+        Tracked tracked = state.computeIfAbsent(key, k -> new Tracked());
+        if (tracked.confirmed != null && code == tracked.confirmedCode) {
+            tracked.pending = null;
+            return null;
+        }
+        if (tracked.pending != null && code == tracked.pendingCode) {
+            tracked.pendingCount++;
+        } else {
+            tracked.pending = value;
+            tracked.pendingCode = code;
+            tracked.pendingCount = 1;
+        }
+        return (tracked.pendingCount >= debounce) ? tracked : null;
+    }
+
+    private static void confirm(Tracked tracked) {
+        tracked.confirmed = tracked.pending;
+        tracked.confirmedCode = tracked.pendingCode;
+        tracked.pending = null;
+    }
+
+    private static String text(Keys.DataKey<?> key, String value) {
+        String text = Format.text(key, value);
+        return (text == null) ? value : text;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.fleet;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import solarmaxcom.PipelinedTcpComm;
+import solarmaxcom.TcpComm;
+import solarmaxcom.Transport;
+
+/**
+ * A TCP endpoint, i.e. a SolarMax device with an Ethernet interface and the devices connected to
+ * it via RS485. At most <code>concurrency</code> requests are sent to the endpoint at the same time,
+ * each on its own connection; further requests block until a connection is free. With a pipeline
+ * depth of more than one, each connection is a PipelinedTcpComm which accepts up to that many
+ * requests at the same time, and a Poller sends the packets of a cycle without waiting for the
+ * replies of the previous ones.
+ */
+public class Endpoint implements Transport {
+
+    public final InetSocketAddress address;
+    private final ArrayList<Transport> connections = new ArrayList<>();
+    private final ArrayBlockingQueue<Transport> idle;
+
+    public Endpoint(InetSocketAddress address, int concurrency, int timeout) {
+        this(address, concurrency, timeout, 1);
+    }
+
+    /**
+     * @param pipelineDepth maximum number of requests in flight per connection
+     */
+    public Endpoint(InetSocketAddress address, int concurrency, int timeout, int pipelineDepth) {
+        this.address = address;
+        int permits = concurrency * pipelineDepth;
+        idle = new ArrayBlockingQueue<>(permits);
+        for (int i = 0; i < concurrency; i++) {
+            Transport connection = (pipelineDepth > 1)
+                    ? new PipelinedTcpComm(address, pipelineDepth, timeout)
+                    : new TcpComm(address, timeout);
+            connections.add(connection);
+        }
+        // every connection is handed out pipelineDepth times, in turns
+        for (int i = 0; i < permits; i++) {
+            idle.add(connections.get(i % concurrency));
+        }
+    }
+
+    @Override
+    public String makeRequest(String message) {
+        Transport connection;
+        try {
+            connection = idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "";
+        }
+        try {
+            return connection.makeRequest(message);
+        } finally {
+            idle.add(connection);
+        }
+    }
+
+    /**
+     * Returns the largest current pipeline depth of the connections.
+     */
+    @Override
+    public int getPipelineDepth() {
+        int depth = 1;
+        for (Transport connection : connections) {
+            depth = Math.max(depth, connection.getPipelineDepth());
+        }
+        return depth;
+    }
+
+    /**
+     * Hands the request to a free connection, which is only free again once the reply has arrived.
+     */
+    @Override
+    public CompletableFuture<String> sendRequest(String message) {
+        Transport connection;
+        try {
+            connection = idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.completedFuture("");
+        }
+        try {
+            return connection.sendRequest(message).whenComplete((reply, e) -> idle.add(connection));
+        } catch (RuntimeException e) {
+            idle.add(connection);
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Transport connection : connections) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return address.getHostString() + ":" + address.getPort();
+    }
+}
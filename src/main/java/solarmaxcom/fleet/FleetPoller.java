@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.fleet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.Poller;
+import solarmaxcom.cache.LatestValueCache;
+import solarmaxcom.flow.ReadingPublisher;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.tuning.Tuning;
+
+/**
+ * Polls many devices at a fixed rate, each device in its own (virtual, if available) thread with
+ * simple blocking request code. The concurrency per TCP endpoint is limited by the Endpoint. The
+ * start of the devices is spread over the first period so that the requests do not arrive in
+ * bursts. Each device has an id, unique across all endpoints, under which its values are published;
+ * the bus addresses of devices behind different endpoints may be the same.
+ */
+public class FleetPoller {
+
+    private static final Logger logger = LoggerFactory.getLogger(FleetPoller.class);
+
+    /**
+     * Receives the results of each poll cycle; called concurrently from the polling threads.
+     */
+    public interface Listener {
+        /**
+         * @param sampleTimes the time at which each value was sampled, see Poller.getSampleTimes()
+         */
+        void cycleFinished(int device, long cycle, long timestamp, Map<Keys.Key, String> reply,
+                Map<Keys.Key, Long> sampleTimes);
+    }
+
+    private static final class Device {
+        final Endpoint endpoint;
+        final int address;
+        final int id;
+
+        Device(Endpoint endpoint, int address, int id) {
+            this.endpoint = endpoint;
+            this.address = address;
+            this.id = id;
+        }
+    }
+
+    private final LatestValueCache cache;
+    private final List<Keys.Key> keys;
+    private final long period;
+    private final Listener listener;
+    private final ArrayList<Device> devices = new ArrayList<>();
+    private final ArrayList<Thread> threads = new ArrayList<>();
+    private ReadingPublisher publisher = null;
+    private Tuning tuning = null;
+    private volatile boolean running = false;
+
+    private final LongAdder cycles = new LongAdder();
+    private final LongAdder missedCycles = new LongAdder();
+
+    /**
+     * @param period time between the starts of two poll cycles of a device in milliseconds
+     */
+    public FleetPoller(LatestValueCache cache, Collection<Keys.Key> keys, long period, Listener listener) {
+        this.cache = cache;
+        this.keys = new ArrayList<>(keys);
+        this.period = period;
+        this.listener = listener;
+    }
+
+    /**
+     * Publishes the readings of all devices with the given ReadingPublisher; must be called
+     * before start().
+     */
+    public void setPublisher(ReadingPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+    /**
+     * Tunes the number of keys per request for each device type; must be called before start().
+     */
+    public void setTuning(Tuning tuning) {
+        this.tuning = tuning;
+    }
+
+    public void addDevice(Endpoint endpoint, int address) {
+        addDevice(endpoint, address, address);
+    }
+
+    public void addDevice(Endpoint endpoint, int address, int id) {
+        if (address < 0 || address > 255) {
+            throw new IllegalArgumentException("Invalid device address " + address);
+        }
+        for (Device device : devices) {
+            if (device.id == id) {
+                throw new IllegalArgumentException("Duplicate device id " + id);
+            }
+        }
+        devices.add(new Device(endpoint, address, id));
+    }
+
+    /**
+     * Returns the number of finished poll cycles of all devices.
+     */
+    public long getCycles() {
+        return cycles.sum();
+    }
+
+    /**
+     * Returns the number of poll cycles which were skipped because the previous cycle of the
+     * device took longer than the period.
+     */
+    public long getMissedCycles() {
+        return missedCycles.sum();
+    }
+
+    public void start() {
+        running = true;
+        ThreadFactory factory = Threads.factory("fleet-");
+        long start = System.nanoTime();
+        long periodNanos = TimeUnit.MILLISECONDS.toNanos(period);
+        for (int i = 0; i < devices.size(); i++) {
+            Device device = devices.get(i);
+            long offset = periodNanos * i / devices.size();
+            Thread thread = factory.newThread(() -> run(device, start + offset, periodNanos));
+            threads.add(thread);
+            thread.start();
+        }
+        logger.info("Polling " + devices.size() + " devices every " + period + " ms");
+    }
+
+    public void stop() {
+        running = false;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        threads.clear();
+    }
+
+    private void run(Device device, long next, long periodNanos) {
+        Poller poller = new Poller(device.endpoint, cache);
+        poller.setPublisher(publisher);
+        poller.setTuning(tuning);
+        try {
+            while (running) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                Map<Keys.Key, String> reply = poller.poll(device.address, device.id, keys);
+                if (!running) {
+                    // the cycle may have been cut short by stop()
+                    break;
+                }
+                cycles.increment();
+                if (listener != null) {
+                    listener.cycleFinished(device.id, poller.getCycle(), poller.getCycleTimestamp(), reply,
+                            poller.getSampleTimes());
+                }
+
+                next += periodNanos;
+                long now = System.nanoTime();
+                if (now - next > 0) {
+                    long missed = (now - next) / periodNanos + 1;
+                    missedCycles.add(missed);
+                    next += missed * periodNanos;
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.debug("Polling of device " + device.id + " stopped");
+        } catch (RuntimeException e) {
+            logger.error("Polling of device " + device.id + " failed: " + e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.fleet;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates virtual threads if the Java runtime supports them (Java 21 and newer), and platform
+ * threads with a small stack otherwise. Virtual threads are looked up by reflection so that the
+ * project still builds and runs on Java 11.
+ */
+final class Threads {
+
+    private static final Logger logger = LoggerFactory.getLogger(Threads.class);
+
+    /** Stack size of platform threads; the polling code needs very little. */
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    private Threads() {
+    }
+
+    static ThreadFactory factory(String prefix) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            logger.debug("Using virtual threads");
+            return factory;
+        } catch (ReflectiveOperationException e) {
+            logger.debug("Virtual threads not available, using platform threads");
+            AtomicInteger count = new AtomicInteger();
+            return r -> {
+                Thread thread = new Thread(null, r, prefix + count.getAndIncrement(), PLATFORM_STACK_SIZE);
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+}
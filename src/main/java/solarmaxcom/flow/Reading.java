@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.flow;
+
+import solarmaxcom.protocol.Keys;
+
+/**
+ * A single value received from a device.
+ */
+public final class Reading {
+
+    public final int device;
+    public final long cycle;
+    /** time in milliseconds at which the value was received */
+    public final long timestamp;
+    public final Keys.Key key;
+    /** the raw (encoded) value */
+    public final String value;
+
+    public Reading(int device, long cycle, long timestamp, Keys.Key key, String value) {
+        this.device = device;
+        this.cycle = cycle;
+        this.timestamp = timestamp;
+        this.key = key;
+        this.value = value;
+    }
+
+    /**
+     * Returns the value as a number, or null if the key is not numeric or the value cannot be
+     * decoded.
+     */
+    public Double getNumber() {
+        if (!(key instanceof Keys.DataKey)) {
+            return null;
+        }
+        try {
+            return ((Keys.DataKey<?>) key).decodeNumber(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return device + " " + key.key + "=" + value + " @" + timestamp;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.flow;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.LongAdder;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * Publishes the results of poll cycles as a stream of Readings. Publishing never blocks the
+ * poller: each subscriber has its own queue from which readings are delivered on an Executor as
+ * the subscriber requests them. What happens if a subscriber is slower than the poller is chosen
+ * per subscriber, see {@link Overflow}.
+ */
+public class ReadingPublisher implements Flow.Publisher<Reading> {
+
+    /**
+     * What to do with readings which a subscriber has not requested yet.
+     */
+    public enum Overflow {
+        /** keep only the latest reading of each device and key */
+        CONFLATE,
+        /** keep up to a limit of readings; if the buffer is full, the oldest reading is dropped */
+        BUFFER
+    }
+
+    public static final int DEFAULT_BUFFER_LIMIT = Flow.defaultBufferSize();
+
+    private final Executor executor;
+    private final CopyOnWriteArrayList<ReadingSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
+    final LongAdder dropped = new LongAdder();
+
+    public ReadingPublisher() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ReadingPublisher(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Subscribes with a buffer of DEFAULT_BUFFER_LIMIT readings.
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super Reading> subscriber) {
+        subscribe(subscriber, Overflow.BUFFER, DEFAULT_BUFFER_LIMIT);
+    }
+
+    /**
+     * @param limit the maximum number of buffered readings; ignored for CONFLATE
+     */
+    public void subscribe(Flow.Subscriber<? super Reading> subscriber, Overflow overflow, int limit) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        ReadingSubscription subscription = new ReadingSubscription(this, subscriber, executor, overflow, limit);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        if (closed) {
+            subscription.complete();
+        }
+    }
+
+    void remove(ReadingSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * Returns the number of readings which were dropped, or replaced by newer ones, because a
+     * subscriber had not requested them in time.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Publishes the reply of a poll cycle; values which are null, e.g. for commands, are skipped.
+     */
+    public void publish(int device, long cycle, long timestamp, Map<Keys.Key, String> reply) {
+        publish(device, cycle, timestamp, reply, Collections.emptyMap());
+    }
+
+    /**
+     * Publishes the reply of a poll cycle with the sample time of each value; values without a
+     * sample time get the timestamp of the cycle.
+     */
+    public void publish(int device, long cycle, long timestamp, Map<Keys.Key, String> reply,
+            Map<Keys.Key, Long> sampleTimes) {
+        if (subscriptions.isEmpty() || closed) {
+            return;
+        }
+        for (Map.Entry<Keys.Key, String> e : reply.entrySet()) {
+            if (e.getValue() != null) {
+                Long time = sampleTimes.get(e.getKey());
+                publish(new Reading(device, cycle, (time == null) ? timestamp : time, e.getKey(), e.getValue()));
+            }
+        }
+    }
+
+    public void publish(Reading reading) {
+        for (ReadingSubscription subscription : subscriptions) {
+            subscription.offer(reading);
+        }
+    }
+
+    /**
+     * Completes all subscriptions after their pending readings have been delivered.
+     */
+    public void close() {
+        closed = true;
+        for (ReadingSubscription subscription : subscriptions) {
+            subscription.complete();
+        }
+    }
+}
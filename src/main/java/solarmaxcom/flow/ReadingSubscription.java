@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.flow;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The subscription of one subscriber of a ReadingPublisher. Readings are queued under a lock and
+ * delivered by at most one drain task at a time on the executor, so the subscriber is never
+ * called concurrently.
+ */
+final class ReadingSubscription implements Flow.Subscription, Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadingSubscription.class);
+
+    private final ReadingPublisher publisher;
+    private final Flow.Subscriber<? super Reading> subscriber;
+    private final Executor executor;
+    private final ReadingPublisher.Overflow overflow;
+    private final int limit;
+
+    private final ArrayDeque<Reading> buffer = new ArrayDeque<>();
+    private final LinkedHashMap<Long, Reading> latest = new LinkedHashMap<>();
+    private long demand = 0;
+    private boolean cancelled = false;
+    private boolean completed = false;
+    private boolean terminated = false;
+    private Throwable error = null;
+
+    private final AtomicInteger wip = new AtomicInteger();
+
+    ReadingSubscription(ReadingPublisher publisher, Flow.Subscriber<? super Reading> subscriber,
+            Executor executor, ReadingPublisher.Overflow overflow, int limit) {
+        this.publisher = publisher;
+        this.subscriber = subscriber;
+        this.executor = executor;
+        this.overflow = overflow;
+        this.limit = limit;
+    }
+
+    void offer(Reading reading) {
+        synchronized (this) {
+            if (cancelled || completed) {
+                return;
+            }
+            if (overflow == ReadingPublisher.Overflow.CONFLATE) {
+                if (latest.put(((long) reading.device << 32) | reading.key.ordinal, reading) != null) {
+                    publisher.dropped.increment();
+                }
+            } else {
+                if (buffer.size() >= limit) {
+                    buffer.poll();
+                    publisher.dropped.increment();
+                }
+                buffer.add(reading);
+            }
+        }
+        schedule();
+    }
+
+    void complete() {
+        synchronized (this) {
+            completed = true;
+        }
+        schedule();
+    }
+
+    @Override
+    public void request(long n) {
+        synchronized (this) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("non-positive request: " + n);
+            } else {
+                demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n;
+            }
+        }
+        schedule();
+    }
+
+    @Override
+    public void cancel() {
+        synchronized (this) {
+            cancelled = true;
+            buffer.clear();
+            latest.clear();
+        }
+        publisher.remove(this);
+    }
+
+    private void schedule() {
+        if (wip.getAndIncrement() == 0) {
+            executor.execute(this);
+        }
+    }
+
+    private Reading next() {
+        if (overflow == ReadingPublisher.Overflow.CONFLATE) {
+            Iterator<Reading> it = latest.values().iterator();
+            if (!it.hasNext()) {
+                return null;
+            }
+            Reading reading = it.next();
+            it.remove();
+            return reading;
+        } else {
+            return buffer.poll();
+        }
+    }
+
+    @Override
+    public void run() {
+        int missed = 1;
+        do {
+            while (true) {
+                Reading reading;
+                boolean done = false;
+                Throwable failure = null;
+                synchronized (this) {
+                    if (cancelled || terminated) {
+                        break;
+                    }
+                    if (error != null) {
+                        failure = error;
+                        reading = null;
+                    } else {
+                        reading = (demand > 0) ? next() : null;
+                        if (reading != null) {
+                            if (demand != Long.MAX_VALUE) {
+                                demand--;
+                            }
+                        } else if (completed && buffer.isEmpty() && latest.isEmpty()) {
+                            done = true;
+                        }
+                    }
+                    if (failure != null || done) {
+                        terminated = true;
+                    }
+                }
+                if (failure != null) {
+                    publisher.remove(this);
+                    subscriber.onError(failure);
+                    break;
+                } else if (done) {
+                    publisher.remove(this);
+                    subscriber.onComplete();
+                    break;
+                } else if (reading == null) {
+                    break;
+                }
+                try {
+                    subscriber.onNext(reading);
+                } catch (RuntimeException e) {
+                    logger.warn("Subscriber failed, cancelling its subscription: " + e);
+                    cancel();
+                    break;
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.gateway;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.Transport;
+import solarmaxcom.cache.DeviceSnapshot;
+import solarmaxcom.cache.LatestValueCache;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.protocol.Packet;
+
+/**
+ * A MaxComm gateway which lets many TCP clients, e.g. MaxTalk, share one bus. Request frames
+ * received from the clients are queued and sent one after the other by a single bus thread; each
+ * reply is routed back to the client which sent the request, in the order of its requests.
+ * Read requests for values which the gateway has seen on the bus within maxAge milliseconds are
+ * answered directly from its cache. All client connections are served by one selector thread.
+ * <p>
+ * Waiting requests are sent by Priority: commands (writes) first, then reads of the clients, then
+ * the requests of the local process, so that a client does not wait for a whole poll cycle. A
+ * lower class gets the bus after it has been passed over STARVATION_LIMIT times in a row.
+ * <p>
+ * The gateway is itself a Transport, so the local Poller can share the bus with the clients.
+ */
+public class Gateway implements Transport {
+
+    private static final Logger logger = LoggerFactory.getLogger(Gateway.class);
+
+    /** The length field of a frame has two hex digits, so no valid frame is longer. */
+    public static final int MAX_FRAME_LENGTH = Packet.MAX_LENGTH;
+
+    /** number of frames of higher priority after which a waiting lower priority frame is sent */
+    public static final int STARVATION_LIMIT = 4;
+
+    private final Transport bus;
+    private final long maxAge;
+    private final LatestValueCache cache = new LatestValueCache();
+    private final AtomicLong cycle = new AtomicLong();
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final PriorityLanes<Request> queue = new PriorityLanes<>(STARVATION_LIMIT);
+    private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<>();
+    private final Thread busThread = new Thread(this::runBus, "gateway-bus");
+    private final Thread selectorThread = new Thread(this::runSelector, "gateway-selector");
+    private volatile boolean running = true;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    /**
+     * A request waiting for the bus.
+     */
+    private static final class Request {
+        final String frame;
+        /** whether the reply can be used to answer later requests */
+        final boolean cacheable;
+        final CompletableFuture<String> reply = new CompletableFuture<>();
+
+        Request(String frame, boolean cacheable) {
+            this.frame = frame;
+            this.cacheable = cacheable;
+        }
+    }
+
+    /**
+     * State of a client connection; only accessed by the selector thread.
+     */
+    private static final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final StringBuilder in = new StringBuilder();
+        final ArrayDeque<CompletableFuture<String>> pending = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    /**
+     * @param maxAge maximum age in milliseconds of cached values used to answer requests; 0 to
+     * send all requests to the bus
+     */
+    public Gateway(InetSocketAddress address, Transport bus, long maxAge) throws IOException {
+        this.bus = bus;
+        this.maxAge = maxAge;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        busThread.setDaemon(true);
+        selectorThread.setDaemon(true);
+    }
+
+    public void start() {
+        busThread.start();
+        selectorThread.start();
+        logger.info("MaxComm gateway listening on port " + getPort());
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the number of requests received from clients.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the number of client requests which were answered from the cache.
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Sends a request of the local process to the bus, queued together with the client requests
+     * with background priority.
+     */
+    @Override
+    public String makeRequest(String message) {
+        return makeRequest(message, Priority.BACKGROUND);
+    }
+
+    /**
+     * Sends a request of the local process to the bus with the given priority.
+     */
+    public String makeRequest(String message, Priority priority) {
+        Request request = new Request(message, isCacheable(parse(message)));
+        queue.add(priority, request);
+        try {
+            return request.reply.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "";
+        } catch (ExecutionException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Stops the gateway and closes all client connections; the bus itself is not closed.
+     */
+    @Override
+    public void close() {
+        running = false;
+        busThread.interrupt();
+        selector.wakeup();
+        try {
+            busThread.join(5000);
+            selectorThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.reply.complete("");
+        }
+    }
+
+    private static Packet parse(String frame) {
+        try {
+            return Packet.parse(frame);
+        } catch (Packet.ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the priority of a client request: COMMAND for frames which set values, INTERACTIVE
+     * for all others.
+     */
+    static Priority priorityOf(Packet request) {
+        if (request == null) {
+            return Priority.INTERACTIVE;
+        }
+        if (request.port == Packet.PORT_COMMAND) {
+            return Priority.COMMAND;
+        }
+        for (String value : request.payload.values()) {
+            if (value != null) {
+                return Priority.COMMAND;
+            }
+        }
+        return Priority.INTERACTIVE;
+    }
+
+    private static boolean isCacheable(Packet request) {
+        if (request == null || request.port != Packet.PORT_USER_DATA || request.payload.isEmpty()) {
+            return false;
+        }
+        for (String value : request.payload.values()) {
+            if (value != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the reply to a read request from the cache, or returns null if not all requested
+     * values are fresh enough.
+     */
+    private String answerFromCache(Packet request) {
+        if (maxAge <= 0 || request.destination == Packet.ADR_BROADCAST) {
+            return null;
+        }
+        DeviceSnapshot snapshot = cache.get(request.destination);
+        if (snapshot == null) {
+            return null;
+        }
+        long oldest = System.currentTimeMillis() - maxAge;
+        Packet reply = new Packet();
+        reply.source = request.destination;
+        reply.destination = request.source;
+        reply.port = request.port;
+        for (Keys.Key key : request.payload.keySet()) {
+            String value = snapshot.getValue(key);
+            if (value == null || snapshot.getTimestamp(key) < oldest) {
+                return null;
+            }
+            reply.payload.put(key, value);
+        }
+        return reply.build();
+    }
+
+    private void runBus() {
+        while (running) {
+            Request request;
+            try {
+                request = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            String reply = "";
+            try {
+                reply = bus.makeRequest(request.frame);
+            } catch (RuntimeException e) {
+                logger.warn("Request '" + request.frame + "' failed: " + e);
+            }
+            // update the cache first, so that a request right after this one is answered from it
+            if (request.cacheable && !reply.isEmpty()) {
+                updateCache(reply);
+            }
+            request.reply.complete(reply);
+        }
+    }
+
+    private void updateCache(String reply) {
+        try {
+            Packet packet = Packet.parse(reply);
+            cache.update(packet.source, cycle.incrementAndGet(), System.currentTimeMillis(), packet.payload);
+        } catch (Packet.ParseException e) {
+            logger.debug("Not caching unparsable reply: " + e);
+        }
+    }
+
+    private void runSelector() {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        try {
+            while (running) {
+                selector.select();
+                Connection ready;
+                while ((ready = this.ready.poll()) != null) {
+                    flush(ready);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            read(connection, buffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Gateway stopped: " + e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.debug("Could not close selector: " + e);
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = server.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+            logger.info("Gateway client connected from " + channel.getRemoteAddress());
+        } catch (IOException e) {
+            logger.warn("Could not accept gateway client: " + e);
+        }
+    }
+
+    private void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            logger.debug("Could not close channel: " + e);
+        }
+    }
+
+    private void read(Connection connection, ByteBuffer buffer) {
+        int n;
+        buffer.clear();
+        try {
+            n = connection.channel.read(buffer);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n == -1) {
+            logger.info("Gateway client disconnected.");
+            closeQuietly(connection.key);
+            return;
+        }
+        connection.in.append(new String(buffer.array(), 0, n, StandardCharsets.ISO_8859_1));
+
+        StringBuilder in = connection.in;
+        while (true) {
+            int start = in.indexOf(Packet.STX);
+            if (start == -1) {
+                in.setLength(0);
+                break;
+            }
+            int end = in.indexOf(Packet.ETX, start);
+            if (end == -1) {
+                in.delete(0, start);
+                if (in.length() > MAX_FRAME_LENGTH) {
+                    logger.warn("Dropping overlong frame from gateway client.");
+                    in.delete(0, 1);
+                    continue;
+                }
+                break;
+            }
+            String frame = in.substring(start, end + 1);
+            in.delete(0, end + 1);
+            if (frame.length() > MAX_FRAME_LENGTH) {
+                logger.warn("Dropping overlong frame from gateway client.");
+            } else {
+                handle(connection, frame);
+            }
+        }
+    }
+
+    private void handle(Connection connection, String frame) {
+        requests.incrementAndGet();
+        Packet packet = parse(frame);
+        String cached = (isCacheable(packet)) ? answerFromCache(packet) : null;
+        CompletableFuture<String> reply;
+        if (cached != null) {
+            logger.debug("Answering '" + frame + "' from cache");
+            cacheHits.incrementAndGet();
+            reply = CompletableFuture.completedFuture(cached);
+        } else {
+            logger.debug("Queueing '" + frame + "'");
+            Request request = new Request(frame, isCacheable(packet));
+            queue.add(priorityOf(packet), request);
+            reply = request.reply;
+        }
+        connection.pending.add(reply);
+        reply.whenComplete((r, t) -> {
+            ready.add(connection);
+            selector.wakeup();
+        });
+    }
+
+    /**
+     * Moves the replies which are complete, in the order of the requests, to the output buffer.
+     */
+    private void flush(Connection connection) {
+        if (!connection.key.isValid()) {
+            return;
+        }
+        while (!connection.pending.isEmpty() && connection.pending.peek().isDone()) {
+            String reply = connection.pending.poll().getNow("");
+            if (!reply.isEmpty()) {
+                connection.out.add(ByteBuffer.wrap(reply.getBytes(StandardCharsets.ISO_8859_1)));
+            }
+        }
+        write(connection);
+    }
+
+    private void write(Connection connection) {
+        try {
+            while (!connection.out.isEmpty()) {
+                ByteBuffer head = connection.out.peek();
+                connection.channel.write(head);
+                if (head.hasRemaining()) {
+                    connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                connection.out.poll();
+            }
+            connection.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            logger.info("Gateway client disconnected: " + e);
+            closeQuietly(connection.key);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.gateway;
+
+/**
+ * The priority classes of requests waiting for the bus, from the highest to the lowest.
+ */
+public enum Priority {
+    /** commands which change settings of a device, e.g. a PORT_COMMAND frame */
+    COMMAND,
+    /** reads on behalf of a user waiting for the answer, e.g. from a gateway client */
+    INTERACTIVE,
+    /** continuous polling */
+    BACKGROUND
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.gateway;
+
+import java.util.ArrayDeque;
+
+/**
+ * A blocking queue with one FIFO lane per Priority. The next element is taken from the highest
+ * priority lane which is not empty, except that a lane which has been passed over starvationLimit
+ * times in a row while it was waiting goes first, so that background polling keeps a share of the
+ * bus even if it is saturated with requests of higher priority.
+ */
+final class PriorityLanes<T> {
+
+    private final ArrayDeque<T>[] lanes;
+    private final int[] skipped;
+    private final int starvationLimit;
+    private int size = 0;
+
+    @SuppressWarnings("unchecked")
+    PriorityLanes(int starvationLimit) {
+        this.starvationLimit = starvationLimit;
+        Priority[] priorities = Priority.values();
+        lanes = new ArrayDeque[priorities.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+        skipped = new int[priorities.length];
+    }
+
+    synchronized void add(Priority priority, T element) {
+        lanes[priority.ordinal()].add(element);
+        size++;
+        notifyAll();
+    }
+
+    /**
+     * Waits for an element and removes it.
+     */
+    synchronized T take() throws InterruptedException {
+        while (size == 0) {
+            wait();
+        }
+        return next();
+    }
+
+    /**
+     * Removes the next element, or returns null if all lanes are empty.
+     */
+    synchronized T poll() {
+        return (size == 0) ? null : next();
+    }
+
+    synchronized int size(Priority priority) {
+        return lanes[priority.ordinal()].size();
+    }
+
+    private T next() {
+        int chosen = -1;
+        for (int i = 0; i < lanes.length && chosen == -1; i++) {
+            if (!lanes[i].isEmpty() && skipped[i] >= starvationLimit) {
+                chosen = i;
+            }
+        }
+        for (int i = 0; i < lanes.length && chosen == -1; i++) {
+            if (!lanes[i].isEmpty()) {
+                chosen = i;
+            }
+        }
+        for (int i = 0; i < lanes.length; i++) {
+            skipped[i] = (i == chosen || lanes[i].isEmpty()) ? 0 : skipped[i] + 1;
+        }
+        size--;
+        return lanes[chosen].poll();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.history;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * A polling rule: a group of keys which only change together with one or more cheap trigger keys,
+ * and are therefore only requested when the value of any trigger has changed since they were last
+ * received.
+ */
+public final class DependentKeys {
+
+    public final List<Keys.Key> triggers;
+    public final List<Keys.Key> keys;
+
+    public DependentKeys(Keys.Key trigger, Keys.Key... keys) {
+        this(Collections.singletonList(trigger), keys);
+    }
+
+    public DependentKeys(List<Keys.Key> triggers, Keys.Key... keys) {
+        this.triggers = Collections.unmodifiableList(triggers);
+        this.keys = Collections.unmodifiableList(Arrays.asList(keys));
+    }
+
+    /**
+     * The times of the error history, guarded by the error numbers of all entries and the time of
+     * day of the newest one. A new error moves the older entries down by one; if it has the same
+     * number as the newest entry, only the numbers further down change, and once the newest
+     * entries all have the same number, only the time of the newest entry does. So all times are
+     * requested again when any of the triggers changes.
+     */
+    public static final List<DependentKeys> ERROR_HISTORY = Collections.singletonList(
+            new DependentKeys(Arrays.asList(Keys.ERROR_1_NUMBER, Keys.ERROR_2_NUMBER, Keys.ERROR_3_NUMBER,
+                    Keys.ERROR_1_HOUR, Keys.ERROR_1_MINUTE),
+                    Keys.ERROR_1_MONTH, Keys.ERROR_1_DAY,
+                    Keys.ERROR_2_MONTH, Keys.ERROR_2_DAY, Keys.ERROR_2_HOUR, Keys.ERROR_2_MINUTE,
+                    Keys.ERROR_3_MONTH, Keys.ERROR_3_DAY, Keys.ERROR_3_HOUR, Keys.ERROR_3_MINUTE));
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.history;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * One entry of the error history of a device, assembled from its number and time keys (e.g.
+ * E11, E1M, E1D, E1h and E1m for the most recent entry). The device does not report the year.
+ */
+public final class ErrorRecord {
+
+    private static final Keys.IntegerKey[][] ENTRIES = {
+        {Keys.ERROR_1_NUMBER, Keys.ERROR_1_MONTH, Keys.ERROR_1_DAY, Keys.ERROR_1_HOUR, Keys.ERROR_1_MINUTE},
+        {Keys.ERROR_2_NUMBER, Keys.ERROR_2_MONTH, Keys.ERROR_2_DAY, Keys.ERROR_2_HOUR, Keys.ERROR_2_MINUTE},
+        {Keys.ERROR_3_NUMBER, Keys.ERROR_3_MONTH, Keys.ERROR_3_DAY, Keys.ERROR_3_HOUR, Keys.ERROR_3_MINUTE},
+    };
+
+    public final int device;
+    /** position in the error history, 1 for the most recent error */
+    public final int entry;
+    public final int number;
+    public final int month;
+    public final int day;
+    public final int hour;
+    public final int minute;
+
+    public ErrorRecord(int device, int entry, int number, int month, int day, int hour, int minute) {
+        this.device = device;
+        this.entry = entry;
+        this.number = number;
+        this.month = month;
+        this.day = day;
+        this.hour = hour;
+        this.minute = minute;
+    }
+
+    /**
+     * Returns a record for every entry of the error history of which all keys are contained in
+     * the given raw values.
+     */
+    public static List<ErrorRecord> fromValues(int device, Map<Keys.Key, String> values) {
+        List<ErrorRecord> records = Collections.emptyList();
+        for (int i = 0; i < ENTRIES.length; i++) {
+            Integer[] fields = new Integer[ENTRIES[i].length];
+            boolean complete = true;
+            for (int j = 0; j < fields.length && complete; j++) {
+                try {
+                    fields[j] = ENTRIES[i][j].decode(values.get(ENTRIES[i][j]));
+                } catch (NumberFormatException e) {
+                    fields[j] = null;
+                }
+                complete = (fields[j] != null);
+            }
+            if (complete) {
+                if (records.isEmpty()) {
+                    records = new ArrayList<>(ENTRIES.length);
+                }
+                records.add(new ErrorRecord(device, i + 1, fields[0], fields[1], fields[2], fields[3], fields[4]));
+            }
+        }
+        return records;
+    }
+
+    public String toJson() {
+        return "{\"device\":" + device + ",\"entry\":" + entry + ",\"number\":" + number
+                + ",\"month\":" + month + ",\"day\":" + day + ",\"hour\":" + hour + ",\"minute\":" + minute + "}";
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Error %d: %d on %02d-%02d at %02d:%02d", entry, number, month, day, hour, minute);
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.Format;
+import solarmaxcom.Json;
+import solarmaxcom.cache.DeviceSnapshot;
+import solarmaxcom.cache.LatestValueCache;
+import solarmaxcom.metrics.BusMetrics;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * A small HTTP server which serves the latest values from the LatestValueCache:
+ * <ul>
+ * <li><code>/metrics</code> in the Prometheus text format and</li>
+ * <li><code>/values</code> as JSON.</li>
+ * </ul>
+ * Responses are rendered from the cached snapshots and reused until a new poll cycle has
+ * finished, so requests never cause traffic on the serial bus. <code>/metrics</code> additionally
+ * contains the current BusMetrics, which are rendered for every request.
+ */
+public class HttpEndpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpEndpoint.class);
+
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+
+    private final HttpServer server;
+    private final LatestValueCache cache;
+
+    /**
+     * A response body together with the snapshots it was rendered from.
+     */
+    private static final class Rendering {
+        final List<DeviceSnapshot> snapshots;
+        final byte[] body;
+
+        Rendering(List<DeviceSnapshot> snapshots, byte[] body) {
+            this.snapshots = snapshots;
+            this.body = body;
+        }
+
+        boolean isCurrent(List<DeviceSnapshot> current) {
+            if (current.size() != snapshots.size()) {
+                return false;
+            }
+            for (int i = 0; i < current.size(); i++) {
+                if (current.get(i) != snapshots.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final AtomicReference<Rendering> metrics = new AtomicReference<>();
+    private final AtomicReference<Rendering> values = new AtomicReference<>();
+
+    public HttpEndpoint(InetSocketAddress address, LatestValueCache cache) throws IOException {
+        this.cache = cache;
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", exchange ->
+                serve(exchange, metrics, PROMETHEUS_CONTENT_TYPE, HttpEndpoint::renderPrometheus, true));
+        server.createContext("/values", exchange ->
+                serve(exchange, values, JSON_CONTENT_TYPE, HttpEndpoint::renderJson, false));
+    }
+
+    public void start() {
+        server.start();
+        logger.info("HTTP endpoint listening on port " + getPort());
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void serve(HttpExchange exchange, AtomicReference<Rendering> rendering, String contentType,
+            Function<List<DeviceSnapshot>, String> renderer, boolean withBusMetrics) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            List<DeviceSnapshot> snapshots = cache.getAll();
+            Rendering r = rendering.get();
+            if (r == null || !r.isCurrent(snapshots)) {
+                r = new Rendering(snapshots, renderer.apply(snapshots).getBytes(StandardCharsets.UTF_8));
+                rendering.set(r);
+            }
+
+            byte[] extra = new byte[0];
+            if (withBusMetrics) {
+                StringBuilder s = new StringBuilder(2048);
+                BusMetrics.INSTANCE.renderPrometheus(s);
+                extra = s.toString().getBytes(StandardCharsets.UTF_8);
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.sendResponseHeaders(200, r.body.length + extra.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(r.body);
+                    out.write(extra);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void appendLabel(StringBuilder s, String name, String value) {
+        s.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                s.append('\\').append(c);
+            } else if (c == '\n') {
+                s.append("\\n");
+            } else {
+                s.append(c);
+            }
+        }
+        s.append('"');
+    }
+
+    static String renderPrometheus(List<DeviceSnapshot> snapshots) {
+        StringBuilder s = new StringBuilder(4096);
+
+        s.append("# HELP solarmax_online Whether the device answered in the last poll cycle.\n");
+        s.append("# TYPE solarmax_online gauge\n");
+        for (DeviceSnapshot snapshot : snapshots) {
+            s.append("solarmax_online{device=\"").append(snapshot.device).append("\"} ")
+                    .append(snapshot.online ? 1 : 0).append('\n');
+        }
+
+        s.append("# HELP solarmax_poll_timestamp_seconds Time of the last poll cycle.\n");
+        s.append("# TYPE solarmax_poll_timestamp_seconds gauge\n");
+        for (DeviceSnapshot snapshot : snapshots) {
+            s.append("solarmax_poll_timestamp_seconds{device=\"").append(snapshot.device).append("\"} ")
+                    .append(snapshot.timestamp / 1000.0).append('\n');
+        }
+
+        s.append("# HELP solarmax_value Latest numeric value reported by the device.\n");
+        s.append("# TYPE solarmax_value gauge\n");
+        StringBuilder info = new StringBuilder();
+        for (DeviceSnapshot snapshot : snapshots) {
+            for (Keys.Key key : snapshot.getKeys()) {
+                if (!(key instanceof Keys.DataKey)) {
+                    continue;
+                }
+                Keys.DataKey<?> dataKey = (Keys.DataKey<?>) key;
+                String encoded = snapshot.getValue(key);
+                String number = Format.number(dataKey, encoded);
+                if (number != null) {
+                    s.append("solarmax_value{");
+                    appendLabel(s, "device", Integer.toString(snapshot.device));
+                    s.append(',');
+                    appendLabel(s, "key", key.key);
+                    s.append(',');
+                    appendLabel(s, "name", key.name);
+                    s.append(',');
+                    appendLabel(s, "unit", Keys.getUnit(key));
+                    s.append("} ").append(number).append('\n');
+                } else if (!(key instanceof Keys.IntegerKey || key instanceof Keys.DoubleKey)) {
+                    String text = Format.text(dataKey, encoded);
+                    if (text != null) {
+                        info.append("solarmax_info{");
+                        appendLabel(info, "device", Integer.toString(snapshot.device));
+                        info.append(',');
+                        appendLabel(info, "key", key.key);
+                        info.append(',');
+                        appendLabel(info, "name", key.name);
+                        info.append(',');
+                        appendLabel(info, "value", text);
+                        info.append("} 1\n");
+                    }
+                }
+            }
+        }
+
+        s.append("# HELP solarmax_info Latest non-numeric value reported by the device.\n");
+        s.append("# TYPE solarmax_info gauge\n");
+        s.append(info);
+        return s.toString();
+    }
+
+    static String renderJson(List<DeviceSnapshot> snapshots) {
+        StringBuilder s = new StringBuilder(4096);
+        s.append("{\"devices\":[");
+        boolean firstDevice = true;
+        for (DeviceSnapshot snapshot : snapshots) {
+            if (!firstDevice) {
+                s.append(',');
+            }
+            firstDevice = false;
+            s.append("{\"device\":").append(snapshot.device);
+            s.append(",\"cycle\":").append(snapshot.cycle);
+            s.append(",\"time\":");
+            Json.appendString(s, Instant.ofEpochMilli(snapshot.timestamp).toString());
+            s.append(",\"online\":").append(snapshot.online);
+            s.append(",\"values\":{");
+            boolean firstKey = true;
+            for (Keys.Key key : snapshot.getKeys()) {
+                if (!(key instanceof Keys.DataKey)) {
+                    continue;
+                }
+                Keys.DataKey<?> dataKey = (Keys.DataKey<?>) key;
+                String encoded = snapshot.getValue(key);
+                String number = Format.number(dataKey, encoded);
+                if (!firstKey) {
+                    s.append(',');
+                }
+                firstKey = false;
+                Json.appendString(s, key.key).append(":{\"name\":");
+                Json.appendString(s, key.name);
+                s.append(",\"value\":");
+                if (number != null) {
+                    s.append(number);
+                } else {
+                    Json.appendString(s, Format.text(dataKey, encoded));
+                }
+                s.append(",\"unit\":");
+                Json.appendString(s, Keys.getUnit(key));
+                s.append(",\"time\":");
+                Json.appendString(s, Instant.ofEpochMilli(snapshot.getTimestamp(key)).toString());
+                s.append('}');
+            }
+            s.append("}}");
+        }
+        s.append("]}\n");
+        return s.toString();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event for a reply which could not be parsed.
+ */
+@Name("solarmaxcom.ParseFailure")
+@Label("Parse Failure")
+@Category({"SolarMaxCom", "Bus"})
+@Description("Reply which could not be parsed")
+@StackTrace(false)
+public class ParseFailureEvent extends Event {
+
+    @Label("Device")
+    public int device;
+
+    @Label("Kind")
+    @Description("Reason of the failure, see Packet.ParseException.Kind")
+    public String kind;
+
+    @Label("Message")
+    public String message;
+}
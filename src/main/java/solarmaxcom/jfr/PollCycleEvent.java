@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event for one poll cycle, i.e. all transactions needed to request a set
+ * of keys from a device.
+ */
+@Name("solarmaxcom.PollCycle")
+@Label("Poll Cycle")
+@Category({"SolarMaxCom", "Bus"})
+@Description("All requests of one poll cycle of a device")
+@StackTrace(false)
+public class PollCycleEvent extends Event {
+
+    @Label("Device")
+    public int device;
+
+    @Label("Cycle")
+    public long cycle;
+
+    @Label("Keys Requested")
+    public int keysRequested;
+
+    @Label("Keys Received")
+    public int keysReceived;
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event for one request/reply transaction on the bus. The duration of the
+ * event is the round-trip time from writing the request until the end of the reply.
+ */
+@Name("solarmaxcom.Transaction")
+@Label("Bus Transaction")
+@Category({"SolarMaxCom", "Bus"})
+@Description("Request sent to a device and its reply")
+@StackTrace(false)
+public class TransactionEvent extends Event {
+
+    public static final String OK = "ok";
+    public static final String TIMEOUT = "timeout";
+    public static final String PARSE_ERROR = "parse error";
+
+    @Label("Device")
+    public int device;
+
+    @Label("Keys")
+    @Description("Number of keys in the request")
+    public int keys;
+
+    @Label("Bytes Sent")
+    @DataAmount
+    public long bytesSent;
+
+    @Label("Bytes Received")
+    @DataAmount
+    public long bytesReceived;
+
+    @Label("Outcome")
+    public String outcome;
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.protocol.Packet;
+
+/**
+ * Counters and latency histograms for the request path: serial transactions, parsing of replies
+ * and publishing of the results. All methods are thread-safe and cheap enough to be called for
+ * every request. The metrics are available via JMX under the domain <code>solarmaxcom</code>
+ * once registerMBeans() has been called, and in the Prometheus text format via renderPrometheus().
+ */
+public final class BusMetrics implements BusMetricsMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(BusMetrics.class);
+
+    public static final BusMetrics INSTANCE = new BusMetrics();
+
+    private static final long NANOS_PER_MICRO = 1000;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder noiseBytes = new LongAdder();
+    private final LongAdder[] parseErrors = new LongAdder[Packet.ParseException.Kind.values().length];
+
+    private final ConcurrentHashMap<Integer, Histogram> roundTrip = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Long> clockSkew = new ConcurrentHashMap<>();
+    public final Histogram parseTime = new Histogram(NANOS_PER_MICRO);
+    public final Histogram publishTime = new Histogram(NANOS_PER_MICRO);
+    public final Histogram keysPerRequest = new Histogram();
+
+    private volatile MBeanServer mbeanServer = null;
+
+    BusMetrics() {
+        for (int i = 0; i < parseErrors.length; i++) {
+            parseErrors[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts a request which has been written to the bus.
+     */
+    public void requestSent(int bytes) {
+        requests.increment();
+        bytesSent.add(bytes);
+    }
+
+    public void replyReceived(int bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    public void timeout() {
+        timeouts.increment();
+    }
+
+    /**
+     * Counts bytes which were received outside of a frame, or in a frame which was rejected.
+     */
+    public void noise(long bytes) {
+        noiseBytes.add(bytes);
+    }
+
+    public void parseError(Packet.ParseException.Kind kind) {
+        parseErrors[kind.ordinal()].increment();
+    }
+
+    public long getParseErrors(Packet.ParseException.Kind kind) {
+        return parseErrors[kind.ordinal()].sum();
+    }
+
+    /**
+     * Returns the histogram of round-trip times in nanoseconds for the given device.
+     */
+    public Histogram roundTrip(int device) {
+        Histogram h = roundTrip.get(device);
+        if (h == null) {
+            h = roundTrip.computeIfAbsent(device, d -> new Histogram(NANOS_PER_MICRO));
+            MBeanServer server = mbeanServer;
+            if (server != null) {
+                register(server, h, "solarmaxcom:type=Latency,name=roundTrip,device=" + device);
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Sets by how many milliseconds the clock of a device is ahead of the local clock.
+     */
+    public void clockSkew(int device, long millis) {
+        clockSkew.put(device, millis);
+    }
+
+    /**
+     * Returns the last clock skew of a device in milliseconds, or null if it is not known.
+     */
+    public Long getClockSkew(int device) {
+        return clockSkew.get(device);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server. Round-trip histograms of devices which
+     * are polled later are registered as they appear.
+     */
+    public synchronized void registerMBeans() {
+        if (mbeanServer != null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        register(server, this, "solarmaxcom:type=Bus");
+        register(server, parseTime, "solarmaxcom:type=Latency,name=parse");
+        register(server, publishTime, "solarmaxcom:type=Latency,name=publish");
+        register(server, keysPerRequest, "solarmaxcom:type=Size,name=keysPerRequest");
+        mbeanServer = server;
+        for (Map.Entry<Integer, Histogram> e : roundTrip.entrySet()) {
+            register(server, e.getValue(), "solarmaxcom:type=Latency,name=roundTrip,device=" + e.getKey());
+        }
+    }
+
+    private static void register(MBeanServer server, Object mbean, String name) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(mbean, objectName);
+            }
+        } catch (JMException e) {
+            logger.warn("Could not register MBean " + name + ": " + e);
+        }
+    }
+
+    private static void appendCounter(StringBuilder s, String name, String help, long value) {
+        s.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        s.append("# TYPE ").append(name).append(" counter\n");
+        s.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendSummary(StringBuilder s, String name, String labels, Histogram h, double scale) {
+        String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+        for (double q : QUANTILES) {
+            s.append(name).append(prefix).append("quantile=\"").append(q).append("\"} ")
+                    .append(h.percentile(q) * scale).append('\n');
+        }
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        s.append(name).append("_sum").append(suffix).append(h.sum() * scale).append('\n');
+        s.append(name).append("_count").append(suffix).append(h.count()).append('\n');
+    }
+
+    private static void appendHeader(StringBuilder s, String name, String help) {
+        s.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        s.append("# TYPE ").append(name).append(" summary\n");
+    }
+
+    /**
+     * Appends all metrics in the Prometheus text format.
+     */
+    public void renderPrometheus(StringBuilder s) {
+        appendCounter(s, "solarmax_requests_total", "Requests sent on the bus.", getRequests());
+        appendCounter(s, "solarmax_sent_bytes_total", "Bytes sent on the bus.", getBytesSent());
+        appendCounter(s, "solarmax_received_bytes_total", "Bytes received from the bus.", getBytesReceived());
+        appendCounter(s, "solarmax_timeouts_total", "Requests which timed out while waiting for the reply.",
+                getTimeouts());
+        appendCounter(s, "solarmax_noise_bytes_total", "Bytes received outside of valid frames.", getNoiseBytes());
+
+        s.append("# HELP solarmax_parse_errors_total Replies which could not be parsed.\n");
+        s.append("# TYPE solarmax_parse_errors_total counter\n");
+        for (Packet.ParseException.Kind kind : Packet.ParseException.Kind.values()) {
+            s.append("solarmax_parse_errors_total{kind=\"").append(kind.name().toLowerCase()).append("\"} ")
+                    .append(getParseErrors(kind)).append('\n');
+        }
+
+        s.append("# HELP solarmax_clock_skew_seconds How far the device clock is ahead of the local clock.\n");
+        s.append("# TYPE solarmax_clock_skew_seconds gauge\n");
+        for (Map.Entry<Integer, Long> e : new TreeMap<>(clockSkew).entrySet()) {
+            s.append("solarmax_clock_skew_seconds{device=\"").append(e.getKey()).append("\"} ")
+                    .append(e.getValue() / 1000.0).append('\n');
+        }
+
+        appendHeader(s, "solarmax_round_trip_seconds", "Time from sending a request to the end of its reply.");
+        for (Map.Entry<Integer, Histogram> e : new TreeMap<>(roundTrip).entrySet()) {
+            appendSummary(s, "solarmax_round_trip_seconds", "device=\"" + e.getKey() + "\"", e.getValue(), 1e-9);
+        }
+        appendHeader(s, "solarmax_parse_seconds", "Time spent parsing a reply.");
+        appendSummary(s, "solarmax_parse_seconds", "", parseTime, 1e-9);
+        appendHeader(s, "solarmax_publish_seconds", "Time spent storing and publishing the results of a poll cycle.");
+        appendSummary(s, "solarmax_publish_seconds", "", publishTime, 1e-9);
+        appendHeader(s, "solarmax_keys_per_request", "Number of keys requested per packet.");
+        appendSummary(s, "solarmax_keys_per_request", "", keysPerRequest, 1);
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getNoiseBytes() {
+        return noiseBytes.sum();
+    }
+
+    @Override
+    public long getFormatErrors() {
+        return getParseErrors(Packet.ParseException.Kind.FORMAT);
+    }
+
+    @Override
+    public long getLengthErrors() {
+        return getParseErrors(Packet.ParseException.Kind.LENGTH);
+    }
+
+    @Override
+    public long getCrcErrors() {
+        return getParseErrors(Packet.ParseException.Kind.CRC);
+    }
+
+    @Override
+    public long getUnknownKeyErrors() {
+        return getParseErrors(Packet.ParseException.Kind.UNKNOWN_KEY);
+    }
+
+    @Override
+    public long getIncompleteErrors() {
+        return getParseErrors(Packet.ParseException.Kind.INCOMPLETE);
+    }
+}
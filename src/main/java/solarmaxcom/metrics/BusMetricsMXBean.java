@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.metrics;
+
+/**
+ * Management interface of the BusMetrics counters.
+ */
+public interface BusMetricsMXBean {
+
+    long getRequests();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getTimeouts();
+
+    long getNoiseBytes();
+
+    long getFormatErrors();
+
+    long getLengthErrors();
+
+    long getCrcErrors();
+
+    long getUnknownKeyErrors();
+
+    long getIncompleteErrors();
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Assembles frames from a stream of bytes in a buffer of fixed size. Bytes before the start of a
+ * frame are dropped as noise. A frame which exceeds Packet.MAX_LENGTH is rejected as soon as the
+ * limit is exceeded, and a start byte within a frame starts a new one, so the reader
+ * resynchronizes with the next frame after garbage on the line. This class is not thread-safe.
+ */
+public final class FrameReader {
+
+    private static final byte START = '{';
+    private static final byte END = '}';
+
+    private final byte[] buffer = new byte[Packet.MAX_LENGTH];
+    private int length = 0;
+    private long noiseBytes = 0;
+    private long rejectedFrames = 0;
+
+    /**
+     * Adds a byte and returns the frame which it completes, or null.
+     */
+    public String accept(byte b) {
+        if (b == START) {
+            if (length > 0) {
+                noiseBytes += length;
+            }
+            buffer[0] = b;
+            length = 1;
+            return null;
+        }
+        if (length == 0) {
+            noiseBytes++;
+            return null;
+        }
+        if (length == buffer.length) {
+            noiseBytes += length + 1;
+            rejectedFrames++;
+            length = 0;
+            return null;
+        }
+        buffer[length++] = b;
+        if (b == END) {
+            String frame = new String(buffer, 0, length, StandardCharsets.ISO_8859_1);
+            length = 0;
+            return frame;
+        }
+        return null;
+    }
+
+    /**
+     * Drops a partial frame, e.g. before a new request is sent.
+     */
+    public void reset() {
+        noiseBytes += length;
+        length = 0;
+    }
+
+    /**
+     * Returns whether a frame has been started but not finished.
+     */
+    public boolean inFrame() {
+        return length > 0;
+    }
+
+    /**
+     * Returns the number of bytes dropped so far, including those of rejected frames.
+     */
+    public long getNoiseBytes() {
+        return noiseBytes;
+    }
+
+    /**
+     * Returns the number of frames rejected so far because they were too long.
+     */
+    public long getRejectedFrames() {
+        return rejectedFrames;
+    }
+}
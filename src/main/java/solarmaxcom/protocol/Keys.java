@@ -20,8 +20,11 @@ package solarmaxcom.protocol;
 import java.time.LocalDate;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.function.Supplier;
 
 /**
  * Enum-like class which collects all known Keys for communicating with the SolarMax device.
@@ -32,6 +35,7 @@ import java.util.HashMap;
 public final class Keys {
     
     private static final HashMap<String, Key> keys = new HashMap<>();
+    private static final ArrayList<Key> keysByOrdinal = new ArrayList<>();
     
     private Keys() {    
     }
@@ -40,18 +44,49 @@ public final class Keys {
         return keys.get(key);
     }
     
+    public static Key getKeyByOrdinal(int ordinal) {
+        return (ordinal >= 0 && ordinal < keysByOrdinal.size()) ? keysByOrdinal.get(ordinal) : null;
+    }
+    
     public static Collection<Key> getKeys() {
         return keys.values();
     }
     
+    /**
+     * Returns the unit of IntegerKeys and DoubleKeys, or an empty String for all other keys.
+     */
+    public static String getUnit(Key key) {
+        if (key instanceof IntegerKey) {
+            return ((IntegerKey) key).unit;
+        } else if (key instanceof DoubleKey) {
+            return ((DoubleKey) key).unit;
+        } else {
+            return "";
+        }
+    }
+    
+    /**
+     * Returns the number of known keys; ordinals range from 0 to getKeyCount()-1.
+     */
+    public static int getKeyCount() {
+        return keysByOrdinal.size();
+    }
+    
+    /**
+     * Base class of all keys. The ordinal is assigned in declaration order; it is used as a compact
+     * identifier in persistent data, so new keys must only be appended to the end of this class.
+     */
     public static class Key {
         public final String name;
         public final String key;
+        public final int ordinal;
         
         private Key(String name, String key) {
             this.name = name;
             this.key = key;
+            this.ordinal = keysByOrdinal.size();
             keys.put(key, this);
+            keysByOrdinal.add(this);
         }
         
         @Override
@@ -71,6 +106,21 @@ public final class Keys {
         public abstract T decode(String encoded);
         public abstract String encode(T value);
         public abstract String standardFormat(T value);
+        
+        /**
+         * Parses a value in the standard format, e.g. from the command line.
+         *
+         * @throws IllegalArgumentException if the text cannot be parsed
+         */
+        public abstract T parse(String text);
+        
+        /**
+         * Decodes the value as a number. Returns null if the value is empty or if this key does
+         * not carry numeric data.
+         */
+        public Double decodeNumber(String encoded) {
+            return null;
+        }
     }
     
     public static class IntegerKey extends DataKey<Integer> {
@@ -110,17 +160,30 @@ public final class Keys {
             }
         }
 
+        @Override
+        public Integer parse(String text) {
+            return Integer.parseInt(text.trim());
+        }
+
         @Override
         public String standardFormat(Integer value) {
             return value.toString();
         }
         
+        @Override
+        public Double decodeNumber(String encoded) {
+            Integer value = decode(encoded);
+            return (value == null) ? null : value.doubleValue();
+        }
+        
     }
     
     public static class DoubleKey extends DataKey<Double> {
         public final int offset;
         public final double factor;
         public final String unit;
+        /** Number of decimals needed to represent the resolution given by factor. */
+        public final int decimals;
         private final String stdFormat;
 
         private DoubleKey(String name, String key, int length, int offset, double factor, String unit) {
@@ -129,7 +192,7 @@ public final class Keys {
             this.factor = factor;
             this.unit = unit;
 
-            int decimals = (int) Math.ceil(-Math.log10(factor));
+            decimals = (int) Math.ceil(-Math.log10(factor));
             stdFormat = "%." + decimals + "f";
         }
         
@@ -161,11 +224,21 @@ public final class Keys {
             }
         }
 
+        @Override
+        public Double parse(String text) {
+            return Double.parseDouble(text.trim());
+        }
+
         @Override
         public String standardFormat(Double value) {
             return String.format(stdFormat, value);
         }
         
+        @Override
+        public Double decodeNumber(String encoded) {
+            return decode(encoded);
+        }
+        
     }
     
     public static class DateKey extends DataKey<LocalDate> {
@@ -197,6 +270,15 @@ public final class Keys {
             }
         }
 
+        @Override
+        public LocalDate parse(String text) {
+            try {
+                return LocalDate.parse(text.trim());
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid date '" + text + "'", e);
+            }
+        }
+
         @Override
         public String standardFormat(LocalDate value) {
             return value.format(DateTimeFormatter.ISO_DATE);
@@ -235,6 +317,15 @@ public final class Keys {
             }
         }
 
+        @Override
+        public LocalTime parse(String text) {
+            try {
+                return LocalTime.parse(text.trim());
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid time '" + text + "'", e);
+            }
+        }
+
         @Override
         public String standardFormat(LocalTime value) {
             return value.format(stdFormat);
@@ -244,11 +335,33 @@ public final class Keys {
     
     public static class LookupKey extends DataKey<String> {
 
-        private final LookupTable lookup;
+        private final Supplier<LookupTable> tableSupplier;
+        private volatile LookupTable lookup = null;
         
         public LookupKey(String name, String key, int length, LookupTable lookup) {
+            this(name, key, length, () -> lookup);
+        }
+        
+        /**
+         * Creates a key whose lookup table is only created when it is used for the first time.
+         */
+        public LookupKey(String name, String key, int length, Supplier<LookupTable> tableSupplier) {
             super(name, key, length);
-            this.lookup = lookup;
+            this.tableSupplier = tableSupplier;
+        }
+        
+        private LookupTable table() {
+            LookupTable table = lookup;
+            if (table == null) {
+                synchronized (this) {
+                    table = lookup;
+                    if (table == null) {
+                        table = tableSupplier.get();
+                        lookup = table;
+                    }
+                }
+            }
+            return table;
         }
 
         @Override
@@ -261,19 +374,24 @@ public final class Keys {
                 i = Integer.parseInt(encoded, 16);
             }
             
-            return lookup.forward(i);
+            return table().forward(i);
         }
 
         @Override
         public String encode(String value) {
-            Integer i = lookup.backward(value);
-            if (value == null) {
+            Integer i = table().backward(value);
+            if (i == null) {
                 throw new IllegalArgumentException("Cannot find code for '" + value + "'");
             } else {
                 return Integer.toString(i, 16);
             }
         }
 
+        @Override
+        public String parse(String text) {
+            return text;
+        }
+
         @Override
         public String standardFormat(String value) {
             return value;
@@ -297,6 +415,11 @@ public final class Keys {
             return value;
         }
 
+        @Override
+        public String parse(String text) {
+            return text;
+        }
+
         @Override
         public String standardFormat(String value) {
             return value;
@@ -390,7 +513,7 @@ public final class Keys {
     public static final IntegerKey ERROR_CODE_8 = new IntegerKey("Error code 8", "EC08", 4, 0, "");
     public static final IntegerKey BUILD_NUMBER = new IntegerKey("Build number", "BDN", 4, 0, "");
     
-    public static final LookupKey TYPE = new LookupKey("Type", "TYP", 4, new DeviceLookup());
-    public static final LookupKey SYSTEM_STATUS = new LookupKey("System status", "SYS", 4, new StatusLookup());
-    public static final LookupKey SYSTEM_ALARMS = new LookupKey("System alarms", "SAL", 4, new AlarmLookup());
+    public static final LookupKey TYPE = new LookupKey("Type", "TYP", 4, DeviceLookup::new);
+    public static final LookupKey SYSTEM_STATUS = new LookupKey("System status", "SYS", 4, StatusLookup::new);
+    public static final LookupKey SYSTEM_ALARMS = new LookupKey("System alarms", "SAL", 4, AlarmLookup::new);
 }
@@ -37,6 +37,9 @@ public class Packet {
     public static final int ADR_MAX_DISPLAY = 252;
     public static final int ADR_UNINITIALIZED = 255;
     
+    /** maximum length of a frame in characters, including STX and ETX */
+    public static final int MAX_LENGTH = 255;
+
     public static final int PORT_USER_DATA = 100;
     public static final int PORT_COMMAND = 200;
     public static final int PORT_MSG_FROM_INTERFACE = 1000;
@@ -53,8 +56,31 @@ public class Packet {
     public int port = PORT_USER_DATA;
 
     public static class ParseException extends Exception {
+        /**
+         * The reason why a message could not be parsed.
+         */
+        public enum Kind {
+            /** a delimiter or field is missing or in the wrong place */
+            FORMAT,
+            /** the length field does not match the message length */
+            LENGTH,
+            /** the checksum does not match */
+            CRC,
+            /** the message contains a key which is not known */
+            UNKNOWN_KEY,
+            /** the message ends prematurely */
+            INCOMPLETE
+        }
+        
+        public final Kind kind;
+        
         public ParseException(String msg) {
+            this(Kind.FORMAT, msg);
+        }
+        
+        public ParseException(Kind kind, String msg) {
             super(msg);
+            this.kind = kind;
         }
     }
     
@@ -103,7 +129,8 @@ public class Packet {
 
             int length = Integer.parseInt(message.substring(pos, pos+2), 16);
             if (message.length() != length) {
-                throw new ParseException("Invalid message: Length " + length + " expected, but " +
+                throw new ParseException(ParseException.Kind.LENGTH,
+                        "Invalid message: Length " + length + " expected, but " +
                         "message '" + message + "' has length " + message.length() + ".");
             }
             pos += 2;
@@ -121,7 +148,8 @@ public class Packet {
             int calculatedCrc = crc(message.substring(crcStart, pos));
             int crc = Integer.parseInt(message.substring(pos, pos+4), 16);
             if (crc != calculatedCrc) {
-                throw new ParseException("Invalid message: CRC " + crc + " expected, but " +
+                throw new ParseException(ParseException.Kind.CRC,
+                        "Invalid message: CRC " + crc + " expected, but " +
                         "message '" + message + "' has CRC " + calculatedCrc + ".");
             }
             pos += 4;
@@ -135,7 +163,8 @@ public class Packet {
                 
                 Key key = Keys.getKeyById(keyId);
                 if (key == null) {
-                    throw new ParseException("Invalid message: Key '" + keyId + "' unknown.");
+                    throw new ParseException(ParseException.Kind.UNKNOWN_KEY,
+                            "Invalid message: Key '" + keyId + "' unknown.");
                 } else {
                     packet.payload.put(key, value);
                 }
@@ -144,7 +173,8 @@ public class Packet {
             throw new ParseException("Invalid message: Could not parse number at position " + pos +
                     " in message '" + message + "'.");
         } catch (StringIndexOutOfBoundsException e) {
-            throw new ParseException("Invalid message: Message incomplete; last item position " + pos +
+            throw new ParseException(ParseException.Kind.INCOMPLETE,
+                    "Invalid message: Message incomplete; last item position " + pos +
                     " in message '" + message + "'.");
 
         }
@@ -198,8 +228,8 @@ public class Packet {
         
         // insert length
         int length = packet.length();
-        if (length > 255) {
-            throw new IllegalStateException("Packet is longer than 255 characters.");
+        if (length > MAX_LENGTH) {
+            throw new IllegalStateException("Packet is longer than " + MAX_LENGTH + " characters.");
         }
         packet.replace(posLength, posLength+2, String.format("%02X", length));
         
@@ -221,13 +251,7 @@ public class Packet {
             if (value != null) {
                 if (!value.equals("") && k instanceof Keys.DataKey) {
                     Keys.DataKey dataKey = (Keys.DataKey) k;
-                    String unit = "";
-                    if (dataKey instanceof Keys.IntegerKey) {
-                        unit = ((Keys.IntegerKey) dataKey).unit;
-                    }
-                    if (dataKey instanceof Keys.DoubleKey) {
-                        unit = ((Keys.DoubleKey) dataKey).unit;
-                    }
+                    String unit = Keys.getUnit(dataKey);
 
                     s += k.key + " (" + k.name + "): " + dataKey.decode(value) + " " + unit + "\n";
                 } else {
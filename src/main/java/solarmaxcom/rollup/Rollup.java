@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.rollup;
+
+import java.time.Instant;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * The aggregate of one key over one finished window. min, max and mean are NaN if the window
+ * contains no samples but received energy from an interval spanning it; energy is NaN for keys
+ * which are not power values.
+ */
+public final class Rollup {
+    public final int device;
+    public final Keys.Key key;
+    public final Window window;
+    public final long start;
+    public final long count;
+    public final double min;
+    public final double max;
+    public final double mean;
+    /** Trapezoidal integral of the value over the window in Wh. */
+    public final double energy;
+
+    public Rollup(int device, Keys.Key key, Window window, long start, long count,
+            double min, double max, double mean, double energy) {
+        this.device = device;
+        this.key = key;
+        this.window = window;
+        this.start = start;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.mean = mean;
+        this.energy = energy;
+    }
+
+    public long getEnd() {
+        return start + window.length;
+    }
+
+    public String toJson() {
+        StringBuilder s = new StringBuilder();
+        s.append("{\"device\":").append(device);
+        s.append(",\"key\":\"").append(key.key).append('"');
+        s.append(",\"window\":\"").append(window.label).append('"');
+        s.append(",\"start\":\"").append(Instant.ofEpochMilli(start)).append('"');
+        s.append(",\"count\":").append(count);
+        s.append(",\"min\":").append(jsonNumber(min));
+        s.append(",\"max\":").append(jsonNumber(max));
+        s.append(",\"mean\":").append(jsonNumber(mean));
+        if (!Double.isNaN(energy)) {
+            s.append(",\"energyWh\":").append(jsonNumber(energy));
+        }
+        s.append('}');
+        return s.toString();
+    }
+
+    private static String jsonNumber(double d) {
+        return Double.isNaN(d) || Double.isInfinite(d) ? "null" : Double.toString(d);
+    }
+
+    @Override
+    public String toString() {
+        return key.key + " " + window.label + " " + Instant.ofEpochMilli(start) + ": count " + count +
+                ", min " + min + ", max " + max + ", mean " + mean +
+                (Double.isNaN(energy) ? "" : ", energy " + String.format("%.3f", energy) + " Wh");
+    }
+}
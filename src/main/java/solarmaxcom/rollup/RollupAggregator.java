@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.rollup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * Streaming aggregation of numeric readings. For every device, key and Window, min, max, mean and
+ * count are updated in constant time per sample; for power keys (PAC and PDC) the energy is
+ * integrated with the trapezoidal rule, splitting intervals at window boundaries by linear
+ * interpolation. Intervals longer than MAX_INTEGRATION_GAP (e.g. while the inverter is off at
+ * night) do not contribute energy. A window is finished and handed to the Listener as soon as a
+ * sample at or after its end arrives, or when flush() is called. This class is not thread-safe.
+ */
+public class RollupAggregator {
+
+    private static final Logger logger = LoggerFactory.getLogger(RollupAggregator.class);
+
+    public static final long MAX_INTEGRATION_GAP = 15 * 60 * 1000L;
+    private static final double MILLIS_PER_HOUR = 60 * 60 * 1000.0;
+
+    public interface Listener {
+        void windowFinished(Rollup rollup);
+    }
+
+    private final Listener listener;
+    private final HashMap<Integer, Series[]> devices = new HashMap<>();
+
+    public RollupAggregator(Listener listener) {
+        this.listener = listener;
+    }
+
+    public static boolean isPowerKey(Keys.Key key) {
+        return key == Keys.AC_OUTPUT || key == Keys.DC_INPUT;
+    }
+
+    private static final class Accumulator {
+        final Window window;
+        long start = Long.MIN_VALUE;
+        long count;
+        double min;
+        double max;
+        double sum;
+        double energy;
+
+        Accumulator(Window window) {
+            this.window = window;
+        }
+
+        void reset(long start) {
+            this.start = start;
+            count = 0;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            sum = 0;
+            energy = 0;
+        }
+    }
+
+    private final class Series {
+        final int device;
+        final Keys.Key key;
+        final boolean integrate;
+        final Accumulator[] accumulators;
+        boolean hasLast = false;
+        long lastTimestamp;
+        double lastValue;
+
+        Series(int device, Keys.Key key) {
+            this.device = device;
+            this.key = key;
+            this.integrate = isPowerKey(key);
+            Window[] windows = Window.values();
+            accumulators = new Accumulator[windows.length];
+            for (int i = 0; i < windows.length; i++) {
+                accumulators[i] = new Accumulator(windows[i]);
+            }
+        }
+
+        void add(long timestamp, double value) {
+            if (hasLast && timestamp <= lastTimestamp) {
+                logger.debug("Ignoring out-of-order sample of " + key + " at " + timestamp);
+                return;
+            }
+            boolean integrateInterval = integrate && hasLast && timestamp - lastTimestamp <= MAX_INTEGRATION_GAP;
+            for (Accumulator acc : accumulators) {
+                advance(acc, timestamp, value, integrateInterval);
+                acc.count++;
+                acc.sum += value;
+                acc.min = Math.min(acc.min, value);
+                acc.max = Math.max(acc.max, value);
+            }
+            hasLast = true;
+            lastTimestamp = timestamp;
+            lastValue = value;
+        }
+
+        private void advance(Accumulator acc, long timestamp, double value, boolean integrateInterval) {
+            if (acc.start == Long.MIN_VALUE) {
+                acc.reset(acc.window.startOf(timestamp));
+                return;
+            }
+            long t0 = lastTimestamp;
+            double v0 = lastValue;
+            while (timestamp >= acc.start + acc.window.length) {
+                long boundary = acc.start + acc.window.length;
+                if (integrateInterval) {
+                    double vb = v0 + (value - v0) * (boundary - t0) / (timestamp - t0);
+                    acc.energy += trapezoid(t0, v0, boundary, vb);
+                    t0 = boundary;
+                    v0 = vb;
+                }
+                finish(acc);
+                if (integrateInterval) {
+                    acc.reset(boundary);
+                } else {
+                    acc.reset(acc.window.startOf(timestamp));
+                }
+            }
+            if (integrateInterval) {
+                acc.energy += trapezoid(t0, v0, timestamp, value);
+            }
+        }
+
+        void flush() {
+            for (Accumulator acc : accumulators) {
+                if (acc.start != Long.MIN_VALUE) {
+                    finish(acc);
+                }
+            }
+        }
+
+        private void finish(Accumulator acc) {
+            if (acc.count == 0 && acc.energy == 0) {
+                return;
+            }
+            boolean empty = acc.count == 0;
+            listener.windowFinished(new Rollup(device, key, acc.window, acc.start, acc.count,
+                    empty ? Double.NaN : acc.min, empty ? Double.NaN : acc.max,
+                    empty ? Double.NaN : acc.sum / acc.count, integrate ? acc.energy : Double.NaN));
+        }
+    }
+
+    private static double trapezoid(long t0, double v0, long t1, double v1) {
+        return (v0 + v1) / 2 * (t1 - t0) / MILLIS_PER_HOUR;
+    }
+
+    /**
+     * Adds all numeric values of a reply.
+     */
+    public void add(int device, long timestamp, Map<Keys.Key, String> values) {
+        add(device, timestamp, values, Collections.emptyMap());
+    }
+
+    /**
+     * Adds all numeric values of a reply at their sample times; values without a sample time get
+     * the given timestamp.
+     */
+    public void add(int device, long timestamp, Map<Keys.Key, String> values, Map<Keys.Key, Long> sampleTimes) {
+        for (Map.Entry<Keys.Key, String> e : values.entrySet()) {
+            if (e.getKey() instanceof Keys.DataKey) {
+                try {
+                    Double value = ((Keys.DataKey<?>) e.getKey()).decodeNumber(e.getValue());
+                    if (value != null) {
+                        Long time = sampleTimes.get(e.getKey());
+                        add(device, e.getKey(), (time == null) ? timestamp : time, value);
+                    }
+                } catch (NumberFormatException ex) {
+                    logger.debug("Not aggregating invalid value '" + e.getValue() + "' of key " + e.getKey());
+                }
+            }
+        }
+    }
+
+    public void add(int device, Keys.Key key, long timestamp, double value) {
+        Series[] series = devices.get(device);
+        if (series == null) {
+            series = new Series[Keys.getKeyCount()];
+            devices.put(device, series);
+        }
+        Series s = series[key.ordinal];
+        if (s == null) {
+            s = new Series(device, key);
+            series[key.ordinal] = s;
+        }
+        s.add(timestamp, value);
+    }
+
+    /**
+     * Finishes all windows which are still open, e.g. at shutdown, so that the samples in them are
+     * not lost; these rollups only cover the samples received so far. Samples added afterwards
+     * start new windows.
+     */
+    public void flush() {
+        for (Series[] series : devices.values()) {
+            for (Series s : series) {
+                if (s != null) {
+                    s.flush();
+                }
+            }
+        }
+        devices.clear();
+    }
+}
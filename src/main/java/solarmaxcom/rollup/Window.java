@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.rollup;
+
+/**
+ * The time windows over which readings are aggregated. Windows are aligned to UTC.
+ */
+public enum Window {
+    MINUTE("1m", 60 * 1000L),
+    QUARTER_HOUR("15m", 15 * 60 * 1000L),
+    HOUR("1h", 60 * 60 * 1000L),
+    DAY("1d", 24 * 60 * 60 * 1000L);
+
+    public final String label;
+    public final long length;
+
+    Window(String label, long length) {
+        this.label = label;
+        this.length = length;
+    }
+
+    public long startOf(long timestamp) {
+        return Math.floorDiv(timestamp, length) * length;
+    }
+}
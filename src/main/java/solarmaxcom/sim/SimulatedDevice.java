@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.sim;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.protocol.Packet;
+
+/**
+ * A simulated SolarMax device which answers requests with plausible values: the power, currents
+ * and voltages follow the sun over the day, date and time are taken from the clock, and all other
+ * keys have fixed values which can be changed with set() or with a PORT_COMMAND request.
+ */
+public class SimulatedDevice {
+
+    public final int address;
+
+    /** nominal AC power in W */
+    private final double nominalPower;
+
+    private final Map<Keys.Key, String> values = new ConcurrentHashMap<>();
+
+    public SimulatedDevice(int address) {
+        this(address, 2500);
+    }
+
+    public SimulatedDevice(int address, double nominalPower) {
+        this.address = address;
+        this.nominalPower = nominalPower;
+        values.put(Keys.NETWORK_ADDRESS, Integer.toHexString(address));
+        values.put(Keys.TYPE, "2B07");
+        values.put(Keys.SYSTEM_STATUS, "4E24");
+        values.put(Keys.SYSTEM_ALARMS, "0");
+        values.put(Keys.SOFTWARE_VERSION, "E");
+        values.put(Keys.ENERGY_TOTAL, "5A3C");
+        values.put(Keys.ENERGY_YEAR, "CB2");
+        values.put(Keys.ENERGY_MONTH, "112");
+        values.put(Keys.OPERATING_HOURS, "9E41");
+        values.put(Keys.INSTALLED_CAPACITY, Keys.INSTALLED_CAPACITY.encode(nominalPower));
+        values.put(Keys.TEMPERATURE_POWER_UNIT_1, "2A");
+        values.put(Keys.GENERATED_FREQUENCY, "1F4");
+        values.put(Keys.VOLTAGE_PHASE_1, "8FC");
+    }
+
+    /**
+     * Sets the fixed value of a key.
+     */
+    public void set(Keys.Key key, String encoded) {
+        values.put(key, encoded);
+    }
+
+    /**
+     * Returns the relative output, 0..1, at a given time of day.
+     */
+    static double sun(LocalTime time) {
+        double hours = time.toSecondOfDay() / 3600.0;
+        return Math.max(0, Math.sin(Math.PI * (hours - 6) / 12));
+    }
+
+    /**
+     * Returns the current encoded value of a key.
+     */
+    public String get(Keys.Key key) {
+        String value = values.get(key);
+        if (value != null) {
+            return value;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        double output = sun(now.toLocalTime());
+        if (key == Keys.DATE) {
+            return Keys.DATE.encode(LocalDate.now());
+        } else if (key == Keys.TIME) {
+            return Keys.TIME.encode(now.toLocalTime().withNano(0));
+        } else if (key == Keys.AC_OUTPUT) {
+            return Keys.AC_OUTPUT.encode(output * nominalPower);
+        } else if (key == Keys.DC_INPUT) {
+            return Keys.DC_INPUT.encode(output * nominalPower * 1.04);
+        } else if (key == Keys.VOLTAGE_DC) {
+            return Keys.VOLTAGE_DC.encode((output > 0) ? 280 + 40 * output : 0.0);
+        } else if (key == Keys.CURRENT_DC) {
+            return Keys.CURRENT_DC.encode((output > 0) ? output * nominalPower * 1.04 / (280 + 40 * output) : 0.0);
+        } else if (key == Keys.CURRENT_PHASE_1) {
+            return Keys.CURRENT_PHASE_1.encode(output * nominalPower / 230);
+        } else if (key == Keys.RELATIVE_OUTPUT) {
+            return Keys.RELATIVE_OUTPUT.encode((int) Math.round(output * 100));
+        } else if (key == Keys.ENERGY_DAY) {
+            // integral of the sine from 6:00 until now
+            double hours = Math.min(Math.max(now.toLocalTime().toSecondOfDay() / 3600.0 - 6, 0), 12);
+            double kwh = nominalPower / 1000 * 12 / Math.PI * (1 - Math.cos(Math.PI * hours / 12));
+            return Keys.ENERGY_DAY.encode(kwh);
+        } else {
+            return "0";
+        }
+    }
+
+    /**
+     * Returns the reply to a request, or null if the request is not addressed to this device.
+     */
+    public Packet handle(Packet request) {
+        if (request.destination != address && request.destination != Packet.ADR_BROADCAST) {
+            return null;
+        }
+        Packet reply = new Packet();
+        reply.source = address;
+        reply.destination = request.source;
+        reply.port = request.port;
+        for (Map.Entry<Keys.Key, String> e : request.payload.entrySet()) {
+            if (request.port == Packet.PORT_COMMAND && e.getValue() != null) {
+                set(e.getKey(), e.getValue());
+            }
+            reply.payload.put(e.getKey(), get(e.getKey()));
+        }
+        return reply;
+    }
+}
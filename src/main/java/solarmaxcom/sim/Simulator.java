@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.sim;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.protocol.Packet;
+
+/**
+ * A TCP server which simulates a bus of SolarMax devices, like an inverter with an Ethernet
+ * interface. Connections are served concurrently, but like on a real bus only one request is
+ * answered at a time; each reply is delayed by a configurable time to model the transmission on
+ * the RS485 bus and the processing in the inverter.
+ */
+public class Simulator {
+
+    private static final Logger logger = LoggerFactory.getLogger(Simulator.class);
+
+    private final ServerSocket server;
+    private final HashMap<Integer, SimulatedDevice> devices = new HashMap<>();
+    private final long delayMillis;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "simulator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Object bus = new Object();
+
+    public Simulator(InetSocketAddress address, Collection<SimulatedDevice> devices, long delayMillis)
+            throws IOException {
+        for (SimulatedDevice device : devices) {
+            this.devices.put(device.address, device);
+        }
+        this.delayMillis = delayMillis;
+        server = new ServerSocket();
+        server.bind(address);
+    }
+
+    public void start() {
+        executor.execute(this::accept);
+        logger.info("Simulating devices " + devices.keySet() + " on port " + getPort());
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            logger.debug("Could not close server socket: " + e);
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    logger.warn("Could not accept connection: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the reply frame to a request frame, or null if no device answers.
+     */
+    String answer(String frame) {
+        Packet request;
+        try {
+            request = Packet.parse(frame);
+        } catch (Packet.ParseException e) {
+            logger.debug("Ignoring invalid request: " + e);
+            return null;
+        }
+        synchronized (bus) {
+            SimulatedDevice device = (request.destination == Packet.ADR_BROADCAST && devices.size() == 1)
+                    ? devices.values().iterator().next()
+                    : devices.get(request.destination);
+            if (device == null) {
+                return null;
+            }
+            Packet reply = device.handle(request);
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return reply.build();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            StringBuilder frame = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '{') {
+                    frame.setLength(0);
+                }
+                frame.append((char) c);
+                if (c == '}') {
+                    String reply = answer(frame.toString());
+                    if (reply != null) {
+                        out.write(reply.getBytes(StandardCharsets.ISO_8859_1));
+                        out.flush();
+                    }
+                    frame.setLength(0);
+                } else if (frame.length() > 255) {
+                    frame.setLength(0);
+                }
+            }
+        } catch (SocketException e) {
+            logger.debug("Connection closed: " + e);
+        } catch (IOException e) {
+            logger.warn("Connection failed: " + e);
+        }
+    }
+}
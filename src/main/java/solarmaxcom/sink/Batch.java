@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.sink;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import solarmaxcom.events.StateEvent;
+import solarmaxcom.history.ErrorRecord;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.rollup.Rollup;
+
+/**
+ * The output of one poll cycle of a device: the values received, the entries of the error history
+ * among them, the rollup windows which were finished by them and the state transitions they
+ * confirmed. At shutdown, the rollup windows which are still open are handed over in batches
+ * without a poll cycle (see ofRollups()).
+ */
+public final class Batch {
+
+    public final int device;
+    public final long cycle;
+    /** whether the batch is the result of a poll cycle; if not, it only contains rollups */
+    public final boolean polled;
+    /** time in milliseconds at which the poll cycle finished */
+    public final long timestamp;
+    /** whether the device answered at all */
+    public final boolean online;
+    /** the raw (encoded) values by key; values of commands may be null */
+    public final Map<Keys.Key, String> values;
+    private final Map<Keys.Key, Long> sampleTimes;
+    public final List<Rollup> rollups;
+    public final List<StateEvent> events;
+    /** the entries of the error history which were received completely in this cycle */
+    public final List<ErrorRecord> errors;
+
+    public Batch(int device, long cycle, long timestamp, Map<Keys.Key, String> values, List<Rollup> rollups) {
+        this(device, cycle, timestamp, values, Collections.emptyMap(), rollups);
+    }
+
+    public Batch(int device, long cycle, long timestamp, Map<Keys.Key, String> values,
+            Map<Keys.Key, Long> sampleTimes, List<Rollup> rollups) {
+        this(device, cycle, timestamp, values, sampleTimes, rollups, Collections.emptyList());
+    }
+
+    public Batch(int device, long cycle, long timestamp, Map<Keys.Key, String> values,
+            Map<Keys.Key, Long> sampleTimes, List<Rollup> rollups, List<StateEvent> events) {
+        this.device = device;
+        this.cycle = cycle;
+        this.polled = true;
+        this.timestamp = timestamp;
+        this.online = !values.isEmpty();
+        this.values = Collections.unmodifiableMap(values);
+        this.sampleTimes = sampleTimes;
+        this.rollups = Collections.unmodifiableList(rollups);
+        this.events = Collections.unmodifiableList(events);
+        this.errors = ErrorRecord.fromValues(device, values);
+    }
+
+    private Batch(int device, long timestamp, List<Rollup> rollups) {
+        this.device = device;
+        this.cycle = 0;
+        this.polled = false;
+        this.timestamp = timestamp;
+        this.online = false;
+        this.values = Collections.emptyMap();
+        this.sampleTimes = Collections.emptyMap();
+        this.rollups = Collections.unmodifiableList(rollups);
+        this.events = Collections.emptyList();
+        this.errors = Collections.emptyList();
+    }
+
+    /**
+     * Returns a batch which only contains rollups of a device, e.g. those flushed at shutdown.
+     */
+    public static Batch ofRollups(int device, long timestamp, List<Rollup> rollups) {
+        return new Batch(device, timestamp, rollups);
+    }
+
+    /**
+     * Returns the time in milliseconds at which the value of a key was sampled, or the timestamp
+     * of the cycle if it is not known.
+     */
+    public long getTimestamp(Keys.Key key) {
+        Long time = sampleTimes.get(key);
+        return (time == null) ? timestamp : time;
+    }
+}
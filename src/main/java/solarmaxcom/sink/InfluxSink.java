@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.sink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.Format;
+import solarmaxcom.events.StateEvent;
+import solarmaxcom.history.ErrorRecord;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.rollup.Rollup;
+
+/**
+ * Writes readings to InfluxDB in the line protocol. Lines are collected until MAX_LINES lines
+ * are pending or the oldest one is FLUSH_MILLIS old, and then sent gzip-compressed in one HTTP
+ * request. Failed requests are retried with exponential backoff when the server is unreachable,
+ * overloaded (429) or failing (5xx); other errors drop the lines, since resending the same data
+ * would fail again.
+ * <p>
+ * Poll cycles are written to the measurement <code>solarmax</code> with the tag
+ * <code>device</code>, one field per key and the field <code>online</code>; finished rollup windows
+ * are written to <code>solarmax_rollup</code> with the tags <code>device</code>, <code>key</code>
+ * and <code>window</code>, StateEvents to <code>solarmax_event</code> with the tags
+ * <code>device</code>, <code>key</code> and <code>event</code>, and ErrorRecords to
+ * <code>solarmax_error</code> with the tags <code>device</code> and <code>entry</code>.
+ */
+public class InfluxSink implements Sink {
+
+    private static final Logger logger = LoggerFactory.getLogger(InfluxSink.class);
+
+    public static final int MAX_LINES = 5000;
+    public static final long FLUSH_MILLIS = 10000;
+    public static final int MAX_ATTEMPTS = 6;
+    public static final long INITIAL_BACKOFF = 1000;
+    public static final long MAX_BACKOFF = 60000;
+
+    /**
+     * Creates the sink from the write URL, e.g.
+     * <code>influx:http://localhost:8086/api/v2/write?org=home&amp;bucket=solar</code> for InfluxDB
+     * 2 or <code>influx:http://localhost:8086/write?db=solar</code> for InfluxDB 1. An API token is
+     * taken from the environment variable INFLUX_TOKEN.
+     */
+    public static class Provider implements SinkProvider {
+        @Override
+        public String getName() {
+            return "influx";
+        }
+
+        @Override
+        public Sink create(String argument) throws IOException {
+            if (argument == null) {
+                throw new IllegalArgumentException(
+                        "The influx sink needs a write URL, e.g. influx:http://localhost:8086/write?db=solar");
+            }
+            return new InfluxSink(new URL(argument), System.getenv("INFLUX_TOKEN"));
+        }
+    }
+
+    private final URL url;
+    private final String token;
+    private final int maxLines;
+    private final long flushMillis;
+    private final int maxAttempts;
+    private final long initialBackoff;
+
+    private final StringBuilder pending = new StringBuilder(1 << 16);
+    private int pendingLines = 0;
+    private long pendingSince = 0;
+    private long requests = 0;
+    private long failedRequests = 0;
+
+    public InfluxSink(URL url, String token) {
+        this(url, token, MAX_LINES, FLUSH_MILLIS, MAX_ATTEMPTS, INITIAL_BACKOFF);
+    }
+
+    public InfluxSink(URL url, String token, int maxLines, long flushMillis, int maxAttempts, long initialBackoff) {
+        this.url = withPrecision(url);
+        this.token = token;
+        this.maxLines = maxLines;
+        this.flushMillis = flushMillis;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+    }
+
+    private static URL withPrecision(URL url) {
+        String query = url.getQuery();
+        if (query != null && query.contains("precision=")) {
+            return url;
+        }
+        try {
+            return new URL(url.toString() + ((query == null) ? "?" : "&") + "precision=ms");
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Returns the number of HTTP requests sent, including retries.
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Returns the number of HTTP requests which failed.
+     */
+    public long getFailedRequests() {
+        return failedRequests;
+    }
+
+    private static void appendString(StringBuilder s, String value) {
+        s.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                s.append('\\');
+            }
+            s.append(c == '\n' ? ' ' : c);
+        }
+        s.append('"');
+    }
+
+    /**
+     * Appends the lines for one batch in the line protocol and returns their number.
+     */
+    static int append(StringBuilder s, Batch batch) {
+        // one line per sample time, so that the values of different devices can be aligned
+        TreeMap<Long, StringBuilder> fields = new TreeMap<>();
+        if (batch.polled) {
+            fields.put(batch.timestamp, new StringBuilder("online=").append(batch.online));
+        }
+        for (Map.Entry<Keys.Key, String> e : batch.values.entrySet()) {
+            if (!(e.getKey() instanceof Keys.DataKey) || e.getValue() == null) {
+                continue;
+            }
+            Keys.DataKey<?> key = (Keys.DataKey<?>) e.getKey();
+            String number = Format.number(key, e.getValue());
+            String text = (number == null) ? Format.text(key, e.getValue()) : null;
+            if (number == null && text == null) {
+                continue;
+            }
+            StringBuilder line = fields.computeIfAbsent(batch.getTimestamp(key), t -> new StringBuilder());
+            if (line.length() > 0) {
+                line.append(',');
+            }
+            line.append(key.key).append('=');
+            if (number != null) {
+                line.append(number);
+            } else {
+                appendString(line, text);
+            }
+        }
+        for (Map.Entry<Long, StringBuilder> line : fields.entrySet()) {
+            s.append("solarmax,device=").append(batch.device).append(' ').append(line.getValue())
+                    .append(' ').append(line.getKey()).append('\n');
+        }
+
+        for (Rollup rollup : batch.rollups) {
+            s.append("solarmax_rollup,device=").append(rollup.device)
+                    .append(",key=").append(rollup.key.key)
+                    .append(",window=").append(rollup.window.label)
+                    .append(" count=").append(rollup.count).append('i');
+            appendField(s, "min", rollup.min);
+            appendField(s, "max", rollup.max);
+            appendField(s, "mean", rollup.mean);
+            appendField(s, "energy", rollup.energy);
+            s.append(' ').append(rollup.start).append('\n');
+        }
+        for (StateEvent event : batch.events) {
+            s.append("solarmax_event,device=").append(event.device)
+                    .append(",key=").append(event.key.key)
+                    .append(",event=").append(event.kind.name().toLowerCase())
+                    .append(" text=");
+            appendString(s, event.text);
+            if (event.oldValue != null) {
+                s.append(",old=");
+                appendString(s, event.oldValue);
+            }
+            s.append(",new=");
+            appendString(s, event.newValue);
+            s.append(' ').append(event.timestamp).append('\n');
+        }
+        for (ErrorRecord error : batch.errors) {
+            s.append("solarmax_error,device=").append(error.device).append(",entry=").append(error.entry)
+                    .append(" number=").append(error.number).append('i')
+                    .append(",month=").append(error.month).append('i')
+                    .append(",day=").append(error.day).append('i')
+                    .append(",hour=").append(error.hour).append('i')
+                    .append(",minute=").append(error.minute).append('i')
+                    .append(' ').append(batch.timestamp).append('\n');
+        }
+        return fields.size() + batch.rollups.size() + batch.events.size() + batch.errors.size();
+    }
+
+    private static void appendField(StringBuilder s, String name, double value) {
+        // the line protocol has no representation for NaN and infinity
+        if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+            s.append(',').append(name).append('=').append(value);
+        }
+    }
+
+    @Override
+    public void write(List<Batch> batches) throws IOException {
+        for (Batch batch : batches) {
+            if (pendingLines == 0) {
+                pendingSince = System.currentTimeMillis();
+            }
+            pendingLines += append(pending, batch);
+            if (pendingLines >= maxLines) {
+                flush();
+            }
+        }
+        tick();
+    }
+
+    @Override
+    public void tick() throws IOException {
+        if (pendingLines > 0 && System.currentTimeMillis() - pendingSince >= flushMillis) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends all pending lines. They are discarded if this fails, also after the retries.
+     */
+    public void flush() throws IOException {
+        if (pendingLines == 0) {
+            return;
+        }
+        byte[] body = gzip(pending.toString().getBytes(StandardCharsets.UTF_8));
+        int lines = pendingLines;
+        pending.setLength(0);
+        pendingLines = 0;
+
+        long backoff = initialBackoff;
+        for (int attempt = 1; ; attempt++) {
+            String error;
+            boolean retry;
+            try {
+                int status = post(body);
+                if (status / 100 == 2) {
+                    logger.debug("Wrote " + lines + " lines to InfluxDB");
+                    return;
+                }
+                error = "HTTP status " + status;
+                retry = (status == 429 || status / 100 == 5);
+            } catch (IOException e) {
+                error = e.toString();
+                retry = true;
+            }
+            failedRequests++;
+            if (!retry || attempt >= maxAttempts) {
+                throw new IOException("Could not write " + lines + " lines to InfluxDB after "
+                        + attempt + " attempts: " + error);
+            }
+            logger.info("Writing to InfluxDB failed (" + error + "); retrying in " + backoff + " ms");
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing to InfluxDB; " + lines + " lines dropped");
+            }
+            backoff = Math.min(2 * backoff, MAX_BACKOFF);
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private int post(byte[] body) throws IOException {
+        requests++;
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(10000);
+        connection.setReadTimeout(30000);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+        connection.setRequestProperty("Content-Encoding", "gzip");
+        if (token != null) {
+            connection.setRequestProperty("Authorization", "Token " + token);
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        int status = connection.getResponseCode();
+        // read the response completely so that the connection can be reused
+        try (InputStream in = (status / 100 == 2) ? connection.getInputStream() : connection.getErrorStream()) {
+            if (in != null) {
+                in.readAllBytes();
+            }
+        }
+        return status;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.sink;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import solarmaxcom.Format;
+import solarmaxcom.Json;
+import solarmaxcom.events.StateEvent;
+import solarmaxcom.history.ErrorRecord;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.rollup.Rollup;
+
+/**
+ * Appends one JSON object per poll cycle, finished rollup window, StateEvent and received
+ * ErrorRecord to a file (JSON Lines).
+ */
+public class JsonLinesSink implements Sink {
+
+    public static class Provider implements SinkProvider {
+        @Override
+        public String getName() {
+            return "jsonl";
+        }
+
+        @Override
+        public Sink create(String argument) throws IOException {
+            if (argument == null) {
+                throw new IllegalArgumentException("The jsonl sink needs a file, e.g. jsonl:readings.jsonl");
+            }
+            return new JsonLinesSink(Paths.get(argument));
+        }
+    }
+
+    private final Writer out;
+
+    public JsonLinesSink(Path path) throws IOException {
+        out = new BufferedWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), 1 << 16);
+    }
+
+    static void append(StringBuilder s, Batch batch) {
+        if (batch.polled) {
+            s.append("{\"time\":");
+            Json.appendString(s, Instant.ofEpochMilli(batch.timestamp).toString());
+            s.append(",\"device\":").append(batch.device);
+            s.append(",\"cycle\":").append(batch.cycle);
+            s.append(",\"online\":").append(batch.online);
+            s.append(",\"values\":{");
+            boolean first = true;
+            for (Map.Entry<Keys.Key, String> e : batch.values.entrySet()) {
+                if (!(e.getKey() instanceof Keys.DataKey) || e.getValue() == null) {
+                    continue;
+                }
+                Keys.DataKey<?> key = (Keys.DataKey<?>) e.getKey();
+                if (!first) {
+                    s.append(',');
+                }
+                first = false;
+                Json.appendString(s, key.key).append(':');
+                String number = Format.number(key, e.getValue());
+                if (number != null) {
+                    s.append(number);
+                } else {
+                    Json.appendString(s, Format.text(key, e.getValue()));
+                }
+            }
+            s.append("}}\n");
+        }
+        for (Rollup rollup : batch.rollups) {
+            s.append("{\"rollup\":").append(rollup.toJson()).append("}\n");
+        }
+        for (StateEvent event : batch.events) {
+            s.append("{\"event\":").append(event.toJson()).append("}\n");
+        }
+        for (ErrorRecord error : batch.errors) {
+            s.append("{\"error\":").append(error.toJson()).append("}\n");
+        }
+    }
+
+    @Override
+    public void write(List<Batch> batches) throws IOException {
+        StringBuilder s = new StringBuilder(256 * batches.size());
+        for (Batch batch : batches) {
+            append(s, batch);
+        }
+        out.write(s.toString());
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.sink;
+
+import com.hivemq.client.mqtt.mqtt3.Mqtt3BlockingClient;
+import com.hivemq.client.mqtt.mqtt3.Mqtt3Client;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import solarmaxcom.Format;
+import solarmaxcom.events.StateEvent;
+import solarmaxcom.history.ErrorRecord;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.rollup.Rollup;
+
+/**
+ * Publishes every value to the MQTT topic <code>solarmax/&lt;device&gt;/&lt;key&gt;</code>, whether
+ * the device answered to <code>solarmax/&lt;device&gt;/online</code> and finished rollup windows as
+ * JSON to <code>solarmax/&lt;device&gt;/&lt;key&gt;/&lt;window&gt;</code>. StateEvents are
+ * published as JSON to <code>solarmax/&lt;device&gt;/events</code>, ErrorRecords to
+ * <code>solarmax/&lt;device&gt;/errors/&lt;entry&gt;</code>. The connection is opened with the first
+ * batch, and again with the next one if that fails.
+ */
+public class MqttSink implements Sink {
+
+    public static class Provider implements SinkProvider {
+        @Override
+        public String getName() {
+            return "mqtt";
+        }
+
+        @Override
+        public Sink create(String argument) {
+            if (argument == null) {
+                throw new IllegalArgumentException("The mqtt sink needs a server, e.g. mqtt:mqtt.local");
+            }
+            return new MqttSink(argument);
+        }
+    }
+
+    private final String server;
+    private Mqtt3BlockingClient mqtt = null;
+
+    /**
+     * @param server host name, optionally followed by a colon and the port
+     */
+    public MqttSink(String server) {
+        this.server = server;
+    }
+
+    private void connect() {
+        int colon = server.lastIndexOf(':');
+        Mqtt3BlockingClient client = (colon == -1)
+                ? Mqtt3Client.builder().serverHost(server).buildBlocking()
+                : Mqtt3Client.builder().serverHost(server.substring(0, colon))
+                        .serverPort(Integer.parseInt(server.substring(colon + 1))).buildBlocking();
+        // only kept once connected, so that the next batch tries again if the broker is not up yet
+        client.connect();
+        mqtt = client;
+    }
+
+    private void publish(String topic, String payload) {
+        mqtt.publishWith().topic(topic)
+                .payload(payload.getBytes(StandardCharsets.UTF_8))
+                .send();
+    }
+
+    @Override
+    public void write(List<Batch> batches) {
+        if (mqtt == null) {
+            connect();
+        }
+        for (Batch batch : batches) {
+            if (batch.polled) {
+                publish("solarmax/" + batch.device + "/online", batch.online ? "1" : "0");
+            }
+            for (Map.Entry<Keys.Key, String> e : batch.values.entrySet()) {
+                if (e.getKey() instanceof Keys.DataKey && e.getValue() != null) {
+                    String text = Format.text((Keys.DataKey<?>) e.getKey(), e.getValue());
+                    if (text != null) {
+                        publish("solarmax/" + batch.device + "/" + e.getKey().key, text);
+                    }
+                }
+            }
+            for (Rollup rollup : batch.rollups) {
+                publish("solarmax/" + rollup.device + "/" + rollup.key.key + "/" + rollup.window.label,
+                        rollup.toJson());
+            }
+            for (StateEvent event : batch.events) {
+                publish("solarmax/" + event.device + "/events", event.toJson());
+            }
+            for (ErrorRecord error : batch.errors) {
+                publish("solarmax/" + error.device + "/errors/" + error.entry, error.toJson());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mqtt != null) {
+            mqtt.disconnect();
+        }
+    }
+}
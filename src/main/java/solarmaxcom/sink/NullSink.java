@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.sink;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Discards all batches; useful to measure the polling overhead without output.
+ */
+public class NullSink implements Sink {
+
+    public static class Provider implements SinkProvider {
+        @Override
+        public String getName() {
+            return "null";
+        }
+
+        @Override
+        public Sink create(String argument) {
+            return new NullSink();
+        }
+    }
+
+    private final AtomicLong batches = new AtomicLong();
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    @Override
+    public void write(List<Batch> batches) {
+        this.batches.addAndGet(batches.size());
+    }
+
+    @Override
+    public void close() {
+    }
+}
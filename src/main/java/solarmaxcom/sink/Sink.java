@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.sink;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * An output for the results of poll cycles. A sink is only called from its own thread, with all
+ * batches which have been buffered since the previous call, so it does not need to be thread-safe
+ * and may block, e.g. for network I/O.
+ */
+public interface Sink {
+
+    void write(List<Batch> batches) throws IOException;
+
+    /**
+     * Called about every 100 ms while no batches arrive; allows sinks which collect batches to
+     * write them after some time.
+     */
+    default void tick() throws IOException {
+    }
+
+    /**
+     * Flushes and releases all resources.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.sink;
+
+import java.io.IOException;
+
+/**
+ * Service provider interface for sinks. Implementations are found with java.util.ServiceLoader,
+ * so additional sinks can be added by putting a JAR with a
+ * <code>META-INF/services/solarmaxcom.sink.SinkProvider</code> file on the class path.
+ */
+public interface SinkProvider {
+
+    /**
+     * Returns the name by which the sink is selected on the command line.
+     */
+    String getName();
+
+    /**
+     * Creates a sink.
+     *
+     * @param argument the part after the colon in <code>--sink name:argument</code>, or null
+     */
+    Sink create(String argument) throws IOException;
+}
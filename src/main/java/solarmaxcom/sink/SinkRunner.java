@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.sink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a Sink on its own thread with its own bounded buffer, so that a slow or failing sink
+ * cannot stall polling or other sinks. If the buffer is full, the oldest batch is dropped.
+ */
+public class SinkRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(SinkRunner.class);
+
+    public static final int DEFAULT_BUFFER = 1000;
+
+    /** maximum number of batches handed to the sink at once */
+    private static final int MAX_WRITE = 1000;
+
+    public final String name;
+    private final Sink sink;
+    private final ArrayBlockingQueue<Batch> buffer;
+    private final Thread thread;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running = true;
+
+    public SinkRunner(String name, Sink sink, int bufferSize) {
+        this.name = name;
+        this.sink = sink;
+        buffer = new ArrayBlockingQueue<>(bufferSize);
+        thread = new Thread(this::run, "sink-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Creates and starts the sink given as <code>name[:argument]</code>.
+     */
+    public static SinkRunner create(String spec, int bufferSize) throws IOException {
+        int colon = spec.indexOf(':');
+        String name = (colon == -1) ? spec : spec.substring(0, colon);
+        String argument = (colon == -1) ? null : spec.substring(colon + 1);
+        for (SinkProvider provider : ServiceLoader.load(SinkProvider.class)) {
+            if (provider.getName().equals(name)) {
+                return new SinkRunner(name, provider.create(argument), bufferSize);
+            }
+        }
+        throw new IllegalArgumentException("Unknown sink " + name + "; available: " + getSinkNames());
+    }
+
+    public static List<String> getSinkNames() {
+        ArrayList<String> names = new ArrayList<>();
+        for (SinkProvider provider : ServiceLoader.load(SinkProvider.class)) {
+            names.add(provider.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Adds a batch to the buffer without blocking.
+     */
+    public void offer(Batch batch) {
+        while (!buffer.offer(batch)) {
+            if (buffer.poll() != null && dropped.incrementAndGet() % 100 == 1) {
+                logger.warn("Sink " + name + " cannot keep up; " + dropped.get() + " batches dropped so far");
+            }
+        }
+    }
+
+    /**
+     * Returns the number of batches dropped because the buffer was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void run() {
+        ArrayList<Batch> batches = new ArrayList<>();
+        while (running || !buffer.isEmpty()) {
+            try {
+                Batch first = buffer.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    sink.tick();
+                    continue;
+                }
+                batches.add(first);
+                buffer.drainTo(batches, MAX_WRITE - 1);
+                sink.write(batches);
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Sink " + name + " failed to write " + batches.size() + " batches: " + e);
+            }
+            batches.clear();
+        }
+        try {
+            sink.close();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not close sink " + name + ": " + e);
+        }
+    }
+
+    /**
+     * Lets the sink thread write the remaining buffered batches and close the sink, and waits for
+     * it to finish.
+     */
+    public void close() {
+        running = false;
+        try {
+            thread.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            logger.warn("Sink " + name + " did not finish within 10 s; " + buffer.size() + " batches left");
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.sink;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import solarmaxcom.Format;
+import solarmaxcom.events.StateEvent;
+import solarmaxcom.history.ErrorRecord;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.rollup.Rollup;
+
+/**
+ * Prints all values, one per line, to the standard output.
+ */
+public class StdoutSink implements Sink {
+
+    public static class Provider implements SinkProvider {
+        @Override
+        public String getName() {
+            return "stdout";
+        }
+
+        @Override
+        public Sink create(String argument) {
+            return new StdoutSink(System.out);
+        }
+    }
+
+    private final PrintStream out;
+
+    public StdoutSink(PrintStream out) {
+        this.out = out;
+    }
+
+    static String format(Batch batch) {
+        StringBuilder s = new StringBuilder();
+        String prefix = Instant.ofEpochMilli(batch.timestamp) + " " + batch.device + " ";
+        if (batch.polled && !batch.online) {
+            s.append(prefix).append("no reply\n");
+        }
+        for (Map.Entry<Keys.Key, String> e : batch.values.entrySet()) {
+            Keys.Key k = e.getKey();
+            s.append(prefix).append(k.key).append(' ').append(k.name).append(": ");
+            String text = (k instanceof Keys.DataKey && e.getValue() != null)
+                    ? Format.text((Keys.DataKey<?>) k, e.getValue()) : null;
+            if (text != null) {
+                s.append(text);
+                String unit = Keys.getUnit(k);
+                if (!unit.isEmpty()) {
+                    s.append(' ').append(unit);
+                }
+            } else {
+                s.append(e.getValue());
+            }
+            s.append('\n');
+        }
+        for (Rollup rollup : batch.rollups) {
+            s.append(prefix).append("Rollup ").append(rollup).append('\n');
+        }
+        for (StateEvent event : batch.events) {
+            s.append(prefix).append("Event ").append(event).append('\n');
+        }
+        for (ErrorRecord error : batch.errors) {
+            s.append(prefix).append(error).append('\n');
+        }
+        return s.toString();
+    }
+
+    @Override
+    public void write(List<Batch> batches) {
+        StringBuilder s = new StringBuilder();
+        for (Batch batch : batches) {
+            s.append(format(batch));
+        }
+        byte[] bytes = s.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        out.flush();
+    }
+}
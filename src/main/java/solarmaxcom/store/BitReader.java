@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.store;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads bits written by a BitWriter directly from a ByteBuffer, which is typically a slice of a
+ * memory-mapped segment; nothing is copied to the heap.
+ */
+public final class BitReader {
+
+    private final ByteBuffer buffer;
+    private final int start;
+    private final long bitLimit;
+    private long bitPosition = 0;
+
+    public BitReader(ByteBuffer buffer, int offset, int byteLength) {
+        this.buffer = buffer;
+        this.start = offset;
+        this.bitLimit = byteLength * 8L;
+    }
+
+    public boolean readBit() {
+        if (bitPosition >= bitLimit) {
+            throw new IllegalStateException("Read beyond end of bit stream.");
+        }
+        int b = buffer.get(start + (int) (bitPosition >>> 3));
+        boolean bit = (b & (0x80 >>> (bitPosition & 7))) != 0;
+        bitPosition++;
+        return bit;
+    }
+
+    /**
+     * Reads <code>count</code> bits (between 0 and 64) and returns them as the lowest bits of a long.
+     */
+    public long readBits(int count) {
+        if (bitPosition + count > bitLimit) {
+            throw new IllegalStateException("Read beyond end of bit stream.");
+        }
+        long value = 0;
+        int remaining = count;
+        while (remaining > 0) {
+            int b = buffer.get(start + (int) (bitPosition >>> 3)) & 0xFF;
+            int bitOffset = (int) (bitPosition & 7);
+            int available = 8 - bitOffset;
+            int n = Math.min(available, remaining);
+            int bits = (b >>> (available - n)) & ((1 << n) - 1);
+            value = (value << n) | bits;
+            remaining -= n;
+            bitPosition += n;
+        }
+        return value;
+    }
+
+    /**
+     * Reads <code>count</code> bits and interprets them as a two's complement number.
+     */
+    public long readSignedBits(int count) {
+        long value = readBits(count);
+        return (value << (64 - count)) >> (64 - count);
+    }
+}
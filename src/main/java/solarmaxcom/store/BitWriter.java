@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.store;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Collects single bits and bit groups into a growing byte array, most significant bit first.
+ */
+public final class BitWriter {
+
+    private byte[] bytes;
+    private long bitLength = 0;
+
+    public BitWriter(int initialCapacity) {
+        bytes = new byte[Math.max(initialCapacity, 8)];
+    }
+
+    public void writeBit(boolean bit) {
+        ensureCapacity(1);
+        if (bit) {
+            int index = (int) (bitLength >>> 3);
+            bytes[index] |= (byte) (0x80 >>> (bitLength & 7));
+        }
+        bitLength++;
+    }
+
+    /**
+     * Writes the lowest <code>count</code> bits of <code>value</code>, where count is between 0 and 64.
+     */
+    public void writeBits(long value, int count) {
+        ensureCapacity(count);
+        for (int i = count - 1; i >= 0; i--) {
+            if (((value >>> i) & 1) != 0) {
+                int index = (int) (bitLength >>> 3);
+                bytes[index] |= (byte) (0x80 >>> (bitLength & 7));
+            }
+            bitLength++;
+        }
+    }
+
+    public long bitLength() {
+        return bitLength;
+    }
+
+    public int byteLength() {
+        return (int) ((bitLength + 7) >>> 3);
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(bytes, 0, byteLength());
+    }
+
+    public void reset() {
+        Arrays.fill(bytes, 0, byteLength(), (byte) 0);
+        bitLength = 0;
+    }
+
+    private void ensureCapacity(int additionalBits) {
+        long required = (bitLength + additionalBits + 7) >>> 3;
+        if (required > bytes.length) {
+            bytes = Arrays.copyOf(bytes, (int) Math.max(required, bytes.length * 2L));
+        }
+    }
+}
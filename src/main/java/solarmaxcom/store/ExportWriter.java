@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.store;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * Writes query results as CSV (<code>time,device,key,value</code>) or as JSON Lines. Rows are
+ * formatted into a reused buffer; the date and time up to the minute is formatted only once per
+ * minute, and values are rounded to the precision of their key, so that exports of millions of
+ * rows are limited by the disk rather than by formatting.
+ */
+public final class ExportWriter implements Query.RowConsumer, Flushable {
+
+    public enum Format {
+        CSV, JSONL
+    }
+
+    private final Writer out;
+    private final Format format;
+    private final int device;
+    private final int[] decimals = new int[Keys.getKeyCount()];
+    private final StringBuilder row = new StringBuilder(128);
+    private long minute = Long.MIN_VALUE;
+    private String minutePrefix;
+
+    /**
+     * @param extraDecimals additional decimals beyond the precision of the key, e.g. for averages
+     */
+    public ExportWriter(Writer out, Format format, int device, int extraDecimals) {
+        this.out = out;
+        this.format = format;
+        this.device = device;
+        for (int i = 0; i < decimals.length; i++) {
+            Keys.Key key = Keys.getKeyByOrdinal(i);
+            decimals[i] = extraDecimals;
+            if (key instanceof Keys.DoubleKey) {
+                decimals[i] += ((Keys.DoubleKey) key).decimals;
+            }
+        }
+    }
+
+    public void writeHeader() throws IOException {
+        if (format == Format.CSV) {
+            out.write("time,device,key,value\n");
+        }
+    }
+
+    @Override
+    public void accept(long timestamp, Keys.Key key, double value) throws IOException {
+        row.setLength(0);
+        if (format == Format.CSV) {
+            appendTime(timestamp);
+            row.append(',').append(device).append(',').append(key.key).append(',');
+            appendValue(key, value);
+        } else {
+            row.append("{\"time\":\"");
+            appendTime(timestamp);
+            row.append("\",\"device\":").append(device);
+            row.append(",\"key\":\"").append(key.key).append("\",\"value\":");
+            appendValue(key, value);
+            row.append('}');
+        }
+        row.append('\n');
+        out.append(row);
+    }
+
+    private void appendTime(long timestamp) {
+        long m = Math.floorDiv(timestamp, 60_000);
+        if (m != minute) {
+            minute = m;
+            String s = Instant.ofEpochMilli(m * 60_000).toString();  // yyyy-mm-ddThh:mm:00Z
+            minutePrefix = s.substring(0, s.length() - 3);
+        }
+        int millis = (int) Math.floorMod(timestamp, 60_000);
+        int seconds = millis / 1000;
+        millis = millis % 1000;
+        row.append(minutePrefix);
+        row.append((char) ('0' + seconds / 10)).append((char) ('0' + seconds % 10));
+        row.append('.');
+        row.append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10))
+                .append((char) ('0' + millis % 10));
+        row.append('Z');
+    }
+
+    private void appendValue(Keys.Key key, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            row.append(format == Format.CSV ? "" : "null");
+            return;
+        }
+        int decimals = this.decimals[key.ordinal];
+        if (decimals <= 0) {
+            row.append(Math.round(value));
+            return;
+        }
+        long scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+        long scaled = Math.round(value * scale);
+        if (scaled < 0) {
+            row.append('-');
+            scaled = -scaled;
+        }
+        row.append(scaled / scale).append('.');
+        String fraction = Long.toString(scaled % scale);
+        for (int i = fraction.length(); i < decimals; i++) {
+            row.append('0');
+        }
+        row.append(fraction);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
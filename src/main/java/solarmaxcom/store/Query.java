@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * A time-range query over the segments of one device. Samples are decoded lazily, block by block,
+ * straight from the memory-mapped segments and merged into a single stream ordered by time, so
+ * the heap usage does not depend on the size of the result. Segments outside the range are
+ * skipped by their file name, blocks by the SegmentIndex. With a step greater than zero, the
+ * samples of each key are downsampled to the mean of each step-sized interval.
+ */
+public class Query {
+
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+    public final int device;
+    public final List<Keys.Key> keys;
+    public final long from;
+    public final long to;
+    public final long step;
+
+    /**
+     * Receives the result rows in chronological order.
+     */
+    public interface RowConsumer {
+        void accept(long timestamp, Keys.Key key, double value) throws IOException;
+    }
+
+    /**
+     * Creates a query for samples with from &lt;= timestamp &lt; to. If keys is empty, all numeric
+     * keys are queried.
+     */
+    public Query(int device, Collection<Keys.Key> keys, long from, long to, long step) {
+        this.device = device;
+        this.from = from;
+        this.to = to;
+        this.step = step;
+        ArrayList<Keys.Key> keyList = new ArrayList<>();
+        if (keys.isEmpty()) {
+            for (int i = 0; i < Keys.getKeyCount(); i++) {
+                Keys.Key k = Keys.getKeyByOrdinal(i);
+                if (k instanceof Keys.IntegerKey || k instanceof Keys.DoubleKey) {
+                    keyList.add(k);
+                }
+            }
+        } else {
+            keyList.addAll(keys);
+        }
+        this.keys = keyList;
+    }
+
+    /**
+     * Runs the query against the store in <code>directory</code> and returns the number of rows.
+     */
+    public long run(Path directory, RowConsumer consumer) throws IOException {
+        SegmentPool pool = new SegmentPool(new TimeSeriesStore(directory));
+        PriorityQueue<Cursor> queue = new PriorityQueue<>((a, b) -> (a.timestamp != b.timestamp)
+                ? Long.compare(a.timestamp, b.timestamp) : Integer.compare(a.key.ordinal, b.key.ordinal));
+        long rows = 0;
+        try {
+            for (Keys.Key key : keys) {
+                Cursor cursor = new SeriesCursor(key, pool);
+                if (step > 0) {
+                    cursor = new DownsamplingCursor(cursor, step);
+                }
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+            while (!queue.isEmpty()) {
+                Cursor cursor = queue.poll();
+                if (!cursor.marker) {
+                    consumer.accept(cursor.timestamp, cursor.key, cursor.value);
+                    rows++;
+                }
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+            }
+        } finally {
+            pool.closeAll();
+        }
+        return rows;
+    }
+
+    /**
+     * A pull-based stream of samples. When a cursor has finished a day, it reports a marker at the
+     * start of the next day instead of moving on immediately; this keeps all cursors of a query
+     * on the same day, so each segment is opened only once.
+     */
+    private abstract static class Cursor {
+        final Keys.Key key;
+        long timestamp;
+        double value;
+        boolean marker;
+
+        Cursor(Keys.Key key) {
+            this.key = key;
+        }
+
+        abstract boolean next() throws IOException;
+    }
+
+    /**
+     * Opens each segment once and closes it when all cursors have moved past it.
+     */
+    private final class SegmentPool {
+        final TimeSeriesStore store;
+        final HashMap<Long, Segment> segments = new HashMap<>();
+        final HashMap<Long, SegmentIndex> indexes = new HashMap<>();
+        final HashMap<Long, Integer> users = new HashMap<>();
+
+        SegmentPool(TimeSeriesStore store) {
+            this.store = store;
+        }
+
+        /**
+         * Returns the index of a day, or null if there is no segment for it.
+         */
+        SegmentIndex acquire(long epochDay) throws IOException {
+            if (!indexes.containsKey(epochDay)) {
+                Path path = store.segmentPath(device, epochDay);
+                if (Files.exists(path)) {
+                    Segment segment = Segment.openForRead(path);
+                    segments.put(epochDay, segment);
+                    indexes.put(epochDay, SegmentIndex.build(segment));
+                } else {
+                    indexes.put(epochDay, null);
+                }
+            }
+            users.merge(epochDay, 1, Integer::sum);
+            return indexes.get(epochDay);
+        }
+
+        Segment segment(long epochDay) {
+            return segments.get(epochDay);
+        }
+
+        void release(long epochDay) throws IOException {
+            if (users.merge(epochDay, -1, Integer::sum) == 0) {
+                users.remove(epochDay);
+                indexes.remove(epochDay);
+                Segment segment = segments.remove(epochDay);
+                if (segment != null) {
+                    segment.close();
+                }
+            }
+        }
+
+        void closeAll() throws IOException {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+        }
+    }
+
+    private final class SeriesCursor extends Cursor {
+        final SegmentPool pool;
+        final long lastDay;
+        long day;
+        boolean acquired = false;
+        boolean dayFinished = true;
+        Segment segment = null;
+        List<Segment.Block> blocks = null;
+        int blockIndex;
+        int remaining = 0;
+        TimestampColumn.Decoder timestamps;
+        ValueColumn.Decoder values;
+
+        SeriesCursor(Keys.Key key, SegmentPool pool) {
+            super(key);
+            this.pool = pool;
+            this.day = Math.floorDiv(from, MILLIS_PER_DAY) - 1;
+            this.lastDay = Math.floorDiv(to - 1, MILLIS_PER_DAY);
+        }
+
+        @Override
+        boolean next() throws IOException {
+            marker = false;
+            while (true) {
+                if (remaining > 0) {
+                    remaining--;
+                    long t = timestamps.next();
+                    double v = values.next();
+                    if (t < from) {
+                        continue;
+                    }
+                    if (t >= to) {
+                        remaining = 0;
+                        blockIndex = blocks.size();
+                        continue;
+                    }
+                    timestamp = t;
+                    value = v;
+                    return true;
+                }
+                if (blocks != null && blockIndex < blocks.size()) {
+                    Segment.Block block = blocks.get(blockIndex++);
+                    if (block.firstTimestamp >= to) {
+                        blockIndex = blocks.size();
+                        continue;
+                    }
+                    timestamps = segment.timestampDecoder(block);
+                    values = segment.valueDecoder(block);
+                    remaining = block.count;
+                    continue;
+                }
+                if (!dayFinished) {
+                    dayFinished = true;
+                    if (day < lastDay) {
+                        marker = true;
+                        timestamp = (day + 1) * MILLIS_PER_DAY;
+                        return true;
+                    }
+                }
+                if (acquired) {
+                    pool.release(day);
+                    acquired = false;
+                }
+                if (day >= lastDay) {
+                    return false;
+                }
+                nextDay();
+            }
+        }
+
+        private void nextDay() throws IOException {
+            day++;
+            dayFinished = false;
+            blocks = null;
+            segment = null;
+            SegmentIndex index = pool.acquire(day);
+            acquired = true;
+            if (index != null) {
+                segment = pool.segment(day);
+                blocks = index.blocks(key.ordinal);
+                blockIndex = index.firstBlock(key.ordinal, from);
+            }
+        }
+    }
+
+    private static final class DownsamplingCursor extends Cursor {
+        final Cursor source;
+        final long step;
+        boolean pending;
+
+        DownsamplingCursor(Cursor source, long step) throws IOException {
+            super(source.key);
+            this.source = source;
+            this.step = step;
+            this.pending = source.next();
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (!pending) {
+                return false;
+            }
+            if (source.marker) {
+                marker = true;
+                timestamp = source.timestamp;
+                pending = source.next();
+                return true;
+            }
+            marker = false;
+            long bucket = Math.floorDiv(source.timestamp, step) * step;
+            double sum = 0;
+            long count = 0;
+            while (pending && source.timestamp < bucket + step) {
+                if (!source.marker) {
+                    sum += source.value;
+                    count++;
+                }
+                pending = source.next();
+            }
+            timestamp = bucket;
+            value = sum / count;
+            return true;
+        }
+    }
+}
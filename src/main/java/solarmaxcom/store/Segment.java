@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only, memory-mapped file holding the readings of one device for one day. The file
+ * starts with a header and is followed by blocks, each of which contains a compressed run of
+ * samples of a single key:
+ * <pre>
+ *   header: magic (4) | version (4) | device (4) | epoch day (4) | committed end (8) | reserved (8)
+ *   block:  key ordinal (2) | reserved (2) | count (4) | first timestamp (8) | last timestamp (8) |
+ *           timestamp bytes (4) | value bytes (4) | timestamp column | value column
+ * </pre>
+ * A block becomes visible once the committed end in the header has been advanced past it, so a
+ * crash while appending loses at most the block being written.
+ */
+public final class Segment implements Closeable {
+
+    public static final int MAGIC = 0x534D5853; // "SMXS"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int BLOCK_HEADER_SIZE = 32;
+
+    private static final int POS_MAGIC = 0;
+    private static final int POS_VERSION = 4;
+    private static final int POS_DEVICE = 8;
+    private static final int POS_EPOCH_DAY = 12;
+    private static final int POS_END = 16;
+    private static final int MIN_MAPPING = 64 * 1024;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final boolean writable;
+    private final int device;
+    private final long epochDay;
+    private MappedByteBuffer buffer;
+    private int end;
+
+    /**
+     * Describes one block of a segment without decoding it.
+     */
+    public static final class Block {
+        public final int keyOrdinal;
+        public final int count;
+        public final long firstTimestamp;
+        public final long lastTimestamp;
+        final int offset;
+        final int timestampBytes;
+        final int valueBytes;
+
+        Block(int keyOrdinal, int count, long firstTimestamp, long lastTimestamp, int offset,
+                int timestampBytes, int valueBytes) {
+            this.keyOrdinal = keyOrdinal;
+            this.count = count;
+            this.firstTimestamp = firstTimestamp;
+            this.lastTimestamp = lastTimestamp;
+            this.offset = offset;
+            this.timestampBytes = timestampBytes;
+            this.valueBytes = valueBytes;
+        }
+    }
+
+    /**
+     * Receives decoded samples.
+     */
+    public interface SampleConsumer {
+        void accept(long timestamp, double value);
+    }
+
+    private Segment(Path path, FileChannel channel, boolean writable, int device, long epochDay) {
+        this.path = path;
+        this.channel = channel;
+        this.writable = writable;
+        this.device = device;
+        this.epochDay = epochDay;
+    }
+
+    /**
+     * Opens a segment for appending, creating it if it does not exist yet.
+     */
+    public static Segment openForAppend(Path path, int device, long epochDay) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            Segment segment = new Segment(path, channel, true, device, epochDay);
+            if (channel.size() < HEADER_SIZE) {
+                segment.map(MIN_MAPPING);
+                segment.buffer.putInt(POS_MAGIC, MAGIC);
+                segment.buffer.putInt(POS_VERSION, VERSION);
+                segment.buffer.putInt(POS_DEVICE, device);
+                segment.buffer.putInt(POS_EPOCH_DAY, (int) epochDay);
+                segment.buffer.putLong(POS_END, HEADER_SIZE);
+                segment.end = HEADER_SIZE;
+            } else {
+                segment.map(Math.max(channel.size(), MIN_MAPPING));
+                segment.checkHeader();
+                if (segment.buffer.getInt(POS_DEVICE) != device
+                        || segment.buffer.getInt(POS_EPOCH_DAY) != epochDay) {
+                    throw new IOException("Segment " + path + " belongs to another device or day.");
+                }
+            }
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static Segment openForRead(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Segment " + path + " is too short.");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Segment segment = new Segment(path, channel, false, buffer.getInt(POS_DEVICE),
+                    buffer.getInt(POS_EPOCH_DAY));
+            segment.buffer = buffer;
+            segment.checkHeader();
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void checkHeader() throws IOException {
+        if (buffer.getInt(POS_MAGIC) != MAGIC || buffer.getInt(POS_VERSION) != VERSION) {
+            throw new IOException("File " + path + " is not a segment of version " + VERSION + ".");
+        }
+        long committed = buffer.getLong(POS_END);
+        if (committed < HEADER_SIZE || committed > buffer.capacity()) {
+            throw new IOException("Segment " + path + " has an invalid end marker " + committed + ".");
+        }
+        end = (int) committed;
+    }
+
+    private void map(long size) throws IOException {
+        buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getDevice() {
+        return device;
+    }
+
+    public long getEpochDay() {
+        return epochDay;
+    }
+
+    /**
+     * Returns the committed length of the segment in bytes.
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * Appends a block and commits it.
+     */
+    public void append(int keyOrdinal, int count, long firstTimestamp, long lastTimestamp,
+            BitWriter timestamps, BitWriter values) throws IOException {
+        if (!writable) {
+            throw new IllegalStateException("Segment " + path + " is opened read-only.");
+        }
+        int size = BLOCK_HEADER_SIZE + timestamps.byteLength() + values.byteLength();
+        if ((long) end + size > Integer.MAX_VALUE) {
+            throw new IOException("Segment " + path + " is full.");
+        }
+        if (end + size > buffer.capacity()) {
+            map(Math.max(buffer.capacity() * 2L, end + size));
+        }
+
+        ByteBuffer out = buffer.duplicate();
+        out.position(end);
+        out.putShort((short) keyOrdinal);
+        out.putShort((short) 0);
+        out.putInt(count);
+        out.putLong(firstTimestamp);
+        out.putLong(lastTimestamp);
+        out.putInt(timestamps.byteLength());
+        out.putInt(values.byteLength());
+        timestamps.writeTo(out);
+        values.writeTo(out);
+
+        end += size;
+        buffer.putLong(POS_END, end);
+    }
+
+    /**
+     * Lists all committed blocks by walking the block headers.
+     */
+    public List<Block> blocks() {
+        ArrayList<Block> blocks = new ArrayList<>();
+        int pos = HEADER_SIZE;
+        while (pos + BLOCK_HEADER_SIZE <= end) {
+            Block block = new Block(buffer.getShort(pos) & 0xFFFF, buffer.getInt(pos + 4),
+                    buffer.getLong(pos + 8), buffer.getLong(pos + 16), pos,
+                    buffer.getInt(pos + 24), buffer.getInt(pos + 28));
+            blocks.add(block);
+            pos += BLOCK_HEADER_SIZE + block.timestampBytes + block.valueBytes;
+        }
+        return blocks;
+    }
+
+    public TimestampColumn.Decoder timestampDecoder(Block block) {
+        return new TimestampColumn.Decoder(new BitReader(buffer, block.offset + BLOCK_HEADER_SIZE,
+                block.timestampBytes), block.firstTimestamp);
+    }
+
+    public ValueColumn.Decoder valueDecoder(Block block) {
+        return new ValueColumn.Decoder(new BitReader(buffer,
+                block.offset + BLOCK_HEADER_SIZE + block.timestampBytes, block.valueBytes));
+    }
+
+    /**
+     * Decodes all samples of a block straight from the mapped file.
+     */
+    public void read(Block block, SampleConsumer consumer) {
+        TimestampColumn.Decoder timestamps = timestampDecoder(block);
+        ValueColumn.Decoder values = valueDecoder(block);
+        for (int i = 0; i < block.count; i++) {
+            consumer.accept(timestamps.next(), values.next());
+        }
+    }
+
+    /**
+     * Writes the mapped pages to disk.
+     */
+    public void force() {
+        if (writable) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Flushes the segment and cuts off the unused part of the mapping.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (writable) {
+                buffer.force();
+                buffer = null;
+                channel.truncate(end);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
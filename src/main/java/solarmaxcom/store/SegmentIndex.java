@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sparse time index of a Segment: one entry per block, grouped by key and ordered by time. It is
+ * built from the block headers alone, so the compressed columns are only touched for blocks which
+ * overlap the queried time range.
+ */
+public final class SegmentIndex {
+
+    private final ArrayList<ArrayList<Segment.Block>> byKey = new ArrayList<>();
+
+    private SegmentIndex() {
+    }
+
+    public static SegmentIndex build(Segment segment) {
+        SegmentIndex index = new SegmentIndex();
+        for (Segment.Block block : segment.blocks()) {
+            while (index.byKey.size() <= block.keyOrdinal) {
+                index.byKey.add(null);
+            }
+            ArrayList<Segment.Block> blocks = index.byKey.get(block.keyOrdinal);
+            if (blocks == null) {
+                blocks = new ArrayList<>();
+                index.byKey.set(block.keyOrdinal, blocks);
+            }
+            blocks.add(block);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the blocks of a key in the order they were written, which is chronological.
+     */
+    public List<Segment.Block> blocks(int keyOrdinal) {
+        if (keyOrdinal < byKey.size() && byKey.get(keyOrdinal) != null) {
+            return byKey.get(keyOrdinal);
+        } else {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Returns the position of the first block of the key that may contain samples at or after
+     * <code>from</code>, or the number of blocks if there is none.
+     */
+    public int firstBlock(int keyOrdinal, long from) {
+        List<Segment.Block> blocks = blocks(keyOrdinal);
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks.get(mid).lastTimestamp < from) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.protocol.Keys;
+
+/**
+ * A local store for the numeric readings of SolarMax devices. For every device and every (UTC) day
+ * there is one Segment file, <code>&lt;directory&gt;/&lt;device&gt;/&lt;yyyy-mm-dd&gt;.seg</code>.
+ * Samples of each key are collected in memory and appended as a compressed block once the block
+ * is full or spans more than MAX_BLOCK_SPAN milliseconds. All open blocks of a device are written
+ * and forced to disk at least every flush interval (default: FLUSH_INTERVAL), so a crash or power
+ * loss only loses the samples since then; close() writes all of them. This class is thread-safe,
+ * so it can be closed from a shutdown hook.
+ */
+public class TimeSeriesStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimeSeriesStore.class);
+
+    public static final String SEGMENT_SUFFIX = ".seg";
+    public static final int MAX_BLOCK_SAMPLES = 1024;
+    public static final long MAX_BLOCK_SPAN = 10 * 60 * 1000;
+    public static final long FLUSH_INTERVAL = 60 * 1000;
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+    private final Path directory;
+    private final HashMap<Integer, DeviceWriter> writers = new HashMap<>();
+    private long flushInterval = FLUSH_INTERVAL;
+
+    /**
+     * Collects the samples of one key until they are written as a block.
+     */
+    private static final class OpenBlock {
+        final int keyOrdinal;
+        final BitWriter timestampBits = new BitWriter(256);
+        final BitWriter valueBits = new BitWriter(512);
+        TimestampColumn.Encoder timestamps;
+        ValueColumn.Encoder values;
+        int count = 0;
+        long firstTimestamp;
+        long lastTimestamp;
+
+        OpenBlock(int keyOrdinal) {
+            this.keyOrdinal = keyOrdinal;
+        }
+
+        void add(long timestamp, double value) {
+            if (count == 0) {
+                firstTimestamp = timestamp;
+                timestamps = new TimestampColumn.Encoder(timestampBits, timestamp);
+                values = new ValueColumn.Encoder(valueBits);
+            } else {
+                timestamps.add(timestamp);
+            }
+            values.add(value);
+            lastTimestamp = timestamp;
+            count++;
+        }
+
+        void writeTo(Segment segment) throws IOException {
+            if (count > 0) {
+                segment.append(keyOrdinal, count, firstTimestamp, lastTimestamp, timestampBits, valueBits);
+                timestampBits.reset();
+                valueBits.reset();
+                count = 0;
+            }
+        }
+    }
+
+    private final class DeviceWriter {
+        final int device;
+        final OpenBlock[] blocks = new OpenBlock[Keys.getKeyCount()];
+        Segment segment = null;
+        /** the time of the first sample since the last flush, or Long.MIN_VALUE */
+        long unflushedSince = Long.MIN_VALUE;
+
+        DeviceWriter(int device) {
+            this.device = device;
+        }
+
+        void add(long timestamp, int keyOrdinal, double value) throws IOException {
+            long epochDay = Math.floorDiv(timestamp, MILLIS_PER_DAY);
+            if (segment == null || segment.getEpochDay() != epochDay) {
+                close();
+                segment = Segment.openForAppend(segmentPath(device, epochDay), device, epochDay);
+            }
+
+            OpenBlock block = blocks[keyOrdinal];
+            if (block == null) {
+                block = new OpenBlock(keyOrdinal);
+                blocks[keyOrdinal] = block;
+            }
+            if (block.count > 0 && timestamp - block.firstTimestamp > MAX_BLOCK_SPAN) {
+                block.writeTo(segment);
+            }
+            block.add(timestamp, value);
+            if (block.count >= MAX_BLOCK_SAMPLES) {
+                block.writeTo(segment);
+            }
+
+            if (unflushedSince == Long.MIN_VALUE) {
+                unflushedSince = timestamp;
+            } else if (timestamp - unflushedSince >= flushInterval) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (segment != null) {
+                for (OpenBlock block : blocks) {
+                    if (block != null) {
+                        block.writeTo(segment);
+                    }
+                }
+                segment.force();
+            }
+            unflushedSince = Long.MIN_VALUE;
+        }
+
+        void close() throws IOException {
+            if (segment != null) {
+                flush();
+                segment.close();
+                segment = null;
+            }
+        }
+    }
+
+    public TimeSeriesStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds (of the sample timestamps) for which samples are only
+     * kept in memory.
+     */
+    public synchronized void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public Path segmentPath(int device, long epochDay) {
+        return directory.resolve(Integer.toString(device))
+                .resolve(LocalDate.ofEpochDay(epochDay).toString() + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Stores all numeric values of a reply. Values which cannot be decoded are skipped.
+     */
+    public void append(int device, long timestamp, Map<Keys.Key, String> values) throws IOException {
+        append(device, timestamp, values, Collections.emptyMap());
+    }
+
+    /**
+     * Stores all numeric values of a reply with their sample times; values without a sample time
+     * get the given timestamp.
+     */
+    public synchronized void append(int device, long timestamp, Map<Keys.Key, String> values,
+            Map<Keys.Key, Long> sampleTimes) throws IOException {
+        DeviceWriter writer = writers.get(device);
+        if (writer == null) {
+            writer = new DeviceWriter(device);
+            writers.put(device, writer);
+        }
+        for (Map.Entry<Keys.Key, String> e : values.entrySet()) {
+            if (e.getKey() instanceof Keys.DataKey) {
+                Double value;
+                try {
+                    value = ((Keys.DataKey<?>) e.getKey()).decodeNumber(e.getValue());
+                } catch (NumberFormatException ex) {
+                    logger.debug("Not storing invalid value '" + e.getValue() + "' of key " + e.getKey());
+                    continue;
+                }
+                if (value != null) {
+                    Long time = sampleTimes.get(e.getKey());
+                    writer.add((time == null) ? timestamp : time, e.getKey().ordinal, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends all collected samples to the segments, e.g. before a query or a shutdown.
+     */
+    public synchronized void flush() throws IOException {
+        for (DeviceWriter writer : writers.values()) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOException exception = null;
+        for (DeviceWriter writer : writers.values()) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        writers.clear();
+        if (exception != null) {
+            throw exception;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.store;
+
+/**
+ * Delta-of-delta compression for a column of millisecond timestamps, following the scheme of
+ * Facebook's Gorilla paper. The first timestamp of a block is kept in the block header; every
+ * further timestamp is stored as the difference between its delta and the previous delta:
+ * <pre>
+ *   0                        delta unchanged
+ *   10   + 7 bits            -64 ..   63
+ *   110  + 9 bits           -256 ..  255
+ *   1110 + 12 bits         -2048 .. 2047
+ *   1111 + 64 bits           anything else
+ * </pre>
+ * With regular polling the jitter is a few milliseconds, so most timestamps need 1 to 12 bits.
+ */
+public final class TimestampColumn {
+
+    private TimestampColumn() {
+    }
+
+    public static final class Encoder {
+        private final BitWriter out;
+        private long previous;
+        private long previousDelta = 0;
+
+        public Encoder(BitWriter out, long first) {
+            this.out = out;
+            this.previous = first;
+        }
+
+        public void add(long timestamp) {
+            long delta = timestamp - previous;
+            long dod = delta - previousDelta;
+            if (dod == 0) {
+                out.writeBit(false);
+            } else if (dod >= -64 && dod <= 63) {
+                out.writeBits(0b10, 2);
+                out.writeBits(dod, 7);
+            } else if (dod >= -256 && dod <= 255) {
+                out.writeBits(0b110, 3);
+                out.writeBits(dod, 9);
+            } else if (dod >= -2048 && dod <= 2047) {
+                out.writeBits(0b1110, 4);
+                out.writeBits(dod, 12);
+            } else {
+                out.writeBits(0b1111, 4);
+                out.writeBits(dod, 64);
+            }
+            previous = timestamp;
+            previousDelta = delta;
+        }
+    }
+
+    public static final class Decoder {
+        private final BitReader in;
+        private long previous;
+        private long previousDelta = 0;
+        private boolean first = true;
+
+        public Decoder(BitReader in, long first) {
+            this.in = in;
+            this.previous = first;
+        }
+
+        /**
+         * Returns the next timestamp; the first call returns the timestamp from the block header.
+         */
+        public long next() {
+            if (first) {
+                first = false;
+                return previous;
+            }
+            long dod;
+            if (!in.readBit()) {
+                dod = 0;
+            } else if (!in.readBit()) {
+                dod = in.readSignedBits(7);
+            } else if (!in.readBit()) {
+                dod = in.readSignedBits(9);
+            } else if (!in.readBit()) {
+                dod = in.readSignedBits(12);
+            } else {
+                dod = in.readBits(64);
+            }
+            previousDelta += dod;
+            previous += previousDelta;
+            return previous;
+        }
+    }
+}
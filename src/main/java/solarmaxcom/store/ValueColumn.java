@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.store;
+
+/**
+ * XOR compression for a column of doubles as described in Facebook's Gorilla paper. The first
+ * value is stored with all 64 bits; every further value is XORed with its predecessor:
+ * <pre>
+ *   0                                          value unchanged
+ *   10 + meaningful bits                       XOR fits into the previous leading/trailing zero window
+ *   11 + 5 bits leading zeros + 6 bits length + meaningful bits
+ * </pre>
+ * Values from the inverter are fixed-point numbers that change slowly, so repeated values cost a
+ * single bit.
+ */
+public final class ValueColumn {
+
+    private ValueColumn() {
+    }
+
+    public static final class Encoder {
+        private final BitWriter out;
+        private long previous;
+        private int previousLeading = -1;
+        private int previousTrailing = 0;
+        private boolean first = true;
+
+        public Encoder(BitWriter out) {
+            this.out = out;
+        }
+
+        public void add(double value) {
+            long bits = Double.doubleToLongBits(value);
+            if (first) {
+                out.writeBits(bits, 64);
+                previous = bits;
+                first = false;
+                return;
+            }
+
+            long xor = bits ^ previous;
+            if (xor == 0) {
+                out.writeBit(false);
+            } else {
+                out.writeBit(true);
+                int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trailing = Long.numberOfTrailingZeros(xor);
+                if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                    out.writeBit(false);
+                    out.writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+                } else {
+                    int significant = 64 - leading - trailing;
+                    out.writeBit(true);
+                    out.writeBits(leading, 5);
+                    out.writeBits(significant - 1, 6);
+                    out.writeBits(xor >>> trailing, significant);
+                    previousLeading = leading;
+                    previousTrailing = trailing;
+                }
+            }
+            previous = bits;
+        }
+    }
+
+    public static final class Decoder {
+        private final BitReader in;
+        private long previous;
+        private int previousLeading = 0;
+        private int previousTrailing = 0;
+        private boolean first = true;
+
+        public Decoder(BitReader in) {
+            this.in = in;
+        }
+
+        public double next() {
+            if (first) {
+                previous = in.readBits(64);
+                first = false;
+            } else if (in.readBit()) {
+                if (in.readBit()) {
+                    previousLeading = (int) in.readBits(5);
+                    int significant = (int) in.readBits(6) + 1;
+                    previousTrailing = 64 - previousLeading - significant;
+                }
+                long xor = in.readBits(64 - previousLeading - previousTrailing) << previousTrailing;
+                previous ^= xor;
+            }
+            return Double.longBitsToDouble(previous);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.tuning;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds the number of keys per request which yields the most values per second for one device
+ * type. The rate of every packet size is tracked as an exponentially weighted moving average, so
+ * timeouts and incomplete replies count against the size which caused them. Most packets use the
+ * best size found so far; every EXPLORE_EVERY-th packet tries one more or one less key, and the
+ * best size moves to a neighbour once it is measurably faster.
+ */
+public class BatchSizeTuner {
+
+    /**
+     * Is notified when the best size has changed.
+     */
+    public interface Listener {
+        void bestChanged(int keysPerRequest, Map<Integer, Double> valuesPerSecond);
+    }
+
+    public static final int MAX_KEYS = 32;
+    static final int MIN_SAMPLES = 5;
+    static final int EXPLORE_EVERY = 8;
+    static final double ALPHA = 0.2;
+    /** a neighbour must be this much faster to become the best size */
+    static final double MIN_GAIN = 1.02;
+
+    private final double[] rate = new double[MAX_KEYS + 1];
+    private final int[] samples = new int[MAX_KEYS + 1];
+    private final Listener listener;
+    private final Object notifying = new Object();
+    private int best;
+    private long packets = 0;
+    private boolean exploreUp = true;
+
+    public BatchSizeTuner(int initial, Listener listener) {
+        this.best = Math.max(1, Math.min(MAX_KEYS, initial));
+        this.listener = listener;
+    }
+
+    public synchronized int getBest() {
+        return best;
+    }
+
+    /**
+     * Returns the number of keys for the next packet.
+     */
+    public synchronized int nextSize() {
+        packets++;
+        if (samples[best] < MIN_SAMPLES || packets % EXPLORE_EVERY != 0) {
+            return best;
+        }
+        exploreUp = !exploreUp;
+        int candidate = exploreUp ? best + 1 : best - 1;
+        return (candidate < 1 || candidate > MAX_KEYS) ? best : candidate;
+    }
+
+    /**
+     * Records the outcome of a packet. The listener is called after the tuner has been unlocked, so
+     * only the thread which found a new best size waits for it.
+     *
+     * @param keys number of keys requested
+     * @param values number of values received, 0 if there was no valid reply
+     * @param nanos round-trip time
+     */
+    public void record(int keys, int values, long nanos) {
+        if (update(keys, values, nanos) && listener != null) {
+            // notifications are serialized and always report the latest state, so that the last
+            // one is never overtaken by an older one
+            synchronized (notifying) {
+                int keysPerRequest;
+                Map<Integer, Double> rates;
+                synchronized (this) {
+                    keysPerRequest = best;
+                    rates = getRates();
+                }
+                listener.bestChanged(keysPerRequest, rates);
+            }
+        }
+    }
+
+    /**
+     * Updates the rate of a size and returns whether the best size has changed.
+     */
+    private synchronized boolean update(int keys, int values, long nanos) {
+        if (keys < 1 || keys > MAX_KEYS || nanos <= 0) {
+            return false;
+        }
+        double r = values * 1e9 / nanos;
+        rate[keys] = (samples[keys] == 0) ? r : rate[keys] + ALPHA * (r - rate[keys]);
+        samples[keys]++;
+
+        int next = best;
+        for (int n : new int[] {best - 1, best + 1}) {
+            if (n >= 1 && n <= MAX_KEYS && samples[n] >= MIN_SAMPLES && rate[n] > rate[next] * MIN_GAIN) {
+                next = n;
+            }
+        }
+        if (next == best) {
+            return false;
+        }
+        best = next;
+        return true;
+    }
+
+    /**
+     * Returns the measured values per second for every size which has been used.
+     */
+    public synchronized Map<Integer, Double> getRates() {
+        TreeMap<Integer, Double> rates = new TreeMap<>();
+        for (int n = 1; n <= MAX_KEYS; n++) {
+            if (samples[n] > 0) {
+                rates.put(n, rate[n]);
+            }
+        }
+        return rates;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.tuning;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Settings which apply to all devices of one type, identified by the raw value of Keys.TYPE.
+ */
+public final class DeviceProfile {
+
+    /** the raw value of TYP, e.g. 2B07 */
+    public final String type;
+    /** the decoded type, e.g. SolarMax 2500SP */
+    public final String name;
+    public final int keysPerRequest;
+    /** the measured values per second by keys per request */
+    public final Map<Integer, Double> valuesPerSecond;
+
+    public DeviceProfile(String type, String name, int keysPerRequest, Map<Integer, Double> valuesPerSecond) {
+        this.type = type;
+        this.name = name;
+        this.keysPerRequest = keysPerRequest;
+        this.valuesPerSecond = Collections.unmodifiableMap(new TreeMap<>(valuesPerSecond));
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + type + "): " + keysPerRequest + " keys per request";
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.tuning;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the DeviceProfiles in a properties file, e.g.
+ * <pre>
+ * 2B07.name=SolarMax 2500SP
+ * 2B07.keysPerRequest=6
+ * 2B07.valuesPerSecond=1\:31.2,2\:52.0,...
+ * </pre>
+ * The file is rewritten completely whenever a profile changes.
+ */
+public class ProfileStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProfileStore.class);
+
+    private final Path file;
+    private final HashMap<String, DeviceProfile> profiles = new HashMap<>();
+
+    /**
+     * Loads the profiles from the file, if it exists.
+     */
+    public ProfileStore(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            Properties properties = new Properties();
+            try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                properties.load(in);
+            }
+            for (String name : properties.stringPropertyNames()) {
+                if (!name.endsWith(".keysPerRequest")) {
+                    continue;
+                }
+                String type = name.substring(0, name.length() - ".keysPerRequest".length());
+                try {
+                    TreeMap<Integer, Double> rates = new TreeMap<>();
+                    String list = properties.getProperty(type + ".valuesPerSecond", "");
+                    for (String entry : list.split(",")) {
+                        int colon = entry.indexOf(':');
+                        if (colon != -1) {
+                            rates.put(Integer.parseInt(entry.substring(0, colon)),
+                                    Double.parseDouble(entry.substring(colon + 1)));
+                        }
+                    }
+                    profiles.put(type, new DeviceProfile(type, properties.getProperty(type + ".name", type),
+                            Integer.parseInt(properties.getProperty(name)), rates));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring invalid profile " + type + " in " + file);
+                }
+            }
+        }
+    }
+
+    public synchronized DeviceProfile get(String type) {
+        return profiles.get(type);
+    }
+
+    /**
+     * Adds or replaces a profile and saves all profiles.
+     */
+    public synchronized void put(DeviceProfile profile) throws IOException {
+        profiles.put(profile.type, profile);
+        Properties properties = new Properties();
+        for (DeviceProfile p : profiles.values()) {
+            properties.setProperty(p.type + ".name", p.name);
+            properties.setProperty(p.type + ".keysPerRequest", Integer.toString(p.keysPerRequest));
+            StringBuilder rates = new StringBuilder();
+            for (Map.Entry<Integer, Double> e : p.valuesPerSecond.entrySet()) {
+                if (rates.length() > 0) {
+                    rates.append(',');
+                }
+                rates.append(e.getKey()).append(':').append(String.format(Locale.ROOT, "%.1f", e.getValue()));
+            }
+            properties.setProperty(p.type + ".valuesPerSecond", rates.toString());
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            properties.store(out, "solarmaxcom device profiles");
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
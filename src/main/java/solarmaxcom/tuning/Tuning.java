@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.tuning;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.Poller;
+
+/**
+ * One BatchSizeTuner per device type, shared by all devices of that type and started from the
+ * saved profile. Whenever a tuner finds a better size, the profile is saved.
+ */
+public class Tuning {
+
+    private static final Logger logger = LoggerFactory.getLogger(Tuning.class);
+
+    private final ProfileStore store;
+    private final ConcurrentHashMap<String, BatchSizeTuner> tuners = new ConcurrentHashMap<>();
+
+    public Tuning(ProfileStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Returns the tuner for a device type.
+     *
+     * @param type the raw value of TYP
+     * @param name the decoded type
+     */
+    public BatchSizeTuner forType(String type, String name) {
+        return tuners.computeIfAbsent(type, t -> {
+            DeviceProfile profile = store.get(t);
+            int initial = (profile == null) ? Poller.MAX_KEYS_PER_REQUEST : profile.keysPerRequest;
+            logger.info("Tuning keys per request for " + name + ", starting with " + initial);
+            return new BatchSizeTuner(initial, (keys, rates) -> {
+                DeviceProfile changed = new DeviceProfile(t, name, keys, rates);
+                logger.info("Device profile changed: " + changed);
+                try {
+                    store.put(changed);
+                } catch (IOException e) {
+                    logger.warn("Could not save device profile: " + e);
+                }
+            });
+        });
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import org.junit.jupiter.api.Test;
+import solarmaxcom.cache.LatestValueCache;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.protocol.Packet;
+import solarmaxcom.sim.SimulatedDevice;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+/**
+ * Checks that a poll cycle stays within the allocation and latency budget in budget.properties.
+ * The budget is deliberately committed with the code: if a change makes a cycle allocate more or
+ * take longer, this test fails and the budget has to be raised on purpose, in the same commit.
+ */
+public class BudgetTest {
+
+    private static final int WARMUP_CYCLES = 20000;
+    private static final int CYCLES = 5000;
+
+    private static final List<Keys.Key> KEYS = Arrays.asList(Keys.AC_OUTPUT, Keys.DC_INPUT, Keys.VOLTAGE_DC,
+            Keys.CURRENT_DC, Keys.ENERGY_DAY, Keys.ENERGY_TOTAL, Keys.SYSTEM_STATUS);
+
+    /**
+     * A device in memory which answers each distinct request with the reply a SimulatedDevice gave
+     * to it the first time, so that the measurement only contains the allocations of the poller.
+     */
+    private static class FakeDevice implements Transport {
+        private final SimulatedDevice device = new SimulatedDevice(1);
+        private final HashMap<String, String> replies = new HashMap<>();
+
+        @Override
+        public String makeRequest(String message) {
+            String reply = replies.get(message);
+            if (reply == null) {
+                try {
+                    reply = device.handle(Packet.parse(message)).build();
+                } catch (Packet.ParseException e) {
+                    throw new IllegalArgumentException(e);
+                }
+                replies.put(message, reply);
+            }
+            return reply;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static Properties loadBudget() throws IOException {
+        Properties budget = new Properties();
+        try (InputStream in = BudgetTest.class.getResourceAsStream("budget.properties")) {
+            budget.load(in);
+        }
+        return budget;
+    }
+
+    @Test
+    public void testPollCycleBudget() throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        Poller poller = new Poller(new FakeDevice(), new LatestValueCache());
+        for (int i = 0; i < WARMUP_CYCLES; i++) {
+            poller.poll(1, KEYS);
+        }
+
+        long[] latencies = new long[CYCLES];
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < CYCLES; i++) {
+            long start = System.nanoTime();
+            poller.poll(1, KEYS);
+            latencies[i] = System.nanoTime() - start;
+        }
+        long bytesPerCycle = (threads.getThreadAllocatedBytes(thread) - allocatedBefore) / CYCLES;
+        Arrays.sort(latencies);
+        long medianMicros = latencies[CYCLES / 2] / 1000;
+
+        Properties budget = loadBudget();
+        long maxBytes = Long.parseLong(budget.getProperty("poll.bytesPerCycle"));
+        long maxMicros = Long.parseLong(budget.getProperty("poll.medianMicros"));
+        assertTrue(bytesPerCycle <= maxBytes,
+                "A poll cycle allocates " + bytesPerCycle + " bytes, the budget is " + maxBytes);
+        assertTrue(medianMicros <= maxMicros,
+                "A poll cycle takes " + medianMicros + " microseconds (median), the budget is " + maxMicros);
+    }
+}
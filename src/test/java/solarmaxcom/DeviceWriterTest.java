@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.protocol.Packet;
+import solarmaxcom.sim.SimulatedDevice;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeviceWriterTest {
+
+    /**
+     * Answers requests in memory with a SimulatedDevice.
+     */
+    private static class SimulatedTransport implements Transport {
+        final SimulatedDevice device;
+        final List<String> requests = new ArrayList<>();
+        boolean ignoreWrites = false;
+
+        SimulatedTransport(SimulatedDevice device) {
+            this.device = device;
+        }
+
+        @Override
+        public String makeRequest(String message) {
+            requests.add(message);
+            try {
+                Packet request = Packet.parse(message);
+                if (ignoreWrites) {
+                    request.port = Packet.PORT_USER_DATA;
+                }
+                Packet reply = device.handle(request);
+                return (reply == null) ? "" : reply.build();
+            } catch (Packet.ParseException e) {
+                return "";
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void testClockInOnePacket() {
+        SimulatedTransport transport = new SimulatedTransport(new SimulatedDevice(3));
+        DeviceWriter writer = new DeviceWriter(transport);
+        DeviceWriter.Result result = writer.write(3, DeviceWriter.clock(LocalDateTime.of(2021, 12, 4, 13, 55, 49)));
+        assertTrue(result.isComplete());
+        assertEquals(1, result.packets);
+        assertEquals(1, transport.requests.size());
+        assertTrue(result.acknowledged.contains(Keys.DATE));
+        assertTrue(result.acknowledged.contains(Keys.TIME));
+        assertEquals(LocalDate.of(2021, 12, 4), Keys.DATE.decode(transport.device.get(Keys.DATE)));
+        assertEquals(LocalTime.of(13, 55, 49), Keys.TIME.decode(transport.device.get(Keys.TIME)));
+    }
+
+    @Test
+    public void testPacking() {
+        LinkedHashMap<Keys.Key, String> values = new LinkedHashMap<>();
+        for (Keys.Key key : Keys.getKeys()) {
+            if (key instanceof Keys.IntegerKey) {
+                values.put(key, "1");
+            }
+        }
+        List<Packet> packets = DeviceWriter.pack(1, values);
+        int keys = 0;
+        for (Packet packet : packets) {
+            assertEquals(Packet.PORT_COMMAND, packet.port);
+            assertTrue(packet.build().length() <= DeviceWriter.MAX_FRAME_LENGTH);
+            keys += packet.payload.size();
+        }
+        assertEquals(values.size(), keys);
+        // at most one packet more than a perfect packing of the frame contents
+        int total = 0;
+        for (Map.Entry<Keys.Key, String> e : values.entrySet()) {
+            total += e.getKey().key.length() + 1 + e.getValue().length() + 1;
+        }
+        int perPacket = DeviceWriter.MAX_FRAME_LENGTH - 19 + 1;
+        assertTrue(packets.size() <= (total + perPacket - 1) / perPacket + 1);
+    }
+
+    @Test
+    public void testRejected() {
+        SimulatedTransport transport = new SimulatedTransport(new SimulatedDevice(1));
+        transport.ignoreWrites = true;
+        transport.device.set(Keys.TIME, Keys.TIME.encode(LocalTime.of(8, 0)));
+        LinkedHashMap<Keys.Key, String> values = new LinkedHashMap<>();
+        values.put(Keys.TIME, Keys.TIME.encode(Keys.TIME.parse("12:00:00")));
+        values.put(Keys.CLEAR_ENERGY_COUNTERS, null);
+        DeviceWriter.Result result = new DeviceWriter(transport).write(1, values);
+        assertFalse(result.isComplete());
+        // the command is echoed, but the time is not the one written
+        assertEquals(Keys.CLEAR_ENERGY_COUNTERS, result.acknowledged.iterator().next());
+        assertTrue(result.rejected.containsKey(Keys.TIME));
+
+        DeviceWriter.Result timeout = new DeviceWriter(transport).write(2, values);
+        assertEquals(2, timeout.rejected.size());
+        assertNull(timeout.rejected.get(Keys.TIME));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import org.junit.jupiter.api.Test;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.protocol.Packet;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InterFrameGapTest {
+
+    @Test
+    public void testDestinationOf() {
+        Packet request = new Packet();
+        request.destination = 0x1f;
+        request.payload.put(Keys.AC_OUTPUT, null);
+        assertEquals(0x1f, InterFrameGap.destinationOf(request.build()));
+        assertEquals(-1, InterFrameGap.destinationOf("garbage"));
+    }
+
+    @Test
+    public void testCalibration() {
+        InterFrameGap gaps = new InterFrameGap();
+        assertEquals(0, gaps.get(1));
+        gaps.record(1, false);
+        assertEquals(InterFrameGap.MIN_STEP_NANOS, gaps.get(1));
+        gaps.record(1, false);
+        assertEquals(2 * InterFrameGap.MIN_STEP_NANOS, gaps.get(1));
+        assertEquals(0, gaps.get(2));
+
+        for (int i = 0; i < 10; i++) {
+            gaps.record(1, false);
+        }
+        assertEquals(InterFrameGap.MAX_GAP_NANOS, gaps.get(1));
+
+        for (int i = 0; i < InterFrameGap.SUCCESS_STREAK; i++) {
+            gaps.record(1, true);
+        }
+        assertEquals(InterFrameGap.MAX_GAP_NANOS * 3 / 4, gaps.get(1));
+        while (gaps.get(1) > 0) {
+            gaps.record(1, true);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.protocol.Packet;
+import solarmaxcom.sim.SimulatedDevice;
+import solarmaxcom.sim.Simulator;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PipelinedTcpCommTest {
+
+    private static final Keys.Key[] KEYS = {Keys.AC_OUTPUT, Keys.TYPE, Keys.ENERGY_TOTAL, Keys.SYSTEM_STATUS};
+
+    private static String request(Keys.Key key) {
+        Packet request = new Packet();
+        request.destination = 1;
+        request.payload.put(key, null);
+        return request.build();
+    }
+
+    /**
+     * Sends requests for all KEYS concurrently and checks that each reply belongs to its request.
+     */
+    private static int requestConcurrently(Transport transport) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(KEYS.length);
+        try {
+            List<Future<String>> replies = new ArrayList<>();
+            for (Keys.Key key : KEYS) {
+                replies.add(executor.submit(() -> transport.makeRequest(request(key))));
+            }
+            int answered = 0;
+            for (int i = 0; i < KEYS.length; i++) {
+                String reply = replies.get(i).get();
+                if (!reply.isEmpty()) {
+                    assertEquals(Collections.singleton(KEYS[i]), Packet.parse(reply).payload.keySet());
+                    answered++;
+                }
+            }
+            return answered;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPipelining() throws Exception {
+        Simulator simulator = new Simulator(new InetSocketAddress("localhost", 0),
+                Collections.singletonList(new SimulatedDevice(1)), 20);
+        simulator.start();
+        PipelinedTcpComm transport = new PipelinedTcpComm(
+                new InetSocketAddress("localhost", simulator.getPort()), 4, 3000);
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(KEYS.length, requestConcurrently(transport));
+            }
+            assertEquals(4, transport.getDepth());
+        } finally {
+            transport.close();
+            simulator.close();
+        }
+    }
+
+    @Test
+    public void testFallBack() throws Exception {
+        // a device which ignores everything it receives while it is busy with a request
+        ServerSocket server = new ServerSocket(0);
+        Thread device = new Thread(() -> {
+            SimulatedDevice simulated = new SimulatedDevice(1);
+            while (!server.isClosed()) {
+                try (Socket socket = server.accept()) {
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    StringBuilder frame = new StringBuilder();
+                    int c;
+                    while ((c = in.read()) != -1) {
+                        frame.append((char) c);
+                        if (c == '}') {
+                            Thread.sleep(50);
+                            in.skip(in.available());
+                            String reply = simulated.handle(Packet.parse(frame.toString())).build();
+                            out.write(reply.getBytes(StandardCharsets.ISO_8859_1));
+                            frame.setLength(0);
+                        }
+                    }
+                } catch (Exception e) {
+                    // closed
+                }
+            }
+        });
+        device.setDaemon(true);
+        device.start();
+        PipelinedTcpComm transport = new PipelinedTcpComm(
+                new InetSocketAddress("localhost", server.getLocalPort()), 4, 500);
+        try {
+            assertTrue(requestConcurrently(transport) < KEYS.length);
+            assertEquals(1, transport.getDepth());
+            assertEquals(KEYS.length, requestConcurrently(transport));
+        } finally {
+            transport.close();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import solarmaxcom.cache.LatestValueCache;
+import solarmaxcom.history.ErrorRecord;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.protocol.Packet;
+import solarmaxcom.sim.SimulatedDevice;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PollerTest {
+
+    /**
+     * Answers every request with the value 1 for each key; requests for IDC get a reply with an
+     * invalid checksum, requests for UDC no reply at all.
+     */
+    private static class FakeSerialComm extends SerialComm {
+        @Override
+        public String makeRequest(String message) {
+            try {
+                Packet request = Packet.parse(message);
+                if (request.payload.containsKey(Keys.VOLTAGE_DC)) {
+                    return "";
+                }
+                Packet reply = new Packet();
+                reply.source = request.destination;
+                reply.destination = request.source;
+                for (Keys.Key key : request.payload.keySet()) {
+                    reply.payload.put(key, "1");
+                }
+                String frame = reply.build();
+                if (request.payload.containsKey(Keys.CURRENT_DC)) {
+                    frame = frame.replace("=1", "=2");
+                }
+                return frame;
+            } catch (Packet.ParseException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        Poller poller = new Poller(new FakeSerialComm(), new LatestValueCache());
+        Path file = Files.createTempFile("poller", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("solarmaxcom.Transaction");
+            recording.enable("solarmaxcom.ParseFailure");
+            recording.enable("solarmaxcom.PollCycle");
+            recording.start();
+            poller.poll(1, Arrays.asList(Keys.AC_OUTPUT, Keys.ENERGY_DAY));
+            poller.poll(1, Arrays.asList(Keys.CURRENT_DC));
+            poller.poll(1, Arrays.asList(Keys.VOLTAGE_DC));
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            Map<String, List<RecordedEvent>> byName = events.stream()
+                    .collect(Collectors.groupingBy(e -> e.getEventType().getName()));
+
+            List<RecordedEvent> transactions = byName.get("solarmaxcom.Transaction");
+            assertEquals(3, transactions.size());
+            List<String> outcomes = transactions.stream().map(e -> e.getString("outcome"))
+                    .sorted().collect(Collectors.toList());
+            assertEquals(Arrays.asList("ok", "parse error", "timeout"), outcomes);
+            RecordedEvent ok = transactions.stream().filter(e -> e.getString("outcome").equals("ok"))
+                    .findFirst().get();
+            assertEquals(1, ok.getInt("device"));
+            assertEquals(2, ok.getInt("keys"));
+            assertTrue(ok.getLong("bytesReceived") > 0);
+
+            List<RecordedEvent> failures = byName.get("solarmaxcom.ParseFailure");
+            assertEquals(1, failures.size());
+            assertEquals("CRC", failures.get(0).getString("kind"));
+
+            List<RecordedEvent> cycles = byName.get("solarmaxcom.PollCycle");
+            assertEquals(3, cycles.size());
+            assertEquals(2, cycles.stream().filter(e -> e.getLong("cycle") == 1).findFirst().get()
+                    .getInt("keysReceived"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testSampleTimes() {
+        Transport slow = new Transport() {
+            final FakeSerialComm fake = new FakeSerialComm();
+
+            @Override
+            public String makeRequest(String message) {
+                try {
+                    Thread.sleep(40);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return fake.makeRequest(message);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        LatestValueCache cache = new LatestValueCache();
+        Poller poller = new Poller(slow, cache);
+        long before = SampleClock.now();
+        poller.poll(1, Arrays.asList(Keys.AC_OUTPUT, Keys.ENERGY_DAY, Keys.ENERGY_TOTAL, Keys.DC_INPUT));
+        long after = SampleClock.now();
+
+        Map<Keys.Key, Long> times = poller.getSampleTimes();
+        assertEquals(4, times.size());
+        long first = times.values().stream().mapToLong(Long::longValue).min().getAsLong();
+        long last = times.values().stream().mapToLong(Long::longValue).max().getAsLong();
+        assertTrue(first >= before + 15 && last <= after - 15, "sample times are round-trip midpoints");
+        assertTrue(last - first >= 35, "the second packet is sampled one round trip later");
+        assertEquals(3, times.values().stream().filter(t -> t == first).count());
+        assertTrue(poller.getCycleTimestamp() >= last);
+        for (Map.Entry<Keys.Key, Long> e : times.entrySet()) {
+            assertEquals((long) e.getValue(), cache.get(1).getTimestamp(e.getKey()));
+        }
+    }
+
+    @Test
+    public void testClockSkew() {
+        HashMap<Keys.Key, String> reply = new HashMap<>();
+        reply.put(Keys.DATE, Keys.DATE.encode(LocalDate.of(2021, 12, 4)));
+        reply.put(Keys.TIME, Keys.TIME.encode(LocalTime.of(13, 55, 49)));
+        long sampleTime = Instant.parse("2021-12-04T13:55:47Z").toEpochMilli();
+        assertEquals(2500, Poller.clockSkew(reply, sampleTime, ZoneOffset.UTC));
+        assertEquals(2500 - 3600000, Poller.clockSkew(reply, sampleTime, ZoneOffset.ofHours(1)));
+
+        // without the date, the skew across midnight is taken as the smaller one
+        reply.remove(Keys.DATE);
+        reply.put(Keys.TIME, Keys.TIME.encode(LocalTime.of(23, 59, 59)));
+        sampleTime = Instant.parse("2021-12-05T00:00:01Z").toEpochMilli();
+        assertEquals(-1500, Poller.clockSkew(reply, sampleTime, ZoneOffset.UTC));
+
+        reply.put(Keys.TIME, "garbage");
+        assertNull(Poller.clockSkew(reply, sampleTime, ZoneOffset.UTC));
+    }
+
+    @Test
+    public void testDependentKeys() {
+        SimulatedDevice device = new SimulatedDevice(1);
+        device.set(Keys.ERROR_1_NUMBER, "4E2A");
+        device.set(Keys.ERROR_1_MONTH, "C");
+        device.set(Keys.ERROR_1_DAY, "4");
+        device.set(Keys.ERROR_1_HOUR, "E");
+        device.set(Keys.ERROR_1_MINUTE, "37");
+        device.set(Keys.ERROR_2_NUMBER, "4E20");
+        device.set(Keys.ERROR_3_NUMBER, "4E20");
+        ArrayList<Keys.Key> requested = new ArrayList<>();
+        Transport transport = new Transport() {
+            @Override
+            public String makeRequest(String message) {
+                try {
+                    Packet request = Packet.parse(message);
+                    requested.addAll(request.payload.keySet());
+                    return device.handle(request).build();
+                } catch (Packet.ParseException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Poller poller = new Poller(transport, new LatestValueCache());
+        List<Keys.Key> keys = Arrays.asList(Keys.AC_OUTPUT, Keys.ERROR_1_NUMBER, Keys.ERROR_1_MONTH,
+                Keys.ERROR_1_DAY, Keys.ERROR_1_HOUR, Keys.ERROR_1_MINUTE);
+
+        Map<Keys.Key, String> reply = poller.poll(1, keys);
+        assertEquals(new HashSet<>(keys), reply.keySet(), "the extra triggers are not returned");
+        List<ErrorRecord> errors = ErrorRecord.fromValues(1, reply);
+        assertEquals(1, errors.size());
+        assertEquals("Error 1: 20010 on 12-04 at 14:55", errors.get(0).toString());
+
+        requested.clear();
+        reply = poller.poll(1, keys);
+        assertEquals(new HashSet<>(Arrays.asList(Keys.AC_OUTPUT, Keys.ERROR_1_NUMBER, Keys.ERROR_2_NUMBER,
+                Keys.ERROR_3_NUMBER, Keys.ERROR_1_HOUR, Keys.ERROR_1_MINUTE)), new HashSet<>(requested));
+        assertFalse(poller.getSampleTimes().containsKey(Keys.ERROR_2_NUMBER));
+        assertTrue(ErrorRecord.fromValues(1, reply).isEmpty());
+        assertEquals("37", poller.getCache().get(1).getValue(Keys.ERROR_1_MINUTE));
+
+        device.set(Keys.ERROR_1_NUMBER, "4E2B");
+        device.set(Keys.ERROR_1_MINUTE, "38");
+        requested.clear();
+        reply = poller.poll(1, keys);
+        assertEquals(8, requested.size());
+        assertEquals("38", reply.get(Keys.ERROR_1_MINUTE));
+
+        // the same error occurs again: only the older entries change, but the newest one has a new time
+        device.set(Keys.ERROR_2_NUMBER, "4E2B");
+        device.set(Keys.ERROR_3_NUMBER, "4E2A");
+        device.set(Keys.ERROR_1_MINUTE, "3A");
+        requested.clear();
+        reply = poller.poll(1, keys);
+        assertEquals(8, requested.size());
+        assertEquals("3A", poller.getCache().get(1).getValue(Keys.ERROR_1_MINUTE));
+        assertEquals("Error 1: 20011 on 12-04 at 14:58", ErrorRecord.fromValues(1, reply).get(0).toString());
+
+        // once the newest entries all have the same number, only the time of the newest one changes
+        device.set(Keys.ERROR_3_NUMBER, "4E2B");
+        device.set(Keys.ERROR_1_MINUTE, "3B");
+        poller.poll(1, keys);
+        device.set(Keys.ERROR_1_HOUR, "F");
+        device.set(Keys.ERROR_1_MINUTE, "2");
+        requested.clear();
+        reply = poller.poll(1, keys);
+        assertEquals(8, requested.size());
+        assertEquals("Error 1: 20011 on 12-04 at 15:02", ErrorRecord.fromValues(1, reply).get(0).toString());
+    }
+
+    @Test
+    public void testPipelinedCycle() throws Exception {
+        ScheduledExecutorService device = Executors.newSingleThreadScheduledExecutor();
+        FakeSerialComm fake = new FakeSerialComm();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        // answers each request after 50 ms, however many others are in flight
+        Transport pipelined = new Transport() {
+            @Override
+            public String makeRequest(String message) {
+                return sendRequest(message).join();
+            }
+
+            @Override
+            public int getPipelineDepth() {
+                return 4;
+            }
+
+            @Override
+            public CompletableFuture<String> sendRequest(String message) {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                CompletableFuture<String> reply = new CompletableFuture<>();
+                device.schedule(() -> {
+                    inFlight.decrementAndGet();
+                    reply.complete(fake.makeRequest(message));
+                }, 50, TimeUnit.MILLISECONDS);
+                return reply;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        try {
+            Poller poller = new Poller(pipelined, new LatestValueCache());
+            poller.setDependentKeys(Collections.emptyList());
+            List<Keys.Key> keys = Arrays.asList(Keys.AC_OUTPUT, Keys.ENERGY_DAY, Keys.ENERGY_TOTAL,
+                    Keys.DC_INPUT, Keys.SYSTEM_STATUS, Keys.TYPE, Keys.ENERGY_YEAR, Keys.ENERGY_MONTH,
+                    Keys.OPERATING_HOURS, Keys.START_UPS, Keys.RELATIVE_OUTPUT, Keys.SYSTEM_ALARMS);
+            long start = System.nanoTime();
+            Map<Keys.Key, String> reply = poller.poll(1, keys);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+
+            assertEquals(keys.size(), reply.size());
+            assertEquals(4, maxInFlight.get(), "all packets of the cycle are in flight at once");
+            assertTrue(millis < 150, "the cycle takes about one round trip, not four: " + millis + " ms");
+            long first = poller.getSampleTimes().values().stream().mapToLong(Long::longValue).min().getAsLong();
+            long last = poller.getSampleTimes().values().stream().mapToLong(Long::longValue).max().getAsLong();
+            assertTrue(last - first < 40, "all packets are sampled during the same round trip");
+        } finally {
+            device.shutdown();
+        }
+    }
+}
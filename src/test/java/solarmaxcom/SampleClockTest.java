@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SampleClockTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void testReanchor() {
+        AtomicLong wall = new AtomicLong(1000000);  // shortly after 1970, as before NTP has run
+        AtomicLong nano = new AtomicLong(5 * SECOND);
+        SampleClock clock = new SampleClock(wall::get, nano::get);
+        assertEquals(1000000, clock.currentMillis());
+
+        // small deviations do not disturb the spacing of the samples
+        nano.addAndGet(SECOND);
+        wall.addAndGet(1000 + SampleClock.MAX_DEVIATION);
+        assertEquals(1001000, clock.currentMillis());
+        assertEquals(1000500, clock.millis(nano.get() - SECOND / 2));
+
+        // the system clock is set
+        wall.set(1638626149000L);
+        nano.addAndGet(SECOND / 2);
+        assertEquals(1001500, clock.currentMillis());
+        nano.addAndGet(SECOND / 2);
+        assertEquals(1638626149000L, clock.currentMillis());
+        assertEquals(1638626149250L, clock.millis(nano.get() + SECOND / 4));
+
+        // slow drift of the monotonic clock
+        for (int i = 0; i < 60; i++) {
+            nano.addAndGet(SECOND);
+            wall.addAndGet(1001);
+            clock.currentMillis();
+        }
+        assertEquals(wall.get(), clock.currentMillis(), SampleClock.MAX_DEVIATION);
+    }
+}
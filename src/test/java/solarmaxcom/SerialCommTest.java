@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SerialCommTest {
+
+    @Test
+    public void testFindStablePath(@TempDir Path dir) throws Exception {
+        Path dev = Files.createDirectory(dir.resolve("dev"));
+        Path byId = Files.createDirectory(dir.resolve("by-id"));
+        Path tty = Files.createFile(dev.resolve("ttyUSB0"));
+        Files.createFile(dev.resolve("ttyUSB1"));
+        Path link = Files.createSymbolicLink(byId.resolve("usb-FTDI_FT232R_A12345-if00-port0"),
+                byId.relativize(tty));
+
+        assertEquals(link.toString(), SerialComm.findStablePath(tty.toString(), byId));
+        assertEquals(link.toString(), SerialComm.findStablePath(link.toString(), byId));
+        assertNull(SerialComm.findStablePath(dev.resolve("ttyUSB1").toString(), byId));
+        assertNull(SerialComm.findStablePath(dev.resolve("ttyUSB9").toString(), byId));
+    }
+
+    @Test
+    public void testEndlessNoise() {
+        SerialComm comm = new SerialComm();
+        long start = System.nanoTime();
+        SerialComm.Outcome outcome = comm.readReply(buffer -> {
+            Arrays.fill(buffer, (byte) 0x55);
+            return buffer.length;
+        }, start + SerialComm.REPLY_TIMEOUT * 1_000_000);
+        assertEquals(SerialComm.Outcome.NOISE, outcome);
+        assertTrue(System.nanoTime() - start < SerialComm.REPLY_TIMEOUT * 1_000_000);
+
+        // noise which trickles in slowly is cut off by the deadline
+        start = System.nanoTime();
+        outcome = comm.readReply(buffer -> {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            buffer[0] = (byte) 0xff;
+            return 1;
+        }, start + 200_000_000L);
+        assertEquals(SerialComm.Outcome.NOISE, outcome);
+        assertTrue(System.nanoTime() - start < 1_000_000_000L);
+
+        byte[] frame = "\u0000{01;FB;0E|64:PAC|0445}".getBytes(StandardCharsets.ISO_8859_1);
+        outcome = comm.readReply(buffer -> {
+            System.arraycopy(frame, 0, buffer, 0, frame.length);
+            return frame.length;
+        }, System.nanoTime() + SerialComm.REPLY_TIMEOUT * 1_000_000);
+        assertEquals(SerialComm.Outcome.REPLY, outcome);
+        assertEquals(SerialComm.Outcome.SILENCE, comm.readReply(buffer -> 0, System.nanoTime()));
+    }
+}
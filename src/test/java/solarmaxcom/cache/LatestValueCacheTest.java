@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.cache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import solarmaxcom.protocol.Keys;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatestValueCacheTest {
+
+    @Test
+    public void testMerge() {
+        LatestValueCache cache = new LatestValueCache();
+        assertNull(cache.get(1));
+
+        HashMap<Keys.Key, String> reply = new HashMap<>();
+        reply.put(Keys.AC_OUTPUT, "2d");
+        reply.put(Keys.ENERGY_DAY, "7");
+        cache.update(1, 1, 1000, reply);
+
+        cache.update(1, 2, 2000, Collections.singletonMap(Keys.AC_OUTPUT, "30"));
+        DeviceSnapshot snapshot = cache.get(1);
+        assertEquals(2, snapshot.cycle);
+        assertTrue(snapshot.online);
+        assertEquals("30", snapshot.getValue(Keys.AC_OUTPUT));
+        assertEquals(2000, snapshot.getTimestamp(Keys.AC_OUTPUT));
+        assertEquals("7", snapshot.getValue(Keys.ENERGY_DAY));
+        assertEquals(1000, snapshot.getTimestamp(Keys.ENERGY_DAY));
+        assertNull(snapshot.getValue(Keys.CURRENT_DC));
+
+        cache.update(1, 3, 3000, Collections.emptyMap());
+        assertFalse(cache.get(1).online);
+        assertEquals("30", cache.get(1).getValue(Keys.AC_OUTPUT));
+    }
+
+    @Test
+    public void testConsistentSnapshots() throws Exception {
+        LatestValueCache cache = new LatestValueCache();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (running.get()) {
+                DeviceSnapshot s = cache.get(1);
+                if (s != null) {
+                    String expected = Long.toHexString(s.cycle);
+                    if (!expected.equals(s.getValue(Keys.AC_OUTPUT)) || !expected.equals(s.getValue(Keys.ENERGY_DAY))) {
+                        failure.set("Inconsistent snapshot in cycle " + s.cycle);
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (long cycle = 1; cycle <= 100000; cycle++) {
+            HashMap<Keys.Key, String> reply = new HashMap<>();
+            reply.put(Keys.AC_OUTPUT, Long.toHexString(cycle));
+            reply.put(Keys.ENERGY_DAY, Long.toHexString(cycle));
+            cache.update(1, cycle, cycle, reply);
+        }
+        running.set(false);
+        reader.join();
+        assertNull(failure.get());
+    }
+}
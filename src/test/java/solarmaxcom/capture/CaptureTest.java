@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.capture;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import solarmaxcom.protocol.Keys;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CaptureTest {
+
+    @TempDir
+    Path dir;
+
+    private Path writeCapture() throws Exception {
+        Path file = dir.resolve("test.cap");
+        try (CaptureWriter writer = new CaptureWriter(file)) {
+            writer.cycle(1);
+            writer.request("{FB;01;16|64:PAC|0436}");
+            writer.reply("{01;FB;19|64:PAC=2d|050C}");
+            writer.request("{FB;01;16|64:UDC|043E}");
+            writer.reply("");
+            writer.cycle(1);
+            writer.request("{FB;01;16|64:PAC|0436}");
+            writer.reply("{01;FB;19|64:PAC=2e|050D}");
+            writer.request("{FB;01;16|64:KDY|044A}");
+            writer.reply("{01;FB;18|64:KDY=7|04C0}");
+        }
+        return file;
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        Path file = writeCapture();
+        List<Frame> frames = new ArrayList<>();
+        try (CaptureReader reader = new CaptureReader(file)) {
+            Frame frame;
+            while ((frame = reader.next()) != null) {
+                frames.add(frame);
+            }
+        }
+        assertEquals(10, frames.size());
+        assertEquals(Frame.Type.CYCLE, frames.get(0).type);
+        assertEquals(1, frames.get(0).device);
+        assertEquals(Frame.Type.REPLY, frames.get(2).type);
+        assertEquals("{01;FB;19|64:PAC=2d|050C}", frames.get(2).data);
+        assertEquals("", frames.get(4).data);
+        for (int i = 1; i < frames.size(); i++) {
+            assertTrue(frames.get(i).timestamp >= frames.get(i - 1).timestamp);
+        }
+        assertTrue(Math.abs(frames.get(0).timestamp / 1_000_000 - System.currentTimeMillis()) < 60000);
+
+        // a truncated last record is ignored
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(file) - 3);
+        }
+        int count = 0;
+        try (CaptureReader reader = new CaptureReader(file)) {
+            while (reader.next() != null) {
+                count++;
+            }
+        }
+        assertEquals(9, count);
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        Path file = writeCapture();
+        List<Map<Keys.Key, String>> cycles = new ArrayList<>();
+        Replayer.Result result = new Replayer(file, 0).run((device, timestamp, reply) -> {
+            assertEquals(1, device);
+            cycles.add(reply);
+        });
+        assertEquals(2, result.cycles);
+        assertEquals(8, result.frames);
+        assertEquals(0, result.parseErrors);
+        assertEquals(1, cycles.get(0).size());
+        assertEquals("2d", cycles.get(0).get(Keys.AC_OUTPUT));
+        assertEquals("2e", cycles.get(1).get(Keys.AC_OUTPUT));
+        assertEquals("7", cycles.get(1).get(Keys.ENERGY_DAY));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.events;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import solarmaxcom.protocol.Keys;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TransitionDetectorTest {
+
+    private static HashMap<Keys.Key, String> reply(String status, String alarms, String error1, String error2) {
+        HashMap<Keys.Key, String> reply = new HashMap<>();
+        reply.put(Keys.SYSTEM_STATUS, status);
+        reply.put(Keys.SYSTEM_ALARMS, alarms);
+        reply.put(Keys.ERROR_CODE_1, error1);
+        reply.put(Keys.ERROR_CODE_2, error2);
+        return reply;
+    }
+
+    @Test
+    public void testDebouncedTransitions() {
+        TransitionDetector detector = new TransitionDetector(2);
+        assertTrue(detector.add(1, 1000, reply("4E24", "0", "10", "5")).isEmpty());
+
+        List<StateEvent> events = detector.add(1, 2000, reply("4E24", "0", "10", "5"));
+        assertEquals(1, events.size());
+        assertEquals(StateEvent.Kind.STATUS_CHANGED, events.get(0).kind);
+        assertNull(events.get(0).oldValue);
+        assertEquals("MPP operation (20004)", events.get(0).text);
+
+        // a single odd reply is ignored
+        assertTrue(detector.add(1, 3000, reply("4E22", "100", "10", "5")).isEmpty());
+        assertTrue(detector.add(1, 4000, reply("4E24", "0", "10", "5")).isEmpty());
+        assertTrue(detector.add(1, 5000, Collections.emptyMap()).isEmpty());
+
+        assertTrue(detector.add(1, 6000, reply("4E24", "101", "10", "5")).isEmpty());
+        events = detector.add(1, 7000, reply("4E24", "101", "10", "5"));
+        assertEquals(2, events.size());
+        assertEquals(StateEvent.Kind.ALARM_RAISED, events.get(0).kind);
+        assertEquals("External Fault 1", events.get(0).text);
+        assertEquals("Fan failure", events.get(1).text);
+        assertEquals("0", events.get(1).oldValue);
+        assertEquals("101", events.get(1).newValue);
+        assertEquals(7000, events.get(1).timestamp);
+
+        detector.add(1, 8000, reply("4E24", "1", "10", "5"));
+        events = detector.add(1, 9000, reply("4E24", "1", "10", "5"));
+        assertEquals(1, events.size());
+        assertEquals(StateEvent.Kind.ALARM_CLEARED, events.get(0).kind);
+        assertEquals("Fan failure", events.get(0).text);
+        assertTrue(events.get(0).toJson().contains("\"new\":\"External Fault 1\""));
+
+        // the history moves down by one entry, which is only reported as a new error in EC01
+        detector.add(1, 10000, reply("4E24", "1", "20", "10"));
+        events = detector.add(1, 11000, reply("4E24", "1", "20", "10"));
+        assertEquals(1, events.size());
+        assertEquals(StateEvent.Kind.NEW_ERROR, events.get(0).kind);
+        assertEquals(Keys.ERROR_CODE_1, events.get(0).key);
+        assertEquals("32", events.get(0).text);
+
+        assertTrue(detector.add(2, 12000, reply("4E24", "0", "10", "5")).isEmpty());
+    }
+
+    private static HashMap<Keys.Key, String> history(String... errors) {
+        Keys.Key[] keys = { Keys.ERROR_CODE_1, Keys.ERROR_CODE_2, Keys.ERROR_CODE_3, Keys.ERROR_CODE_4 };
+        HashMap<Keys.Key, String> reply = new HashMap<>();
+        for (int i = 0; i < errors.length; i++) {
+            if (errors[i] != null) {
+                reply.put(keys[i], errors[i]);
+            }
+        }
+        return reply;
+    }
+
+    @Test
+    public void testRepeatedError() {
+        TransitionDetector detector = new TransitionDetector(1);
+        assertTrue(detector.add(1, 1000, history("20", "10", "5", "3")).isEmpty());
+
+        // the newest error occurs again: EC01 is unchanged, but the history moved down
+        List<StateEvent> events = detector.add(1, 2000, history("20", "20", "10", "5"));
+        assertEquals(1, events.size());
+        assertEquals(StateEvent.Kind.NEW_ERROR, events.get(0).kind);
+        assertEquals(Keys.ERROR_CODE_1, events.get(0).key);
+        assertEquals("20", events.get(0).oldValue);
+        assertEquals("20", events.get(0).newValue);
+
+        events = detector.add(1, 3000, history("20", "20", "20", "10"));
+        assertEquals(1, events.size());
+        assertEquals(Keys.ERROR_CODE_1, events.get(0).key);
+
+        // without EC01 the newest requested entry is reported once
+        assertTrue(detector.add(2, 4000, history(null, "10", "5", "3")).isEmpty());
+        events = detector.add(2, 5000, history(null, "20", "10", "5"));
+        assertEquals(1, events.size());
+        assertEquals(Keys.ERROR_CODE_2, events.get(0).key);
+
+        // a history that did not move reports every changed entry
+        events = detector.add(2, 6000, history(null, "30", "40", "5"));
+        assertEquals(2, events.size());
+    }
+}
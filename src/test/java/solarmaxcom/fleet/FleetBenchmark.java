@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.fleet;
+
+import ch.qos.logback.classic.Level;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import solarmaxcom.cache.LatestValueCache;
+import solarmaxcom.metrics.BusMetrics;
+import solarmaxcom.metrics.Histogram;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.sim.SimulatedDevice;
+import solarmaxcom.sim.Simulator;
+
+/**
+ * Measures how many simulated Ethernet devices one JVM can poll at 1 Hz. Each device has its own
+ * simulator endpoint, with bus address 1, which answers after a fixed delay. Not run as part of the tests; start it
+ * with the test classpath and optionally the device counts as arguments, e.g.
+ * <code>java -cp ... solarmaxcom.fleet.FleetBenchmark 100 500 1000</code>.
+ */
+public class FleetBenchmark {
+
+    private static final long PERIOD = 1000;
+    private static final long DELAY = 20;
+    private static final long DURATION = 10000;
+
+    public static void main(String[] args) throws Exception {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        List<Keys.Key> keys = Arrays.asList(Keys.AC_OUTPUT, Keys.DC_INPUT, Keys.VOLTAGE_DC, Keys.CURRENT_DC,
+                Keys.ENERGY_DAY, Keys.ENERGY_TOTAL, Keys.SYSTEM_STATUS);
+        int[] counts = (args.length == 0) ? new int[] {100, 250, 500, 1000} : new int[args.length];
+        for (int i = 0; i < args.length; i++) {
+            counts[i] = Integer.parseInt(args[i]);
+        }
+        System.out.println("Java " + System.getProperty("java.version") + ", " + keys.size() + " keys per cycle, "
+                + DELAY + " ms per request");
+        System.out.println("devices  cycles/s  target  missed  p50 RTT ms  p99 RTT ms");
+
+        for (int count : counts) {
+            ArrayList<Simulator> simulators = new ArrayList<>();
+            ArrayList<Endpoint> endpoints = new ArrayList<>();
+            FleetPoller fleet = new FleetPoller(new LatestValueCache(), keys, PERIOD, null);
+            for (int device = 1; device <= count; device++) {
+                Simulator simulator = new Simulator(new InetSocketAddress("localhost", 0),
+                        Collections.singletonList(new SimulatedDevice(1)), DELAY);
+                simulator.start();
+                simulators.add(simulator);
+                Endpoint endpoint = new Endpoint(new InetSocketAddress("localhost", simulator.getPort()), 1, 3000);
+                endpoints.add(endpoint);
+                fleet.addDevice(endpoint, 1, device);
+            }
+
+            fleet.start();
+            Thread.sleep(2 * PERIOD);
+            long cycles = fleet.getCycles();
+            long missed = fleet.getMissedCycles();
+            long start = System.nanoTime();
+            Thread.sleep(DURATION);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            cycles = fleet.getCycles() - cycles;
+            missed = fleet.getMissedCycles() - missed;
+            fleet.stop();
+
+            long p50 = 0, p99 = 0;
+            for (int device = 1; device <= count; device++) {
+                Histogram h = BusMetrics.INSTANCE.roundTrip(device);
+                p50 = Math.max(p50, h.percentile(0.5));
+                p99 = Math.max(p99, h.percentile(0.99));
+            }
+            System.out.printf("%7d  %8.1f  %6d  %6d  %10.1f  %10.1f%n", count, cycles / seconds,
+                    count * 1000 / PERIOD, missed, p50 / 1e6, p99 / 1e6);
+
+            for (Endpoint endpoint : endpoints) {
+                endpoint.close();
+            }
+            for (Simulator simulator : simulators) {
+                simulator.close();
+            }
+        }
+    }
+}
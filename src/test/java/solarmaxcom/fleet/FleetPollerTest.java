@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.fleet;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import solarmaxcom.cache.LatestValueCache;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.sim.SimulatedDevice;
+import solarmaxcom.sim.Simulator;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FleetPollerTest {
+
+    @Test
+    public void testPollFleet() throws Exception {
+        Simulator bus = new Simulator(new InetSocketAddress("localhost", 0),
+                Arrays.asList(new SimulatedDevice(1), new SimulatedDevice(2), new SimulatedDevice(3)), 2);
+        Simulator single = new Simulator(new InetSocketAddress("localhost", 0),
+                Arrays.asList(new SimulatedDevice(1)), 2);
+        bus.start();
+        single.start();
+        Endpoint busEndpoint = new Endpoint(new InetSocketAddress("localhost", bus.getPort()), 2, 1000);
+        Endpoint singleEndpoint = new Endpoint(new InetSocketAddress("localhost", single.getPort()), 1, 1000);
+
+        LatestValueCache cache = new LatestValueCache();
+        AtomicInteger empty = new AtomicInteger();
+        FleetPoller fleet = new FleetPoller(cache, Arrays.asList(Keys.TYPE, Keys.AC_OUTPUT, Keys.ENERGY_TOTAL,
+                Keys.SYSTEM_STATUS, Keys.NETWORK_ADDRESS), 100, (device, cycle, timestamp, reply, sampleTimes) -> {
+                    if (reply.size() != 5) {
+                        empty.incrementAndGet();
+                    }
+                });
+        for (int device = 1; device <= 3; device++) {
+            fleet.addDevice(busEndpoint, device);
+        }
+        // the same address behind another endpoint
+        fleet.addDevice(singleEndpoint, 1, 4);
+        assertThrows(IllegalArgumentException.class, () -> fleet.addDevice(singleEndpoint, 2, 4));
+        try {
+            fleet.start();
+            Thread.sleep(1000);
+            fleet.stop();
+
+            assertTrue(fleet.getCycles() >= 4 * 8, "cycles: " + fleet.getCycles());
+            assertEquals(0, empty.get());
+            for (int device = 1; device <= 3; device++) {
+                assertEquals("2B07", cache.get(device).getValue(Keys.TYPE));
+                assertEquals(Integer.toHexString(device), cache.get(device).getValue(Keys.NETWORK_ADDRESS));
+            }
+            assertEquals("1", cache.get(4).getValue(Keys.NETWORK_ADDRESS));
+        } finally {
+            busEndpoint.close();
+            singleEndpoint.close();
+            bus.close();
+            single.close();
+        }
+    }
+}
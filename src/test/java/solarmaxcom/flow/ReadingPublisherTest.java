@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.flow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Flow;
+import org.junit.jupiter.api.Test;
+import solarmaxcom.protocol.Keys;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReadingPublisherTest {
+
+    private static class RecordingSubscriber implements Flow.Subscriber<Reading> {
+        Flow.Subscription subscription;
+        final List<Reading> readings = new ArrayList<>();
+        boolean complete = false;
+        Throwable error = null;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Reading item) {
+            readings.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            complete = true;
+        }
+    }
+
+    private static void publishCycle(ReadingPublisher publisher, long cycle) {
+        HashMap<Keys.Key, String> reply = new HashMap<>();
+        reply.put(Keys.AC_OUTPUT, Long.toHexString(cycle));
+        reply.put(Keys.ENERGY_DAY, Long.toHexString(cycle));
+        publisher.publish(1, cycle, cycle * 1000, reply);
+    }
+
+    @Test
+    public void testBackpressure() {
+        ReadingPublisher publisher = new ReadingPublisher(Runnable::run);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(3);
+        for (long cycle = 1; cycle <= 3; cycle++) {
+            publishCycle(publisher, cycle);
+        }
+        assertEquals(3, subscriber.readings.size());
+        subscriber.subscription.request(10);
+        assertEquals(6, subscriber.readings.size());
+        assertEquals(3, subscriber.readings.get(5).cycle);
+        assertEquals(0, publisher.getDropped());
+
+        publisher.close();
+        assertTrue(subscriber.complete);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    @Test
+    public void testConflate() {
+        ReadingPublisher publisher = new ReadingPublisher(Runnable::run);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber, ReadingPublisher.Overflow.CONFLATE, 1);
+        for (long cycle = 1; cycle <= 3; cycle++) {
+            publishCycle(publisher, cycle);
+        }
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(2, subscriber.readings.size());
+        for (Reading reading : subscriber.readings) {
+            assertEquals("3", reading.value);
+        }
+        assertEquals(4, publisher.getDropped());
+        assertEquals(1.5, subscriber.readings.stream().filter(r -> r.key == Keys.AC_OUTPUT)
+                .findFirst().get().getNumber(), 1e-9);
+    }
+
+    @Test
+    public void testBufferLimit() {
+        ReadingPublisher publisher = new ReadingPublisher(Runnable::run);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber, ReadingPublisher.Overflow.BUFFER, 3);
+        for (long cycle = 1; cycle <= 3; cycle++) {
+            publishCycle(publisher, cycle);
+        }
+        publisher.close();
+        assertFalse(subscriber.complete);
+        subscriber.subscription.request(10);
+        assertEquals(3, subscriber.readings.size());
+        assertEquals(2, subscriber.readings.get(0).cycle);
+        assertEquals(3, publisher.getDropped());
+        assertTrue(subscriber.complete);
+    }
+
+    @Test
+    public void testInvalidRequest() {
+        ReadingPublisher publisher = new ReadingPublisher(Runnable::run);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+}
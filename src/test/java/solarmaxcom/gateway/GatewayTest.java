@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.gateway;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import solarmaxcom.Transport;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.protocol.Packet;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GatewayTest {
+
+    /**
+     * A bus on which every device answers each requested key with its own address.
+     */
+    private static class FakeBus implements Transport {
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger concurrent = new AtomicInteger();
+        volatile boolean overlapped = false;
+
+        @Override
+        public String makeRequest(String message) {
+            requests.incrementAndGet();
+            if (concurrent.incrementAndGet() > 1) {
+                overlapped = true;
+            }
+            try {
+                Packet request = Packet.parse(message);
+                Packet reply = new Packet();
+                reply.source = request.destination;
+                reply.destination = request.source;
+                for (Keys.Key key : request.payload.keySet()) {
+                    reply.payload.put(key, Integer.toHexString(request.destination));
+                }
+                Thread.sleep(1);
+                return reply.build();
+            } catch (Packet.ParseException | InterruptedException e) {
+                return "";
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static String request(int device, Keys.Key key) {
+        Packet request = new Packet();
+        request.destination = device;
+        request.payload.put(key, null);
+        return request.build();
+    }
+
+    private static String readFrame(InputStream in) throws Exception {
+        StringBuilder s = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            s.append((char) c);
+            if (c == '}') {
+                break;
+            }
+        }
+        return s.toString();
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        FakeBus bus = new FakeBus();
+        Gateway gateway = new Gateway(new InetSocketAddress("localhost", 0), bus, 60000);
+        gateway.start();
+        try (Socket socket = new Socket("localhost", gateway.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            // the local poller shares the bus and fills the cache
+            Packet reply = Packet.parse(gateway.makeRequest(request(3, Keys.AC_OUTPUT)));
+            assertEquals("3", reply.payload.get(Keys.AC_OUTPUT));
+            assertEquals(1, bus.requests.get());
+
+            out.write(request(3, Keys.AC_OUTPUT).getBytes(StandardCharsets.ISO_8859_1));
+            reply = Packet.parse(readFrame(in));
+            assertEquals(3, reply.source);
+            assertEquals("3", reply.payload.get(Keys.AC_OUTPUT));
+            assertEquals(1, bus.requests.get());
+            assertEquals(1, gateway.getCacheHits());
+
+            // two requests in one write, with noise before and between them
+            out.write(("xx" + request(3, Keys.ENERGY_DAY) + "\r\n" + request(3, Keys.AC_OUTPUT))
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            assertEquals("3", Packet.parse(readFrame(in)).payload.get(Keys.ENERGY_DAY));
+            assertEquals("3", Packet.parse(readFrame(in)).payload.get(Keys.AC_OUTPUT));
+            assertEquals(2, bus.requests.get());
+            assertEquals(3, gateway.getRequests());
+        } finally {
+            gateway.close();
+        }
+    }
+
+    @Test
+    public void testManyClients() throws Exception {
+        FakeBus bus = new FakeBus();
+        Gateway gateway = new Gateway(new InetSocketAddress("localhost", 0), bus, 0);
+        gateway.start();
+        ExecutorService executor = Executors.newFixedThreadPool(32);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int c = 0; c < 32; c++) {
+                final int device = c + 1;
+                results.add(executor.submit(() -> {
+                    try (Socket socket = new Socket("localhost", gateway.getPort())) {
+                        for (int i = 0; i < 10; i++) {
+                            socket.getOutputStream().write(
+                                    request(device, Keys.AC_OUTPUT).getBytes(StandardCharsets.ISO_8859_1));
+                            Packet reply = Packet.parse(readFrame(socket.getInputStream()));
+                            if (reply.source != device) {
+                                return false;
+                            }
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+            assertEquals(320, bus.requests.get());
+            assertFalse(bus.overlapped);
+        } finally {
+            executor.shutdown();
+            gateway.close();
+        }
+    }
+}
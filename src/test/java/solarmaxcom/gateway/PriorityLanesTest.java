@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.gateway;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.protocol.Packet;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PriorityLanesTest {
+
+    @Test
+    public void testPriorityAndStarvation() throws Exception {
+        PriorityLanes<String> lanes = new PriorityLanes<>(4);
+        assertNull(lanes.poll());
+        for (int i = 0; i < 10; i++) {
+            lanes.add(Priority.BACKGROUND, "B");
+            lanes.add(Priority.INTERACTIVE, "I");
+        }
+        lanes.add(Priority.COMMAND, "C");
+
+        List<String> order = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            order.add(lanes.take());
+        }
+        assertEquals(Arrays.asList("C", "I", "I", "I", "B", "I", "I", "I", "I", "B"), order);
+        assertEquals(3, lanes.size(Priority.INTERACTIVE));
+
+        // a new command still goes first
+        lanes.add(Priority.COMMAND, "C");
+        assertEquals("C", lanes.poll());
+    }
+
+    @Test
+    public void testPriorityOf() {
+        Packet read = new Packet();
+        read.payload.put(Keys.AC_OUTPUT, null);
+        assertEquals(Priority.INTERACTIVE, Gateway.priorityOf(read));
+
+        Packet write = new Packet();
+        write.port = Packet.PORT_COMMAND;
+        write.payload.put(Keys.TIME, "1234");
+        assertEquals(Priority.COMMAND, Gateway.priorityOf(write));
+        assertEquals(Priority.INTERACTIVE, Gateway.priorityOf(null));
+    }
+}
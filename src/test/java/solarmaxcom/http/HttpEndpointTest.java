@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.http;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import org.junit.jupiter.api.Test;
+import solarmaxcom.cache.LatestValueCache;
+import solarmaxcom.protocol.Keys;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpEndpointTest {
+
+    private static String get(int port, String path) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        assertEquals(200, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testPrometheusAndJson() throws Exception {
+        LatestValueCache cache = new LatestValueCache();
+        HashMap<Keys.Key, String> reply = new HashMap<>();
+        reply.put(Keys.AC_OUTPUT, "114");
+        reply.put(Keys.VOLTAGE_DC, "ACD");
+        reply.put(Keys.TYPE, "2B07");
+        cache.update(1, 1, 1638626149000L, reply);
+
+        HttpEndpoint endpoint = new HttpEndpoint(new InetSocketAddress("localhost", 0), cache);
+        endpoint.start();
+        try {
+            String metrics = get(endpoint.getPort(), "/metrics");
+            assertTrue(metrics.contains("solarmax_online{device=\"1\"} 1\n"));
+            assertTrue(metrics.contains(
+                    "solarmax_value{device=\"1\",key=\"PAC\",name=\"AC output\",unit=\"W\"} 138.0\n"));
+            assertTrue(metrics.contains(
+                    "solarmax_value{device=\"1\",key=\"UDC\",name=\"Voltage DC\",unit=\"V\"} 276.5\n"));
+            assertTrue(metrics.contains(
+                    "solarmax_info{device=\"1\",key=\"TYP\",name=\"Type\",value=\"SolarMax 2500SP\"} 1\n"));
+            assertTrue(metrics.contains("# TYPE solarmax_requests_total counter\n"));
+            assertEquals(metrics, get(endpoint.getPort(), "/metrics"));
+
+            String json = get(endpoint.getPort(), "/values");
+            assertTrue(json.contains("\"PAC\":{\"name\":\"AC output\",\"value\":138.0,\"unit\":\"W\","));
+            assertTrue(json.contains("\"TYP\":{\"name\":\"Type\",\"value\":\"SolarMax 2500SP\",\"unit\":\"\","));
+
+            cache.update(1, 2, 1638626150000L, Collections.singletonMap(Keys.AC_OUTPUT, "118"));
+            assertTrue(get(endpoint.getPort(), "/metrics").contains("unit=\"W\"} 140.0\n"));
+        } finally {
+            endpoint.stop();
+        }
+    }
+}
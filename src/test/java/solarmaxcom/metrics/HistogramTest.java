@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.metrics;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import solarmaxcom.protocol.Packet;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistogramTest {
+
+    @Test
+    public void testBuckets() {
+        for (long v = 0; v < 100000; v++) {
+            int index = Histogram.index(v);
+            assertTrue(v <= Histogram.highestValue(index));
+            assertTrue(index == 0 || v > Histogram.highestValue(index - 1));
+        }
+        assertTrue(Histogram.index(Long.MAX_VALUE) < 1024);
+        assertEquals(Long.MAX_VALUE, Histogram.highestValue(Histogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram h = new Histogram(1000);
+        assertEquals(0, h.percentile(0.5));
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            h.record(1_000_000 + random.nextInt(1_000_000));
+        }
+        assertEquals(100000, h.count());
+        assertEquals(1_500_000, h.percentile(0.5), 1_500_000 / 16);
+        assertEquals(1_990_000, h.percentile(0.99), 1_990_000 / 16);
+        assertTrue(h.percentile(1.0) <= h.max());
+        assertEquals(1500, h.getMean(), 10);
+    }
+
+    @Test
+    public void testPrometheus() {
+        BusMetrics metrics = new BusMetrics();
+        metrics.requestSent(40);
+        metrics.replyReceived(60);
+        metrics.parseError(Packet.ParseException.Kind.CRC);
+        metrics.roundTrip(3).record(250_000_000);
+        StringBuilder s = new StringBuilder();
+        metrics.renderPrometheus(s);
+        String text = s.toString();
+        assertTrue(text.contains("solarmax_sent_bytes_total 40\n"));
+        assertTrue(text.contains("solarmax_parse_errors_total{kind=\"crc\"} 1\n"));
+        assertTrue(text.contains("solarmax_round_trip_seconds_count{device=\"3\"} 1\n"));
+        assertTrue(text.contains("solarmax_round_trip_seconds{device=\"3\",quantile=\"0.5\"} 0.25"));
+    }
+}
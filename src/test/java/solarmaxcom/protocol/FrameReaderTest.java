@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.protocol;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FrameReaderTest {
+
+    private static String feed(FrameReader reader, String bytes) {
+        String frame = null;
+        for (byte b : bytes.getBytes(StandardCharsets.ISO_8859_1)) {
+            String f = reader.accept(b);
+            if (f != null) {
+                assertNull(frame);
+                frame = f;
+            }
+        }
+        return frame;
+    }
+
+    private static String frameOfLength(int length) {
+        StringBuilder s = new StringBuilder("{");
+        while (s.length() < length - 1) {
+            s.append('A');
+        }
+        return s.append('}').toString();
+    }
+
+    @Test
+    public void testNoise() {
+        FrameReader reader = new FrameReader();
+        assertEquals("{01;FB;0E|64:PAC|0445}", feed(reader, "\u0000ÿ}x{01;FB;0E|64:PAC|0445}"));
+        assertEquals(4, reader.getNoiseBytes());
+        assertFalse(reader.inFrame());
+
+        assertNull(feed(reader, "{01;FB"));
+        assertTrue(reader.inFrame());
+        assertEquals("{FB;01;0E|64:PAC=2d|0445}", feed(reader, "{FB;01;0E|64:PAC=2d|0445}"));
+        assertEquals(10, reader.getNoiseBytes());
+        assertEquals(0, reader.getRejectedFrames());
+    }
+
+    @Test
+    public void testOverlong() {
+        FrameReader reader = new FrameReader();
+        String longest = frameOfLength(Packet.MAX_LENGTH);
+        assertEquals(longest, feed(reader, longest));
+
+        assertNull(feed(reader, frameOfLength(Packet.MAX_LENGTH + 1)));
+        assertEquals(1, reader.getRejectedFrames());
+        assertEquals(Packet.MAX_LENGTH + 1, reader.getNoiseBytes());
+
+        // a frame without an end byte is rejected as well, and the next start byte resynchronizes
+        String garbage = frameOfLength(1000).substring(0, 999);
+        assertEquals("{01;FB;0E|64:PAC|0445}", feed(reader, garbage + "{01;FB;0E|64:PAC|0445}"));
+        assertEquals(2, reader.getRejectedFrames());
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.rollup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import solarmaxcom.protocol.Keys;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RollupAggregatorTest {
+
+    private static final long DAY = 1638576000000L;  // 2021-12-04T00:00:00Z
+
+    @Test
+    public void testConstantPower() {
+        List<Rollup> rollups = new ArrayList<>();
+        RollupAggregator aggregator = new RollupAggregator(rollups::add);
+        for (long t = 0; t <= 2 * 3600; t++) {
+            aggregator.add(1, Keys.AC_OUTPUT, DAY + t * 1000, 1000.0);
+        }
+
+        Rollup firstMinute = rollups.get(0);
+        assertEquals(Window.MINUTE, firstMinute.window);
+        assertEquals(DAY, firstMinute.start);
+        assertEquals(60, firstMinute.count);
+        assertEquals(1000.0, firstMinute.mean, 1e-9);
+        assertEquals(1000.0 / 60, firstMinute.energy, 1e-9);
+
+        Rollup hour = rollups.stream().filter(r -> r.window == Window.HOUR).findFirst().get();
+        assertEquals(3600, hour.count);
+        assertEquals(1000.0, hour.energy, 1e-9);
+
+        assertEquals(120, rollups.stream().filter(r -> r.window == Window.MINUTE).count());
+        assertEquals(8, rollups.stream().filter(r -> r.window == Window.QUARTER_HOUR).count());
+        assertEquals(0, rollups.stream().filter(r -> r.window == Window.DAY).count());
+    }
+
+    @Test
+    public void testBoundaryInterpolation() {
+        List<Rollup> rollups = new ArrayList<>();
+        RollupAggregator aggregator = new RollupAggregator(rollups::add);
+        aggregator.add(1, Keys.DC_INPUT, DAY + 30_000, 0.0);
+        aggregator.add(1, Keys.DC_INPUT, DAY + 90_000, 120.0);
+        aggregator.add(1, Keys.DC_INPUT, DAY + 120_000, 120.0);
+
+        assertEquals(2, rollups.size());
+        assertEquals(60 * 30.0 / 2 / 3600, rollups.get(0).energy, 1e-9);
+        assertEquals(0.0, rollups.get(0).max);
+        assertEquals((60 + 120) * 30.0 / 2 / 3600 + 120 * 30.0 / 3600, rollups.get(1).energy, 1e-9);
+        assertEquals(120.0, rollups.get(1).mean);
+    }
+
+    @Test
+    public void testNoEnergyForOtherKeysAndGaps() {
+        List<Rollup> rollups = new ArrayList<>();
+        RollupAggregator aggregator = new RollupAggregator(rollups::add);
+        aggregator.add(1, Keys.VOLTAGE_DC, DAY, 300.0);
+        aggregator.add(1, Keys.VOLTAGE_DC, DAY + 61_000, 310.0);
+        assertTrue(Double.isNaN(rollups.get(0).energy));
+
+        rollups.clear();
+        aggregator.add(2, Keys.AC_OUTPUT, DAY, 500.0);
+        aggregator.add(2, Keys.AC_OUTPUT, DAY + RollupAggregator.MAX_INTEGRATION_GAP + 60_000, 500.0);
+        assertEquals(0.0, rollups.get(0).energy);
+        assertEquals(1, rollups.stream().filter(r -> r.window == Window.MINUTE).count());
+    }
+
+    @Test
+    public void testSampleTimesAndFlush() {
+        List<Rollup> rollups = new ArrayList<>();
+        RollupAggregator aggregator = new RollupAggregator(rollups::add);
+        HashMap<Keys.Key, String> reply = new HashMap<>();
+        reply.put(Keys.AC_OUTPUT, "c8");
+        reply.put(Keys.VOLTAGE_DC, "ACD");
+        // the cycle finished in the next minute, but PAC was sampled in the first one
+        aggregator.add(1, DAY + 60_100, reply, Collections.singletonMap(Keys.AC_OUTPUT, DAY + 59_900));
+        assertTrue(rollups.isEmpty());
+
+        aggregator.flush();
+        assertEquals(Window.values().length * 2, rollups.size());
+        Rollup minute = rollups.stream()
+                .filter(r -> r.key == Keys.AC_OUTPUT && r.window == Window.MINUTE).findFirst().get();
+        assertEquals(DAY, minute.start);
+        assertEquals(1, minute.count);
+        assertEquals(100.0, minute.mean);
+        assertEquals(DAY + 60_000, rollups.stream()
+                .filter(r -> r.key == Keys.VOLTAGE_DC && r.window == Window.MINUTE).findFirst().get().start);
+
+        aggregator.flush();
+        assertEquals(Window.values().length * 2, rollups.size());
+    }
+}
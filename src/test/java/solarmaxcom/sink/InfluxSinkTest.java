@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.sink;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.rollup.Rollup;
+import solarmaxcom.rollup.Window;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InfluxSinkTest {
+
+    private static Batch batch(long cycle) {
+        LinkedHashMap<Keys.Key, String> values = new LinkedHashMap<>();
+        values.put(Keys.AC_OUTPUT, "114");
+        values.put(Keys.TYPE, "2B07");
+        return new Batch(1, cycle, 1638626149000L + 1000 * cycle, values, Collections.emptyList());
+    }
+
+    @Test
+    public void testLineProtocol() {
+        Rollup rollup = new Rollup(1, Keys.AC_OUTPUT, Window.MINUTE, 1638626100000L, 2, 130, 140, 135, Double.NaN);
+        StringBuilder s = new StringBuilder();
+        InfluxSink.append(s, new Batch(1, 1, 1638626149000L, batch(0).values, List.of(rollup)));
+        InfluxSink.append(s, new Batch(2, 1, 1638626149000L, Collections.emptyMap(), Collections.emptyList()));
+        assertEquals("solarmax,device=1 online=true,PAC=138.0,TYP=\"SolarMax 2500SP\" 1638626149000\n"
+                + "solarmax_rollup,device=1,key=PAC,window=1m count=2i,min=130.0,max=140.0,mean=135.0 1638626100000\n"
+                + "solarmax,device=2 online=false 1638626149000\n", s.toString());
+    }
+
+    @Test
+    public void testBatchingAndRetry() throws Exception {
+        InfluxStub stub = new InfluxStub();
+        try {
+            InfluxSink sink = new InfluxSink(stub.getUrl("/write?db=solar"), null, 3, 60000, 5, 10);
+            stub.fail(2, 503);
+            for (long cycle = 1; cycle <= 7; cycle++) {
+                sink.write(List.of(batch(cycle)));
+            }
+            assertEquals(6, stub.getLines().size());
+            sink.close();
+
+            List<String> lines = stub.getLines();
+            assertEquals(7, lines.size());
+            assertTrue(lines.get(6).endsWith(" 1638626156000"));
+            assertEquals(5, stub.getRequests());
+            assertEquals(5, stub.getCompressedRequests());
+            assertEquals(2, sink.getFailedRequests());
+            assertEquals("db=solar&precision=ms", stub.getQueries().get(0));
+        } finally {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testFlushAfterTime() throws Exception {
+        InfluxStub stub = new InfluxStub();
+        try {
+            InfluxSink sink = new InfluxSink(stub.getUrl("/api/v2/write?org=home&bucket=solar&precision=ms"),
+                    "secret", 1000, 50, 5, 10);
+            sink.write(List.of(batch(1)));
+            sink.tick();
+            assertEquals(0, stub.getRequests());
+            Thread.sleep(60);
+            sink.tick();
+            assertEquals(1, stub.getLines().size());
+            assertEquals("org=home&bucket=solar&precision=ms", stub.getQueries().get(0));
+        } finally {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testNoRetryOnBadRequest() throws Exception {
+        InfluxStub stub = new InfluxStub();
+        try {
+            InfluxSink sink = new InfluxSink(stub.getUrl("/write?db=solar"), null, 1, 60000, 5, 10);
+            stub.fail(1, 400);
+            assertThrows(IOException.class, () -> sink.write(List.of(batch(1))));
+            assertEquals(1, stub.getRequests());
+            sink.write(List.of(batch(2)));
+            assertEquals(1, stub.getLines().size());
+        } finally {
+            stub.stop();
+        }
+    }
+}
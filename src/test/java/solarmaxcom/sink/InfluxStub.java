@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.sink;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A local stand-in for the InfluxDB write API which records the received lines and can be told
+ * to fail the next requests.
+ */
+public class InfluxStub {
+
+    private final HttpServer server;
+    private final List<String> lines = new ArrayList<>();
+    private final List<String> queries = new ArrayList<>();
+    private int failures = 0;
+    private int failureStatus = 503;
+    private int requests = 0;
+    private int compressedRequests = 0;
+
+    public InfluxStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/write", this::handle);
+        server.createContext("/api/v2/write", this::handle);
+        server.start();
+    }
+
+    public URL getUrl(String path) throws IOException {
+        return new URL("http://localhost:" + server.getAddress().getPort() + path);
+    }
+
+    /**
+     * Answers the next <code>count</code> requests with the given status.
+     */
+    public synchronized void fail(int count, int status) {
+        failures = count;
+        failureStatus = status;
+    }
+
+    public synchronized List<String> getLines() {
+        return new ArrayList<>(lines);
+    }
+
+    public synchronized List<String> getQueries() {
+        return new ArrayList<>(queries);
+    }
+
+    public synchronized int getRequests() {
+        return requests;
+    }
+
+    public synchronized int getCompressedRequests() {
+        return compressedRequests;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body;
+            boolean gzip = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            try (InputStream in = gzip ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody()) {
+                body = in.readAllBytes();
+            }
+            int status;
+            synchronized (this) {
+                requests++;
+                if (gzip) {
+                    compressedRequests++;
+                }
+                queries.add(exchange.getRequestURI().getQuery());
+                if (failures > 0) {
+                    failures--;
+                    status = failureStatus;
+                } else {
+                    for (String line : new String(body, StandardCharsets.UTF_8).split("\n")) {
+                        if (!line.isEmpty()) {
+                            lines.add(line);
+                        }
+                    }
+                    status = 204;
+                }
+            }
+            exchange.sendResponseHeaders(status, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
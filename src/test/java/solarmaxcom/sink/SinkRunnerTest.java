@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.sink;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.rollup.Rollup;
+import solarmaxcom.rollup.Window;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SinkRunnerTest {
+
+    private static Batch batch(long cycle) {
+        LinkedHashMap<Keys.Key, String> values = new LinkedHashMap<>();
+        values.put(Keys.AC_OUTPUT, "114");
+        values.put(Keys.TYPE, "2B07");
+        return new Batch(1, cycle, 1638626149000L, values, Collections.emptyList());
+    }
+
+    @Test
+    public void testServiceLoader() {
+        List<String> names = SinkRunner.getSinkNames();
+        assertTrue(names.containsAll(List.of("stdout", "jsonl", "mqtt", "null")));
+        assertThrows(IllegalArgumentException.class, () -> SinkRunner.create("nonexistent", 10));
+    }
+
+    @Test
+    public void testJsonLines(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("readings.jsonl");
+        SinkRunner runner = SinkRunner.create("jsonl:" + file, 10);
+        runner.offer(batch(1));
+        Rollup rollup = new Rollup(1, Keys.AC_OUTPUT, Window.MINUTE, 1638626100000L, 2, 130, 140, 135, 2.25);
+        runner.offer(new Batch(1, 2, 1638626150000L, Collections.emptyMap(), List.of(rollup)));
+        runner.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        assertEquals("{\"time\":\"2021-12-04T13:55:49Z\",\"device\":1,\"cycle\":1,\"online\":true,"
+                + "\"values\":{\"PAC\":138.0,\"TYP\":\"SolarMax 2500SP\"}}", lines.get(0));
+        assertEquals("{\"time\":\"2021-12-04T13:55:50Z\",\"device\":1,\"cycle\":2,\"online\":false,"
+                + "\"values\":{}}", lines.get(1));
+        assertEquals("{\"rollup\":" + rollup.toJson() + "}", lines.get(2));
+    }
+
+    @Test
+    public void testSlowSinkDropsOldest() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Long> written = Collections.synchronizedList(new ArrayList<>());
+        List<String> closedBy = Collections.synchronizedList(new ArrayList<>());
+        Sink slow = new Sink() {
+            @Override
+            public void write(List<Batch> batches) throws IOException {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                for (Batch b : batches) {
+                    written.add(b.cycle);
+                }
+            }
+
+            @Override
+            public void close() {
+                closedBy.add(Thread.currentThread().getName());
+            }
+        };
+        SinkRunner runner = new SinkRunner("slow", slow, 5);
+        runner.offer(batch(0));
+        entered.await();
+        for (long cycle = 1; cycle <= 20; cycle++) {
+            runner.offer(batch(cycle));
+        }
+        assertEquals(15, runner.getDropped());
+        release.countDown();
+        runner.close();
+        assertEquals(List.of(0L, 16L, 17L, 18L, 19L, 20L), written);
+        assertEquals(List.of("sink-slow"), closedBy, "the sink is closed on its own thread");
+    }
+}
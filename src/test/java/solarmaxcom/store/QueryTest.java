@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.store;
+
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import solarmaxcom.protocol.Keys;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QueryTest {
+
+    private static final long START = 1638658800000L;  // 2021-12-04T23:00:00Z
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeEach
+    public void fillStore() throws Exception {
+        // two hours at 1 Hz, crossing midnight
+        try (TimeSeriesStore store = new TimeSeriesStore(tempDir)) {
+            for (int i = 0; i < 7200; i++) {
+                HashMap<Keys.Key, String> reply = new HashMap<>();
+                reply.put(Keys.AC_OUTPUT, Integer.toHexString(i % 100));
+                reply.put(Keys.ENERGY_DAY, Integer.toHexString(i / 600));
+                store.append(3, START + i * 1000L, reply);
+            }
+        }
+    }
+
+    @Test
+    public void testRangeAcrossDays() throws Exception {
+        List<Long> timestamps = new ArrayList<>();
+        List<Keys.Key> keys = new ArrayList<>();
+        Query query = new Query(3, Arrays.asList(Keys.AC_OUTPUT, Keys.ENERGY_DAY),
+                START + 3000 * 1000L, START + 4000 * 1000L, 0);
+        long rows = query.run(tempDir, (timestamp, key, value) -> {
+            timestamps.add(timestamp);
+            keys.add(key);
+        });
+
+        assertEquals(2000, rows);
+        assertEquals(START + 3000 * 1000L, timestamps.get(0));
+        assertEquals(START + 3999 * 1000L, timestamps.get(1999));
+        for (int i = 1; i < timestamps.size(); i++) {
+            assertTrue(timestamps.get(i - 1) <= timestamps.get(i));
+        }
+        assertEquals(1000, Collections.frequency(keys, Keys.AC_OUTPUT));
+    }
+
+    @Test
+    public void testDownsampling() throws Exception {
+        List<Double> values = new ArrayList<>();
+        Query query = new Query(3, Arrays.asList(Keys.AC_OUTPUT), START, START + 7200 * 1000L, 100 * 1000L);
+        long rows = query.run(tempDir, (timestamp, key, value) -> values.add(value));
+        assertEquals(72, rows);
+        assertEquals(49.5 * 0.5, values.get(0), 1e-9);
+    }
+
+    @Test
+    public void testExport() throws Exception {
+        StringWriter csv = new StringWriter();
+        ExportWriter export = new ExportWriter(csv, ExportWriter.Format.CSV, 3, 0);
+        export.writeHeader();
+        new Query(3, Arrays.asList(Keys.AC_OUTPUT), START + 3, START + 2001, 0).run(tempDir, export);
+        assertEquals("time,device,key,value\n" +
+                "2021-12-04T23:00:01.000Z,3,PAC,0.5\n" +
+                "2021-12-04T23:00:02.000Z,3,PAC,1.0\n", csv.toString());
+
+        StringWriter jsonl = new StringWriter();
+        export = new ExportWriter(jsonl, ExportWriter.Format.JSONL, 3, 0);
+        new Query(3, Arrays.asList(Keys.ENERGY_DAY), START, START + 1, 0).run(tempDir, export);
+        assertEquals("{\"time\":\"2021-12-04T23:00:00.000Z\",\"device\":3,\"key\":\"KDY\",\"value\":0.0}\n",
+                jsonl.toString());
+    }
+}
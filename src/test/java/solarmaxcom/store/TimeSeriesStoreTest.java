@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.store;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import solarmaxcom.protocol.Keys;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimeSeriesStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testColumnRoundTrip() {
+        Random random = new Random(42);
+        int n = 5000;
+        long[] timestamps = new long[n];
+        double[] values = new double[n];
+        long t = 1638600000000L;
+        for (int i = 0; i < n; i++) {
+            t += (i % 100 == 0) ? 3_600_000 : 1000 + random.nextInt(40) - 20;
+            timestamps[i] = t;
+            values[i] = (i % 7 == 0) ? values[Math.max(i - 1, 0)] : Math.round(random.nextDouble() * 5000) * 0.5;
+        }
+
+        BitWriter tsBits = new BitWriter(16);
+        BitWriter valueBits = new BitWriter(16);
+        TimestampColumn.Encoder tsEncoder = new TimestampColumn.Encoder(tsBits, timestamps[0]);
+        ValueColumn.Encoder valueEncoder = new ValueColumn.Encoder(valueBits);
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                tsEncoder.add(timestamps[i]);
+            }
+            valueEncoder.add(values[i]);
+        }
+
+        ByteBuffer tsBuffer = ByteBuffer.allocate(tsBits.byteLength());
+        tsBits.writeTo(tsBuffer);
+        ByteBuffer valueBuffer = ByteBuffer.allocate(valueBits.byteLength());
+        valueBits.writeTo(valueBuffer);
+
+        TimestampColumn.Decoder tsDecoder = new TimestampColumn.Decoder(
+                new BitReader(tsBuffer, 0, tsBits.byteLength()), timestamps[0]);
+        ValueColumn.Decoder valueDecoder = new ValueColumn.Decoder(
+                new BitReader(valueBuffer, 0, valueBits.byteLength()));
+        for (int i = 0; i < n; i++) {
+            assertEquals(timestamps[i], tsDecoder.next());
+            assertEquals(values[i], valueDecoder.next());
+        }
+    }
+
+    @Test
+    public void testAppendAndReopen() throws Exception {
+        long start = 1638600000000L;  // 2021-12-04T06:40:00Z
+        TimeSeriesStore store = new TimeSeriesStore(tempDir);
+        for (int i = 0; i < 3000; i++) {
+            HashMap<Keys.Key, String> reply = new HashMap<>();
+            reply.put(Keys.AC_OUTPUT, Integer.toHexString(200 + i % 10));
+            reply.put(Keys.TYPE, "2b67");
+            store.append(1, start + i * 1000L, reply);
+        }
+        store.close();
+
+        store = new TimeSeriesStore(tempDir);
+        HashMap<Keys.Key, String> reply = new HashMap<>();
+        reply.put(Keys.AC_OUTPUT, "1f4");
+        store.append(1, start + 3000 * 1000L, reply);
+        store.close();
+
+        Path path = store.segmentPath(1, Math.floorDiv(start, 24 * 60 * 60 * 1000L));
+        assertTrue(Files.exists(path));
+        assertTrue(Files.size(path) < 3001 * 16 / 4);
+
+        List<Long> timestamps = new ArrayList<>();
+        List<Double> values = new ArrayList<>();
+        try (Segment segment = Segment.openForRead(path)) {
+            for (Segment.Block block : segment.blocks()) {
+                assertEquals(Keys.AC_OUTPUT.ordinal, block.keyOrdinal);
+                segment.read(block, (timestamp, value) -> {
+                    timestamps.add(timestamp);
+                    values.add(value);
+                });
+            }
+        }
+        assertEquals(3001, timestamps.size());
+        assertEquals(start, timestamps.get(0));
+        assertEquals(start + 3000 * 1000L, timestamps.get(3000));
+        assertEquals(100.0, values.get(0));
+        assertEquals(250.0, values.get(3000));
+    }
+
+    @Test
+    public void testPeriodicFlush() throws Exception {
+        long start = 1638600000000L;
+        TimeSeriesStore store = new TimeSeriesStore(tempDir);
+        for (int i = 0; i < 90; i++) {
+            store.append(1, start + i * 1000L, Collections.singletonMap(Keys.AC_OUTPUT, "c8"));
+        }
+
+        // samples up to the last flush are readable without closing the store
+        Path path = store.segmentPath(1, Math.floorDiv(start, 24 * 60 * 60 * 1000L));
+        int[] count = {0};
+        try (Segment segment = Segment.openForRead(path)) {
+            for (Segment.Block block : segment.blocks()) {
+                segment.read(block, (timestamp, value) -> count[0]++);
+            }
+        }
+        assertEquals(61, count[0]);
+        store.close();
+    }
+}
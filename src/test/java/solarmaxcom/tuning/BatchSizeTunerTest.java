@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2021 t-pa <t-pa@posteo.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package solarmaxcom.tuning;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import solarmaxcom.Poller;
+import solarmaxcom.Transport;
+import solarmaxcom.cache.LatestValueCache;
+import solarmaxcom.protocol.Keys;
+import solarmaxcom.protocol.Packet;
+import solarmaxcom.sim.SimulatedDevice;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchSizeTunerTest {
+
+    /**
+     * Round-trip time of a device which needs 20 ms per request and 8 ms per key, and which
+     * becomes much slower with more than six keys.
+     */
+    private static long roundTrip(int keys) {
+        return (20 + 8 * keys + (keys > 6 ? 150 : 0)) * 1_000_000L;
+    }
+
+    @Test
+    public void testConverges() {
+        BatchSizeTuner tuner = new BatchSizeTuner(Poller.MAX_KEYS_PER_REQUEST, null);
+        for (int i = 0; i < 2000; i++) {
+            int size = tuner.nextSize();
+            tuner.record(size, size, roundTrip(size));
+        }
+        assertEquals(6, tuner.getBest());
+        assertEquals(6 / 0.068, tuner.getRates().get(6), 0.01);
+
+        // a size which starts timing out is abandoned
+        for (int i = 0; i < 2000; i++) {
+            int size = tuner.nextSize();
+            tuner.record(size, (size >= 5) ? 0 : size, (size >= 5) ? 3_000_000_000L : roundTrip(size));
+        }
+        assertEquals(4, tuner.getBest());
+    }
+
+    @Test
+    public void testListenerRunsUnlocked() throws Exception {
+        CountDownLatch saving = new CountDownLatch(1);
+        CountDownLatch saved = new CountDownLatch(1);
+        BatchSizeTuner tuner = new BatchSizeTuner(3, (keys, rates) -> {
+            saving.countDown();
+            try {
+                saved.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Thread poller = new Thread(() -> {
+            for (int i = 0; i < BatchSizeTuner.MIN_SAMPLES; i++) {
+                tuner.record(3, 3, roundTrip(3));
+                tuner.record(4, 4, roundTrip(4));
+            }
+        });
+        poller.start();
+        saving.await();
+        // while the profile is being saved, other threads keep using the tuner
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            assertEquals(4, tuner.getBest());
+            tuner.record(tuner.nextSize(), 4, roundTrip(4));
+        });
+        saved.countDown();
+        poller.join();
+    }
+
+    @Test
+    public void testProfileIsSaved(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("profiles.properties");
+        Tuning tuning = new Tuning(new ProfileStore(file));
+        BatchSizeTuner tuner = tuning.forType("2B07", "SolarMax 2500SP");
+        assertSame(tuner, tuning.forType("2B07", "SolarMax 2500SP"));
+        for (int i = 0; i < 2000; i++) {
+            int size = tuner.nextSize();
+            tuner.record(size, size, roundTrip(size));
+        }
+
+        DeviceProfile profile = new ProfileStore(file).get("2B07");
+        assertEquals("SolarMax 2500SP", profile.name);
+        assertEquals(6, profile.keysPerRequest);
+        assertTrue(profile.valuesPerSecond.get(6) > profile.valuesPerSecond.get(3));
+        assertEquals(6, new Tuning(new ProfileStore(file)).forType("2B07", "SolarMax 2500SP").getBest());
+    }
+
+    @Test
+    public void testPollerUsesTuner(@TempDir Path dir) throws Exception {
+        SimulatedDevice device = new SimulatedDevice(1);
+        List<Integer> sizes = new ArrayList<>();
+        Transport transport = new Transport() {
+            @Override
+            public String makeRequest(String message) {
+                try {
+                    Packet request = Packet.parse(message);
+                    sizes.add(request.payload.size());
+                    return device.handle(request).build();
+                } catch (Packet.ParseException e) {
+                    return "";
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        ProfileStore store = new ProfileStore(dir.resolve("profiles.properties"));
+        store.put(new DeviceProfile("2B07", "SolarMax 2500SP", 20, Map.of()));
+        Poller poller = new Poller(transport, new LatestValueCache());
+        poller.setTuning(new Tuning(store));
+        // request the error history in every cycle, too
+        poller.setDependentKeys(Collections.emptyList());
+
+        List<Keys.Key> keys = new ArrayList<>();
+        for (Keys.Key key : Keys.getKeys()) {
+            if (key instanceof Keys.DataKey && keys.size() < 40) {
+                keys.add(key);
+            }
+        }
+        keys.remove(Keys.TYPE);
+        // the first cycle also requests the type, with the default number of keys per request, but
+        // does not return it
+        Map<Keys.Key, String> reply = poller.poll(1, keys);
+        assertEquals(keys.size(), reply.size());
+        assertNull(reply.get(Keys.TYPE));
+        assertNull(poller.getCache().get(1).getValue(Keys.TYPE));
+        assertEquals(Poller.MAX_KEYS_PER_REQUEST, sizes.get(0));
+        assertEquals(keys.size() + 1, sizes.stream().mapToInt(Integer::intValue).sum());
+        sizes.clear();
+        assertEquals(keys.size(), poller.poll(1, keys).size());
+        assertTrue(sizes.get(0) > Poller.MAX_KEYS_PER_REQUEST);
+        assertTrue(sizes.stream().allMatch(n -> n <= 20), "sizes " + sizes);
+        assertEquals(keys.size(), sizes.stream().mapToInt(Integer::intValue).sum());
+    }
+}